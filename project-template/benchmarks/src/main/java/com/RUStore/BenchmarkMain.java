@@ -0,0 +1,21 @@
+package com.RUStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks. Takes the usual JMH command line, but writes
+ * the results as JSON to jmh-result.json unless -rf or -rff is given, so
+ * runs of different builds can be compared.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		if (!options.contains("-rf") && !options.contains("-rff")) {
+			options.addAll(Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+	}
+}
@@ -0,0 +1,115 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end RUStoreClient put and get against an in-process server
+ * over loopback, from 16 B to 16 MB values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class ClientBenchmark {
+
+	/* a server on an ephemeral loopback port, one thread per connection */
+	@State(Scope.Benchmark)
+	public static class Server {
+		ServerSocketChannel channel;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			ServerConfig config = ServerConfig.parse(new String[] { "0" });
+			ObjectStore store = RUStoreServer.createStore(config);
+			ServerStats stats = new ServerStats();
+
+			channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread acceptor = new Thread(() -> {
+				try {
+					while (true) {
+						Socket socket = channel.socket().accept();
+						Thread handler = new Thread(new RUStoreServer.ClientHandler(socket, store, config, stats));
+						handler.setDaemon(true);
+						handler.start();
+					}
+				} catch (IOException e) {
+					// channel closed at the end of the trial
+				}
+			}, "benchmark-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int port() {
+			return channel.socket().getLocalPort();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws IOException {
+			channel.close();
+		}
+	}
+
+	/* one connection per benchmark thread, with a stored object to read */
+	@State(Scope.Thread)
+	public static class Connection {
+		@Param({ "16", "1024", "65536", "1048576", "16777216" })
+		public int valueSize;
+
+		RUStoreClient client;
+		byte[] value;
+		String storedKey;
+		String putKey;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws IOException {
+			client = new RUStoreClient("localhost", server.port());
+			client.connect();
+
+			value = new byte[valueSize];
+			ThreadLocalRandom.current().nextBytes(value);
+			storedKey = "stored-" + Thread.currentThread().getId();
+			putKey = "put-" + Thread.currentThread().getId();
+			client.put(storedKey, value);
+		}
+
+		@TearDown(Level.Trial)
+		public void disconnect() {
+			client.remove(storedKey);
+			client.disconnect();
+		}
+	}
+
+	@Benchmark
+	public byte[] get(Connection connection) {
+		return connection.client.get(connection.storedKey);
+	}
+
+	@Benchmark
+	public int putRemove(Connection connection) {
+		connection.client.put(connection.putKey, connection.value);
+		return connection.client.remove(connection.putKey);
+	}
+}
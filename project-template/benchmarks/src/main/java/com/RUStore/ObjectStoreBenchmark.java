@@ -0,0 +1,109 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ObjectStore operations under contention, for every store type. The
+ * get and putRemove benchmarks run on all threads at once, the mixed
+ * group runs readers and writers side by side on the same keys.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ObjectStoreBenchmark {
+
+	// preloaded keys, a power of two so the next index is a mask
+	static final int KEYS = 1024;
+
+	@Param({ "concurrent", "offheap" })
+	public String store;
+
+	@Param({ "16", "1024", "65536" })
+	public int valueSize;
+
+	ObjectStore objectStore;
+	String[] keys;
+	byte[] value;
+
+	/* per thread cursor over the shared keys and a private set of keys to write */
+	@State(Scope.Thread)
+	public static class Cursor {
+		String[] fresh;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			String prefix = "fresh-" + Thread.currentThread().getId() + "-";
+			fresh = new String[KEYS];
+			for (int i = 0; i < KEYS; i++) {
+				fresh[i] = prefix + i;
+			}
+			next = ThreadLocalRandom.current().nextInt(KEYS);
+		}
+
+		int next() {
+			next = (next + 1) & (KEYS - 1);
+			return next;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		objectStore = RUStoreServer.createStore(ServerConfig.parse(new String[] { "0", "--store=" + store }));
+		value = new byte[valueSize];
+		ThreadLocalRandom.current().nextBytes(value);
+		keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "key-" + i;
+			objectStore.putIfAbsent(keys[i], value);
+		}
+	}
+
+	@Benchmark
+	public byte[] get(Cursor cursor) {
+		return objectStore.get(keys[cursor.next()]);
+	}
+
+	@Benchmark
+	public boolean putRemove(Cursor cursor) {
+		String key = cursor.fresh[cursor.next()];
+		objectStore.putIfAbsent(key, value);
+		return objectStore.remove(key);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(6)
+	public byte[] mixedGet(Cursor cursor) {
+		return get(cursor);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(2)
+	public boolean mixedPutRemove(Cursor cursor) {
+		return putRemove(cursor);
+	}
+}
@@ -0,0 +1,93 @@
+package com.RUStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request decoding and response encoding of the PUT and GET handlers,
+ * fed from in-memory streams so no socket is involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int valueSize;
+
+	RUStoreServer.ClientHandler handler;
+
+	ByteArrayInputStream putRequest;
+	DataInputStream putIn;
+	ByteArrayInputStream getRequest;
+	DataInputStream getIn;
+
+	ByteArrayOutputStream response;
+	DataOutputStream out;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ServerConfig config = ServerConfig.parse(new String[] { "0" });
+		ObjectStore store = RUStoreServer.createStore(config);
+		// PUT and GET never touch the socket unless objects live in files
+		handler = new RUStoreServer.ClientHandler(null, store, config, new ServerStats());
+
+		byte[] value = new byte[valueSize];
+		store.putIfAbsent("stored", value);
+
+		// a PUT followed by a REMOVE of the same key, so every iteration stores the object again
+		ByteArrayOutputStream put = new ByteArrayOutputStream();
+		DataOutputStream putOut = new DataOutputStream(put);
+		putOut.writeUTF("benchmark");
+		putOut.writeInt(valueSize);
+		putOut.write(value);
+		putOut.writeUTF("benchmark");
+		putRequest = new ByteArrayInputStream(put.toByteArray());
+		putIn = new DataInputStream(putRequest);
+
+		ByteArrayOutputStream get = new ByteArrayOutputStream();
+		new DataOutputStream(get).writeUTF("stored");
+		getRequest = new ByteArrayInputStream(get.toByteArray());
+		getIn = new DataInputStream(getRequest);
+
+		response = new ByteArrayOutputStream(valueSize + 64);
+		out = new DataOutputStream(response);
+	}
+
+	@Benchmark
+	public int putRemove() throws IOException {
+		putRequest.reset();
+		response.reset();
+		handler.dispatch(Protocol.PUT, putIn, out);
+		handler.dispatch(Protocol.REMOVE, putIn, out);
+		return response.size();
+	}
+
+	@Benchmark
+	public int get() throws IOException {
+		getRequest.reset();
+		response.reset();
+		handler.dispatch(Protocol.GET, getIn, out);
+		return response.size();
+	}
+}
@@ -0,0 +1,119 @@
+package com.RUStore;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on what clients can make the server hold at once: open
+ * connections, bytes of uploads buffered in memory across all of them,
+ * and the size of a single object. Shared by the accept loop and every
+ * ClientHandler.
+ *
+ * Nothing here ever blocks. A connection or upload over a limit is
+ * refused right away with a status the client backs off on, so under
+ * overload only the refused requests pay, instead of the whole node
+ * running out of memory or every request queueing behind it.
+ */
+final class AdmissionControl {
+
+	private final int maxConnections;   // 0 for no limit
+	private final long maxInFlightBytes;   // 0 for no limit
+	private final long maxObjectSize;   // 0 for no limit
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong inFlightBytes = new AtomicLong();
+	private final LongAdder busyConnections = new LongAdder();
+	private final LongAdder busyRequests = new LongAdder();
+	private final LongAdder tooLarge = new LongAdder();
+	private final LongAdder idleClosed = new LongAdder();
+
+	AdmissionControl(ServerConfig config) {
+		this.maxConnections = config.maxConnections;
+		this.maxInFlightBytes = config.maxInFlightBytes;
+		this.maxObjectSize = config.maxObjectSize;
+	}
+
+	/**
+	 * Takes a connection slot, given back with connectionClosed.
+	 *
+	 * @return		false if the server has as many connections as it takes
+	 */
+	boolean connectionOpened() {
+		if (maxConnections == 0) {
+			connections.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int current = connections.get();
+			if (current >= maxConnections) {
+				busyConnections.increment();
+				return false;
+			}
+			if (connections.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	void idleConnectionClosed() {
+		idleClosed.increment();
+	}
+
+	/**
+	 * @param size	size of an object a client is about to upload
+	 *
+	 * @return		true if the object is larger than the server accepts
+	 */
+	boolean tooLarge(long size) {
+		if (maxObjectSize == 0 || size <= maxObjectSize) {
+			return false;
+		}
+		tooLarge.increment();
+		return true;
+	}
+
+	/**
+	 * Reserves memory for an upload, given back with release. An upload
+	 * is always admitted when nothing else is in flight, so one larger
+	 * than the whole budget is slow to get in but never starves.
+	 *
+	 * @param bytes	bytes the upload will hold in memory
+	 *
+	 * @return		false if the budget has no room for them
+	 */
+	boolean reserve(long bytes) {
+		if (maxInFlightBytes == 0) {
+			return true;
+		}
+		while (true) {
+			long current = inFlightBytes.get();
+			if (current > 0 && current + bytes > maxInFlightBytes) {
+				busyRequests.increment();
+				return false;
+			}
+			if (inFlightBytes.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	void release(long bytes) {
+		if (maxInFlightBytes != 0) {
+			inFlightBytes.addAndGet(-bytes);
+		}
+	}
+
+	void addStats(Map<String, Long> stats) {
+		stats.put("admission.connections", (long) connections.get());
+		stats.put("admission.inflight_bytes", inFlightBytes.get());
+		stats.put("admission.busy_connections", busyConnections.sum());
+		stats.put("admission.busy_requests", busyRequests.sum());
+		stats.put("admission.too_large", tooLarge.sum());
+		stats.put("admission.idle_closed", idleClosed.sum());
+	}
+}
@@ -0,0 +1,386 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore with a budget for the bytes it holds.
+ * An EvictionPolicy decides which objects make room for a new one; they
+ * are removed through the wrapped store, so evictions reach the log and
+ * the key index like any other REMOVE. A PUT that cannot be admitted
+ * fails with InsufficientSpaceException.
+ *
+ * Reads must not queue up behind the policy lock, so they are recorded in
+ * small lossy buffers, one per stripe of threads, and replayed into the
+ * policy by whichever thread takes the lock next. Under heavy load some
+ * reads are overwritten before they are replayed, which only makes the
+ * frequency estimates slightly coarser.
+ */
+public class BoundedObjectStore implements ObjectStore, Closeable {
+
+	private static final int READ_BUFFER_SIZE = 128;
+
+	/* recent reads of one stripe of threads, overwritten when full */
+	private static final class ReadBuffer {
+		final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+		final AtomicInteger cursor = new AtomicInteger();
+		int drained;   // guarded by policyLock
+	}
+
+	private final ObjectStore inner;
+	private final long maxBytes;
+	private final EvictionPolicy policy;
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final ReadBuffer[] readBuffers;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param inner		store that holds the objects, its current contents
+	 *             		are accounted right away
+	 * @param maxBytes	budget for the total size of all values
+	 * @param mode		eviction policy
+	 */
+	public BoundedObjectStore(ObjectStore inner, long maxBytes, EvictionPolicy.Mode mode) throws IOException {
+		this.inner = inner;
+		this.maxBytes = maxBytes;
+		this.policy = new EvictionPolicy(mode, maxBytes);
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.readBuffers = new ReadBuffer[count];
+		for (int i = 0; i < count; i++) {
+			readBuffers[i] = new ReadBuffer();
+		}
+
+		// objects recovered from disk count against the budget too, and may not all fit
+		for (String key : inner.keys()) {
+			long size;
+			try (FileChannel file = inner.openFile(key)) {
+				if (file != null) {
+					size = file.size();
+				} else {
+					byte[] data = inner.get(key);
+					if (data == null) {
+						continue;
+					}
+					size = data.length;
+				}
+			}
+			evict(null, policy.add(key, size));
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		List<String> evicted = admit(key, data.length);
+		if (evicted == null) {
+			return false;
+		}
+		boolean stored;
+		try {
+			stored = inner.putIfAbsent(key, data, expiresAt);
+		} catch (RuntimeException e) {
+			forget(key);
+			throw e;
+		} finally {
+			evict(null, evicted);
+		}
+		if (!stored) {
+			forget(key);
+		}
+		return stored;
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		List<String> evicted;
+		try {
+			evicted = admit(key, Files.size(file));
+		} catch (RuntimeException e) {
+			// the store owns the file, even when it refuses it
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		if (evicted == null) {
+			Files.deleteIfExists(file);
+			return false;
+		}
+		boolean stored;
+		try {
+			stored = inner.putFileIfAbsent(key, file, expiresAt);
+		} catch (IOException | RuntimeException e) {
+			forget(key);
+			throw e;
+		} finally {
+			evict(null, evicted);
+		}
+		if (!stored) {
+			forget(key);
+		}
+		return stored;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		resize(key, data.length);
+		return inner.put(key, data, expiresAt);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version) {
+		return putIfVersion(key, data, version, 0);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version, long expiresAt) {
+		long previous = resize(key, data.length);
+		long stored;
+		try {
+			stored = inner.putIfVersion(key, data, version, expiresAt);
+		} catch (RuntimeException e) {
+			restore(key, previous);
+			throw e;
+		}
+		if (stored == 0) {
+			restore(key, previous);
+		}
+		return stored;
+	}
+
+	@Override
+	public long version(String key) {
+		return inner.version(key);
+	}
+
+	/**
+	 * Accounts key at its new size before it is overwritten, making room
+	 * for the difference. If the policy does not admit the new size, the
+	 * old object is evicted along with it.
+	 *
+	 * @return		size key was accounted at before, -1 if it was not
+	 */
+	private long resize(String key, long size) {
+		if (size > maxBytes) {
+			// could never fit, the old object stays
+			rejected.increment();
+			throw new InsufficientSpaceException("No space for " + size + " byte object " + key);
+		}
+		long previous;
+		List<String> evicted;
+		policyLock.lock();
+		try {
+			drainReads();
+			previous = policy.remove(key);
+			evicted = policy.add(key, size);
+		} finally {
+			policyLock.unlock();
+		}
+
+		if (evicted.contains(key)) {
+			rejected.increment();
+			evict(null, evicted);
+			throw new InsufficientSpaceException("No space for " + size + " byte object " + key);
+		}
+		evict(key, evicted);
+		return previous;
+	}
+
+	/* accounts key at its old size again after an overwrite did not happen */
+	private void restore(String key, long previous) {
+		List<String> evicted;
+		policyLock.lock();
+		try {
+			policy.remove(key);
+			if (previous < 0 || !inner.containsKey(key)) {
+				return;
+			}
+			evicted = policy.add(key, previous);
+		} finally {
+			policyLock.unlock();
+		}
+		evict(null, evicted);
+	}
+
+	/**
+	 * Reserves room for key in the policy.
+	 *
+	 * @return		keys the caller has to evict, null if key is already stored
+	 */
+	private List<String> admit(String key, long size) {
+		List<String> evicted;
+		policyLock.lock();
+		try {
+			drainReads();
+			if (policy.contains(key)) {
+				return null;
+			}
+			evicted = policy.add(key, size);
+		} finally {
+			policyLock.unlock();
+		}
+
+		if (evicted.contains(key)) {
+			rejected.increment();
+			evict(key, evicted);
+			throw new InsufficientSpaceException("No space for " + size + " byte object " + key);
+		}
+		return evicted;
+	}
+
+	/* removes evicted objects from the wrapped store, skipping the key being put */
+	private void evict(String key, List<String> evicted) {
+		for (String victim : evicted) {
+			if (!victim.equals(key)) {
+				inner.remove(victim);
+			}
+		}
+	}
+
+	private void forget(String key) {
+		policyLock.lock();
+		try {
+			policy.remove(key);
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		recordRead(key);
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		recordRead(key);
+		return inner.getStored(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		recordRead(key);
+		return inner.openFile(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		return inner.expire(key, expiresAt);
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	private void recordRead(String key) {
+		ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+		int slot = buffer.cursor.getAndIncrement() & (READ_BUFFER_SIZE - 1);
+		buffer.slots.lazySet(slot, key);
+
+		// replay once a buffer is half full, unless another thread is busy with the policy
+		if ((slot & (READ_BUFFER_SIZE / 2 - 1)) == 0 && policyLock.tryLock()) {
+			try {
+				drainReads();
+			} finally {
+				policyLock.unlock();
+			}
+		}
+	}
+
+	private void drainReads() {
+		for (ReadBuffer buffer : readBuffers) {
+			// only visit the slots written since the last drain, older ones were overwritten
+			int end = buffer.cursor.get();
+			if (end - buffer.drained > READ_BUFFER_SIZE) {
+				buffer.drained = end - READ_BUFFER_SIZE;
+			}
+			for (int i = buffer.drained; i != end; i++) {
+				String key = buffer.slots.getAndSet(i & (READ_BUFFER_SIZE - 1), null);
+				if (key != null) {
+					policy.access(key);
+				}
+			}
+			buffer.drained = end;
+		}
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (!inner.remove(key)) {
+			return false;
+		}
+		forget(key);
+		return true;
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		policyLock.lock();
+		try {
+			stats.put("memory.max_bytes", maxBytes);
+			stats.put("memory.used_bytes", policy.usedBytes());
+			stats.put("evictions", policy.evictions());
+			stats.put("evictions.bytes", policy.evictedBytes());
+		} finally {
+			policyLock.unlock();
+		}
+		stats.put("puts.rejected_no_space", rejected.sum());
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates an in-memory ObjectStore so it keeps values compressed when
+ * that pays off, as decided per object by ValueCodec. The server wraps
+ * the base store with it, below any disk tier, so only values that are
+ * held in memory are compressed and files are left as they are.
+ *
+ * get() returns the original value. getStored() returns the compressed
+ * form, which the server sends to clients that can inflate it
+ * themselves.
+ *
+ * STATS reports how many of the values held right now are compressed and
+ * how many bytes that saves, so overwrites and removes count against it.
+ */
+public class CompressedObjectStore implements ObjectStore {
+
+	private final ObjectStore inner;
+	private final int minSize;
+	private final ConcurrentHashMap<String, Integer> savings = new ConcurrentHashMap<>();   // keys kept compressed
+	private final AtomicLong savedBytes = new AtomicLong();
+
+	/**
+	 * @param inner		store that holds the encoded values
+	 * @param minSize	values smaller than this are never compressed
+	 */
+	public CompressedObjectStore(ObjectStore inner, int minSize) {
+		this.inner = inner;
+		this.minSize = minSize;
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		if (inner.containsKey(key)) {
+			return false;
+		}
+		byte[] stored = ValueCodec.encode(data, minSize);
+		if (!inner.putIfAbsent(key, stored)) {
+			return false;
+		}
+		count(key, data, stored);
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		byte[] stored = ValueCodec.encode(data, minSize);
+		long version = inner.put(key, stored);
+		count(key, data, stored);
+		return version;
+	}
+
+	/* replaces what the previous value under key saved with what the new one does */
+	private void count(String key, byte[] data, byte[] stored) {
+		boolean deflated = ValueCodec.codec(stored) == ValueCodec.DEFLATE;
+		int saved = deflated ? data.length - stored.length : 0;
+		Integer previous = deflated ? savings.put(key, saved) : savings.remove(key);
+		savedBytes.addAndGet(saved - (previous == null ? 0 : previous));
+	}
+
+	@Override
+	public byte[] get(String key) {
+		byte[] stored = inner.get(key);
+		if (stored == null) {
+			return null;
+		}
+		try {
+			return ValueCodec.decode(stored);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Stored value of " + key + " is corrupt", e);
+		}
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (!inner.remove(key)) {
+			return false;
+		}
+		Integer previous = savings.remove(key);
+		if (previous != null) {
+			savedBytes.addAndGet(-previous);
+		}
+		return true;
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		stats.put("compression.objects", (long) savings.size());
+		stats.put("compression.saved_bytes", savedBytes.get());
+	}
+}
@@ -0,0 +1,56 @@
+package com.RUStore;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap object store backed by a ConcurrentHashMap. Reads are lock-free
+ * and writes only lock the hash bin they touch, so PUT/GET/REMOVE on
+ * different keys proceed in parallel instead of serializing on a single
+ * map lock.
+ */
+public class ConcurrentObjectStore implements ObjectStore {
+
+	private final ConcurrentHashMap<String, byte[]> map;
+
+	public ConcurrentObjectStore() {
+		// size the table for the number of cores that will be writing to it
+		this.map = new ConcurrentHashMap<>(1024, 0.75f,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return map.putIfAbsent(key, data) == null;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		map.put(key, data);
+		return 0;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		return map.remove(key) != null;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return map.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+}
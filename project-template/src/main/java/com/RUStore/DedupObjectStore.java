@@ -0,0 +1,184 @@
+package com.RUStore;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates an in-memory ObjectStore so identical values are kept once.
+ * Every value is stored in the wrapped store under its SHA-256, and keys
+ * only map to that hash. Each content hash carries a count of the keys
+ * that point to it; REMOVE drops one reference and the last one frees
+ * the value.
+ *
+ * References are counted inside ConcurrentHashMap.compute, so taking and
+ * dropping a reference to the same content are atomic without further
+ * locks. A key is claimed only after its reference is taken, and gives
+ * it back if it turns out to exist already, so a reader that finds a key
+ * always finds its content.
+ */
+public class DedupObjectStore implements ObjectStore {
+
+	/* one distinct value and the number of keys that point to it */
+	private static final class Content {
+		final long size;
+		int references;
+
+		Content(long size) {
+			this.size = size;
+		}
+	}
+
+	private final ObjectStore inner;
+	private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Content> contents = new ConcurrentHashMap<>();
+	private final LongAdder logicalBytes = new LongAdder();
+	private final LongAdder storedBytes = new LongAdder();
+
+	/**
+	 * @param inner		store that holds each distinct value under its hash
+	 */
+	public DedupObjectStore(ObjectStore inner) {
+		this.inner = inner;
+	}
+
+	/**
+	 * @return		SHA-256 of data
+	 */
+	static byte[] hash(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		if (keys.containsKey(key)) {
+			return false;
+		}
+		String hash = hex(hash(data));
+		acquire(hash, data);
+		if (keys.putIfAbsent(key, hash) != null) {
+			release(hash);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		String hash = hex(hash(data));
+		acquire(hash, data);
+		String previous = keys.put(key, hash);
+		if (previous != null) {
+			release(previous);
+		}
+		return 0;
+	}
+
+	/* takes a reference to the content, storing it if it is new */
+	private void acquire(String hash, byte[] data) {
+		contents.compute(hash, (h, content) -> {
+			if (content == null) {
+				content = new Content(data.length);
+				inner.putIfAbsent(h, data);
+				storedBytes.add(data.length);
+			}
+			content.references++;
+			return content;
+		});
+		logicalBytes.add(data.length);
+	}
+
+	/* drops a reference to the content, freeing it with the last one */
+	private void release(String hash) {
+		contents.compute(hash, (h, content) -> {
+			if (content == null) {
+				throw new IllegalStateException("Released content " + h + " is not referenced");
+			}
+			logicalBytes.add(-content.size);
+			if (--content.references > 0) {
+				return content;
+			}
+			inner.remove(h);
+			storedBytes.add(-content.size);
+			return null;
+		});
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return read(key, false);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return read(key, true);
+	}
+
+	private byte[] read(String key, boolean stored) {
+		String hash = keys.get(key);
+		while (hash != null) {
+			byte[] data = stored ? inner.getStored(hash) : inner.get(hash);
+			if (data != null) {
+				return data;
+			}
+			// the key was overwritten and its old content freed after we looked it up
+			String current = keys.get(key);
+			hash = hash.equals(current) ? null : current;
+		}
+		return null;
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		// only content that some key still references can be linked to
+		String h = hex(hash);
+		return contents.containsKey(h) ? inner.get(h) : null;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return keys.containsKey(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		String hash = keys.remove(key);
+		if (hash == null) {
+			return false;
+		}
+		release(hash);
+		return true;
+	}
+
+	@Override
+	public String[] keys() {
+		return keys.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public int size() {
+		return keys.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		stats.put("dedup.contents", (long) contents.size());
+		stats.put("dedup.saved_bytes", logicalBytes.sum() - storedBytes.sum());
+	}
+}
@@ -0,0 +1,480 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore so every successful PUT and REMOVE, and
+ * every expiry time set with expire, is appended to a MutationLog before
+ * it is acknowledged. An object put with an expiry time is logged as a
+ * PUT and an EXPIRE record under one lock and synced once. On startup the
+ * log is replayed into the wrapped store, and a background compactor
+ * rewrites sealed segments once enough of their records are dead.
+ *
+ * Mutations of the same key are serialized on a lock stripe so the order
+ * of records in the log always matches the order they were applied in.
+ * The stripe is released before waiting for the fsync, so writers to
+ * other keys in the same stripe can join the same group commit.
+ */
+public class DurableObjectStore implements ObjectStore, Closeable {
+
+	private static final double COMPACTION_RATIO = 0.5;
+
+	/* expiry time of a key and the EXPIRE record that set it */
+	private static final class Expiry {
+		final long expiresAt;
+		final MutationLog.Location location;
+
+		Expiry(long expiresAt, MutationLog.Location location) {
+			this.expiresAt = expiresAt;
+			this.location = location;
+		}
+	}
+
+	private final ObjectStore inner;
+	private final MutationLog log;
+	private final Path spillDir;
+	private final long spillThreshold;
+	private final ConcurrentHashMap<String, MutationLog.Location> locations = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Expiry> expiries = new ConcurrentHashMap<>();
+	private final ReentrantLock[] stripes;
+	private final ScheduledExecutorService compactor;
+
+	/**
+	 * Opens the log, replays it into inner and starts the compactor.
+	 * Values over spillThreshold are replayed through a file in spillDir,
+	 * so objects of a disk tier don't pass through the heap on restart.
+	 *
+	 * @param inner				store that holds the live values
+	 * @param log				log to replay and append to
+	 * @param compactSeconds	interval between compaction passes
+	 * @param spillDir			directory of the disk tier, null if there is none
+	 * @param spillThreshold	values larger than this many bytes are replayed
+	 *                      	through a file
+	 */
+	public DurableObjectStore(ObjectStore inner, MutationLog log, long compactSeconds, Path spillDir,
+			long spillThreshold) throws IOException {
+		this.inner = inner;
+		this.log = log;
+		this.spillDir = spillDir;
+		this.spillThreshold = spillThreshold;
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+
+		recover();
+
+		compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread t = new Thread(task, "rustore-log-compactor");
+			t.setDaemon(true);
+			return t;
+		});
+		compactor.scheduleWithFixedDelay(this::compact, compactSeconds, compactSeconds, TimeUnit.SECONDS);
+	}
+
+	private void recover() throws IOException {
+		long start = System.nanoTime();
+
+		// first pass only keeps the newest PUT of every key, values stay in the mapped segments
+		Map<String, ByteBuffer> values = new HashMap<>();
+		log.replay((type, key, value, location) -> {
+			MutationLog.Location previous;
+			if (type == MutationLog.EXPIRE) {
+				if (values.containsKey(key)) {
+					dropExpiry(key);
+					expiries.put(key, new Expiry(value.getLong(value.position()), location));
+				} else {
+					log.markDead(location);
+				}
+				return;
+			}
+			// a new version of the key doesn't inherit the expiry time of the old one
+			dropExpiry(key);
+			if (type == MutationLog.PUT) {
+				values.put(key, value);
+				previous = locations.put(key, location);
+			} else {
+				values.remove(key);
+				previous = locations.remove(key);
+				log.markDead(location);
+			}
+			if (previous != null) {
+				log.markDead(previous);
+			}
+		});
+
+		// second pass copies each live value into the store exactly once
+		for (Map.Entry<String, ByteBuffer> entry : values.entrySet()) {
+			ByteBuffer value = entry.getValue();
+			if (spillDir != null && value.remaining() > spillThreshold) {
+				inner.putFileIfAbsent(entry.getKey(), spill(value));
+				continue;
+			}
+			byte[] data = new byte[value.remaining()];
+			value.get(data);
+			inner.putIfAbsent(entry.getKey(), data);
+		}
+
+		Log.info("Recovered %d objects from mutation log in %d ms",
+				values.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/* copies a mapped value to a file the disk tier can adopt with a rename */
+	private Path spill(ByteBuffer value) throws IOException {
+		Path file = Files.createTempFile(spillDir, "recover", ".tmp");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			while (value.hasRemaining()) {
+				channel.write(value);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return file;
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		MutationLog.Location location;
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.putIfAbsent(key, data)) {
+				return false;
+			}
+			try {
+				location = log.append(MutationLog.PUT, key, data);
+			} catch (IOException e) {
+				inner.remove(key);
+				throw new UncheckedIOException(e);
+			}
+			location = applied(key, location, expiresAt);
+		} finally {
+			lock.unlock();
+		}
+		sync(location);
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		MutationLog.Location location;
+		long version;
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			// log first, readers must never see a value a restart would take back
+			try {
+				location = log.append(MutationLog.PUT, key, data);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			try {
+				version = inner.put(key, data);
+			} catch (RuntimeException e) {
+				// the logged value never made it, drop the key from both rather than let them differ
+				forget(key, location);
+				throw e;
+			}
+			location = applied(key, location, expiresAt);
+		} finally {
+			lock.unlock();
+		}
+		sync(location);
+		return version;
+	}
+
+	/**
+	 * Records the PUT at location the store just applied, followed by an
+	 * EXPIRE record if the object expires. Both are synced with a single
+	 * sync of the returned location, so a crash never recovers the object
+	 * without its expiry time. Caller holds the stripe of key.
+	 */
+	private MutationLog.Location applied(String key, MutationLog.Location location, long expiresAt) {
+		MutationLog.Location expiry = null;
+		if (expiresAt > 0) {
+			try {
+				expiry = log.append(MutationLog.EXPIRE, key, ByteBuffer.allocate(8).putLong(expiresAt).array());
+			} catch (IOException e) {
+				forget(key, location);
+				throw new UncheckedIOException(e);
+			}
+		}
+		// replay keeps the newest PUT of a key, so the old one is garbage now
+		MutationLog.Location previous = locations.put(key, location);
+		if (previous != null) {
+			log.markDead(previous);
+		}
+		dropExpiry(key);
+		if (expiry == null) {
+			return location;
+		}
+		expiries.put(key, new Expiry(expiresAt, expiry));
+		return expiry;
+	}
+
+	/* undoes a PUT of key the wrapped store failed to apply */
+	private void forget(String key, MutationLog.Location location) {
+		try {
+			MutationLog.Location tombstone = log.append(MutationLog.REMOVE, key, null);
+			log.markDead(tombstone);
+		} catch (IOException e) {
+			// the store keeps whatever it holds; replay will apply the logged value
+			return;
+		}
+		inner.remove(key);
+		log.markDead(location);
+		MutationLog.Location previous = locations.remove(key);
+		if (previous != null) {
+			log.markDead(previous);
+		}
+		dropExpiry(key);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		MutationLog.Location location;
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			// every mutation of key goes through this stripe, so the check stays valid
+			if (inner.containsKey(key)) {
+				Files.deleteIfExists(file);
+				return false;
+			}
+			// log straight from the file before the store takes ownership of it
+			location = log.append(key, file);
+			boolean stored;
+			try {
+				stored = inner.putFileIfAbsent(key, file);
+			} catch (IOException | RuntimeException e) {
+				forget(key, location);
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+			if (!stored) {
+				forget(key, location);
+				return false;
+			}
+			location = applied(key, location, expiresAt);
+		} finally {
+			lock.unlock();
+		}
+		sync(location);
+		return true;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		MutationLog.Location location;
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.remove(key)) {
+				return false;
+			}
+			try {
+				location = log.append(MutationLog.REMOVE, key, null);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			MutationLog.Location previous = locations.remove(key);
+			if (previous != null) {
+				log.markDead(previous);
+			}
+			dropExpiry(key);
+			// the tombstone itself is garbage once the PUT it shadows is compacted away
+			log.markDead(location);
+		} finally {
+			lock.unlock();
+		}
+		sync(location);
+		return true;
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		MutationLog.Location location;
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.containsKey(key)) {
+				return false;
+			}
+			try {
+				location = log.append(MutationLog.EXPIRE, key, ByteBuffer.allocate(8).putLong(expiresAt).array());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			dropExpiry(key);
+			expiries.put(key, new Expiry(expiresAt, location));
+		} finally {
+			lock.unlock();
+		}
+		sync(location);
+		return true;
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		Expiry expiry = expiries.get(key);
+		return expiry == null ? 0 : expiry.expiresAt;
+	}
+
+	/* caller holds the stripe of key, or is recovering */
+	private void dropExpiry(String key) {
+		Expiry previous = expiries.remove(key);
+		if (previous != null) {
+			log.markDead(previous.location);
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+	}
+
+	private void sync(MutationLog.Location location) {
+		try {
+			log.sync(location.end());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void compact() {
+		try {
+			for (long segment : log.compactionCandidates(COMPACTION_RATIO)) {
+				log.compact(segment, new MutationLog.CompactionFilter() {
+					@Override
+					public boolean keep(byte type, String key, MutationLog.Location location) {
+						// a PUT may have been appended but not yet indexed, wait for it
+						ReentrantLock lock = stripe(key);
+						lock.lock();
+						try {
+							if (type == MutationLog.REMOVE) {
+								// a newer PUT already shadows every older record of the key
+								return !locations.containsKey(key);
+							}
+							if (type == MutationLog.EXPIRE) {
+								Expiry expiry = expiries.get(key);
+								return expiry != null && location.equals(expiry.location);
+							}
+							return location.equals(locations.get(key));
+						} finally {
+							lock.unlock();
+						}
+					}
+
+					@Override
+					public void moved(byte type, String key, MutationLog.Location from, MutationLog.Location to) {
+						if (type == MutationLog.PUT && !locations.replace(key, from, to)) {
+							// removed while the segment was rewritten, the copy is dead already
+							log.markDead(to);
+						} else if (type == MutationLog.EXPIRE && !moveExpiry(key, from, to)) {
+							log.markDead(to);
+						}
+					}
+				});
+			}
+		} catch (IOException e) {
+			Log.error("Error compacting mutation log: %s", e.getMessage());
+		}
+	}
+
+	private boolean moveExpiry(String key, MutationLog.Location from, MutationLog.Location to) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			Expiry expiry = expiries.get(key);
+			if (expiry == null || !expiry.location.equals(from)) {
+				return false;
+			}
+			expiries.put(key, new Expiry(expiry.expiresAt, to));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		compactor.shutdownNow();
+		log.close();
+	}
+}
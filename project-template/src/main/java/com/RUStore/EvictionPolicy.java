@@ -0,0 +1,292 @@
+package com.RUStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Size-weighted eviction policy for BoundedObjectStore. Not thread-safe,
+ * the store only calls it while holding its policy lock.
+ *
+ * TINYLFU is W-TinyLFU: new objects enter a small LRU window (1% of the
+ * budget), and objects pushed out of the window only stay if a count-min
+ * sketch of recent accesses says they are used more often than the
+ * object they would displace from the main segmented LRU. Main is split
+ * into probation and protected (80%) segments, and a second access
+ * promotes an object to protected. Objects that are used once therefore
+ * never flush the hot set out of memory.
+ *
+ * SLRU skips the window and the admission check, so every new object is
+ * stored and the least recently used probation objects make room. NONE
+ * never evicts and rejects objects that do not fit.
+ */
+class EvictionPolicy {
+
+	enum Mode {
+		TINYLFU, SLRU, NONE
+	}
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final class Node {
+		final String key;
+		final long weight;
+		int queue;
+		Node prev;
+		Node next;
+
+		Node(String key, long weight) {
+			this.key = key;
+			this.weight = weight;
+		}
+	}
+
+	/* access ordered list, head is the least recently used */
+	private static final class Queue {
+		Node head;
+		Node tail;
+		long bytes;
+
+		void addLast(Node node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+			bytes += node.weight;
+		}
+
+		void remove(Node node) {
+			if (node.prev == null) {
+				head = node.next;
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			bytes -= node.weight;
+		}
+
+		void moveToLast(Node node) {
+			if (node != tail) {
+				remove(node);
+				addLast(node);
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch with four rows of counters that saturate at 15.
+	 * All counters are halved once the number of increments reaches ten
+	 * times the width, so the frequencies follow recent traffic.
+	 */
+	private static final class Sketch {
+		private static final int[] SEEDS = { 0x97CB3127, 0xB8A1E8B5, 0xD3F2A06B, 0x8C9D1F2F };
+
+		private byte[][] rows;
+		private int mask;
+		private int additions;
+
+		Sketch(int width) {
+			resize(width);
+		}
+
+		void ensureCapacity(int entries) {
+			if (entries > mask + 1 && mask + 1 < (1 << 24)) {
+				resize(Integer.highestOneBit(entries) << 1);
+			}
+		}
+
+		private void resize(int width) {
+			rows = new byte[SEEDS.length][width];
+			mask = width - 1;
+			additions = 0;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < rows.length; i++) {
+				int slot = index(hash, i);
+				if (rows[i][slot] < 15) {
+					rows[i][slot]++;
+				}
+			}
+			if (++additions >= 10 * (mask + 1)) {
+				for (byte[] row : rows) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] >>= 1;
+					}
+				}
+				additions /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int min = 15;
+			for (int i = 0; i < rows.length; i++) {
+				min = Math.min(min, rows[i][index(hash, i)]);
+			}
+			return min;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	private final Mode mode;
+	private final long maxBytes;
+	private final long windowMax;
+	private final long protectedMax;
+	private final HashMap<String, Node> nodes = new HashMap<>();
+	private final Queue[] queues = { new Queue(), new Queue(), new Queue() };
+	private final Sketch sketch = new Sketch(1024);
+	private long usedBytes;
+	private long evictions;
+	private long evictedBytes;
+
+	EvictionPolicy(Mode mode, long maxBytes) {
+		this.mode = mode;
+		this.maxBytes = maxBytes;
+		this.windowMax = mode == Mode.TINYLFU ? Math.max(1, maxBytes / 100) : 0;
+		this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+	}
+
+	boolean contains(String key) {
+		return nodes.containsKey(key);
+	}
+
+	/**
+	 * Accounts for a new object and picks the objects that have to go to
+	 * keep within the budget.
+	 *
+	 * @return		keys to evict, containing key itself if it was not
+	 *        		admitted
+	 */
+	List<String> add(String key, long weight) {
+		if (weight > maxBytes || (mode == Mode.NONE && usedBytes + weight > maxBytes)) {
+			return Collections.singletonList(key);
+		}
+
+		Node node = new Node(key, weight);
+		nodes.put(key, node);
+		sketch.ensureCapacity(nodes.size());
+		sketch.increment(key);
+		usedBytes += weight;
+
+		ArrayDeque<Node> candidates = new ArrayDeque<>();
+		if (mode == Mode.TINYLFU) {
+			insert(node, WINDOW);
+			// whatever no longer fits the window has to compete for a place in main
+			while (queues[WINDOW].bytes > windowMax) {
+				Node moved = queues[WINDOW].head;
+				queues[WINDOW].remove(moved);
+				insert(moved, PROBATION);
+				candidates.addLast(moved);
+			}
+		} else {
+			insert(node, PROBATION);
+		}
+
+		List<String> evicted = new ArrayList<>();
+		while (usedBytes > maxBytes) {
+			Node victim = queues[PROBATION].head;
+			if (victim == null || victim == candidates.peekFirst() || victim == node) {
+				// probation only holds new arrivals, compare against the protected segment instead
+				victim = queues[PROTECTED].head != null ? queues[PROTECTED].head : queues[WINDOW].head;
+			}
+			Node candidate = candidates.peekFirst();
+			Node evict = victim;
+			if (candidate != null && (victim == null
+					|| sketch.frequency(candidate.key) <= sketch.frequency(victim.key))) {
+				evict = candidate;
+			}
+			if (evict == null) {
+				evict = queues[PROBATION].head;
+			}
+			candidates.remove(evict);
+			unlink(evict);
+			evicted.add(evict.key);
+			if (evict != node) {
+				evictions++;
+				evictedBytes += evict.weight;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Records a read of key, whether or not it is stored.
+	 */
+	void access(String key) {
+		if (mode == Mode.NONE) {
+			return;
+		}
+		sketch.increment(key);
+		Node node = nodes.get(key);
+		if (node == null) {
+			return;
+		}
+		if (node.queue == PROBATION) {
+			queues[PROBATION].remove(node);
+			insert(node, PROTECTED);
+			// keep the protected segment within its share, the overflow gets another chance in probation
+			while (queues[PROTECTED].bytes > protectedMax && queues[PROTECTED].head != node) {
+				Node demoted = queues[PROTECTED].head;
+				queues[PROTECTED].remove(demoted);
+				insert(demoted, PROBATION);
+			}
+		} else {
+			queues[node.queue].moveToLast(node);
+		}
+	}
+
+	/**
+	 * @return		weight key was accounted with, -1 if it was not
+	 */
+	long remove(String key) {
+		Node node = nodes.get(key);
+		if (node == null) {
+			return -1;
+		}
+		unlink(node);
+		return node.weight;
+	}
+
+	private void insert(Node node, int queue) {
+		node.queue = queue;
+		queues[queue].addLast(node);
+	}
+
+	private void unlink(Node node) {
+		queues[node.queue].remove(node);
+		nodes.remove(node.key);
+		usedBytes -= node.weight;
+	}
+
+	long usedBytes() {
+		return usedBytes;
+	}
+
+	long evictions() {
+		return evictions;
+	}
+
+	long evictedBytes() {
+		return evictedBytes;
+	}
+}
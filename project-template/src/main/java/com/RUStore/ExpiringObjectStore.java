@@ -0,0 +1,356 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore so objects put with an expiry time are
+ * removed once it passed. A background thread advances a TimingWheel
+ * every tick and removes the objects that came due. Reads check the
+ * expiry time as well, so an object is never returned after it expired,
+ * even if the wheel has not gotten to it yet.
+ *
+ * Expiry times are also passed on to the wrapped store along with the
+ * object, so a DurableObjectStore logs both at once and hands the expiry
+ * time back after a restart. The
+ * server puts this store around all others except a ReplicaObjectStore,
+ * so expired objects are removed through every layer like a REMOVE.
+ * Replicas get the expiry time along with the object, so they stop
+ * serving it on time even before the REMOVE of the primary arrives.
+ *
+ * Mutations of a key are serialized on a lock stripe, so an object that
+ * was removed and put again is never expired by the timer of its
+ * previous version.
+ */
+public class ExpiringObjectStore implements ObjectStore, Closeable {
+
+	private static final long TICK_MILLIS = 10;
+
+	private final ObjectStore inner;
+	private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+	private final TimingWheel wheel;
+	private final ReentrantLock[] stripes;
+	private final Thread expirer;
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder expiredOnAccess = new LongAdder();
+
+	/**
+	 * @param inner		store that holds the objects, expiry times it
+	 *             		recovered are scheduled right away
+	 */
+	public ExpiringObjectStore(ObjectStore inner) {
+		this.inner = inner;
+		this.wheel = new TimingWheel(TICK_MILLIS, System.currentTimeMillis());
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+
+		for (String key : inner.keys()) {
+			long expiresAt = inner.expiresAt(key);
+			if (expiresAt > 0) {
+				schedule(key, expiresAt);
+			}
+		}
+
+		expirer = new Thread(this::expireLoop, "rustore-expiry");
+		expirer.setDaemon(true);
+		expirer.start();
+	}
+
+	private void schedule(String key, long expiresAt) {
+		expiries.put(key, expiresAt);
+		synchronized (wheel) {
+			wheel.add(key, expiresAt);
+			wheel.notify();
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			// an expired object no longer counts as present
+			expireIfDue(key);
+			if (!inner.putIfAbsent(key, data, expiresAt)) {
+				return false;
+			}
+			replaced(key, expiresAt);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			expireIfDue(key);
+			if (!inner.putFileIfAbsent(key, file, expiresAt)) {
+				return false;
+			}
+			replaced(key, expiresAt);
+			return true;
+		} catch (RuntimeException e) {
+			// the store owns the file, even when it fails
+			Files.deleteIfExists(file);
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			long version = inner.put(key, data, expiresAt);
+			replaced(key, expiresAt);
+			return version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version) {
+		return putIfVersion(key, data, version, 0);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			// an expired object no longer counts as present, so only version 0 matches it
+			expireIfDue(key);
+			long stored = inner.putIfVersion(key, data, version, expiresAt);
+			if (stored != 0) {
+				replaced(key, expiresAt);
+			}
+			return stored;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * caller holds the stripe of key and stored the new object along with
+	 * its expiry time, which replaces the one of the old object
+	 */
+	private void replaced(String key, long expiresAt) {
+		expiries.remove(key);
+		if (expiresAt > 0) {
+			schedule(key, expiresAt);
+		}
+	}
+
+	@Override
+	public long version(String key) {
+		return expireOnAccess(key) ? 0 : inner.version(key);
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			expireIfDue(key);
+			if (!inner.expire(key, expiresAt)) {
+				return false;
+			}
+			expiries.remove(key);
+			if (expiresAt > 0) {
+				schedule(key, expiresAt);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return expiries.getOrDefault(key, 0L);
+	}
+
+	/* true if key has an expiry time that passed */
+	private boolean due(String key) {
+		Long expiresAt = expiries.get(key);
+		return expiresAt != null && expiresAt <= System.currentTimeMillis();
+	}
+
+	/* removes key if it expired, called on access so expired objects are never served */
+	private boolean expireOnAccess(String key) {
+		if (!due(key)) {
+			return false;
+		}
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			expireIfDue(key);
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	/* caller holds the stripe of key */
+	private void expireIfDue(String key) {
+		if (due(key)) {
+			expiries.remove(key);
+			if (inner.remove(key)) {
+				expiredOnAccess.increment();
+			}
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return expireOnAccess(key) ? null : inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return expireOnAccess(key) ? null : inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return !expireOnAccess(key) && inner.containsKey(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return expireOnAccess(key) ? null : inner.openFile(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (expireOnAccess(key)) {
+			return false;
+		}
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			expiries.remove(key);
+			return inner.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String[] keys() {
+		// expired objects the wheel has not removed yet are left out
+		return Arrays.stream(inner.keys()).filter(key -> !due(key)).toArray(String[]::new);
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		String[] page = inner.keys(prefix, startAfter, limit);
+		boolean expiredAny = false;
+		for (String key : page) {
+			expiredAny |= expireOnAccess(key);
+		}
+		if (!expiredAny) {
+			return page;
+		}
+		// rare, so the page is simply read again once the expired keys are gone
+		return Arrays.stream(inner.keys(prefix, startAfter, limit)).filter(key -> !due(key)).toArray(String[]::new);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	private void expireLoop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			List<TimingWheel.Timer> due;
+			synchronized (wheel) {
+				try {
+					// an empty wheel sleeps until something is scheduled
+					wheel.wait(wheel.size() == 0 ? 0 : TICK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				due = wheel.advance(System.currentTimeMillis());
+			}
+			for (TimingWheel.Timer timer : due) {
+				expire(timer);
+			}
+		}
+	}
+
+	private void expire(TimingWheel.Timer timer) {
+		ReentrantLock lock = stripe(timer.key);
+		lock.lock();
+		try {
+			// the object may have been removed, or put again with another expiry time
+			if (expiries.remove(timer.key, timer.deadline) && inner.remove(timer.key)) {
+				expired.increment();
+			}
+		} catch (RuntimeException e) {
+			Log.warn("Error expiring %s: %s", timer.key, e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		stats.put("expiry.scheduled", (long) expiries.size());
+		stats.put("expiry.expired", expired.sum());
+		stats.put("expiry.expired_on_access", expiredOnAccess.sum());
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		expirer.interrupt();
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
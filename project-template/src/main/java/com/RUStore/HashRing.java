@@ -0,0 +1,82 @@
+package com.RUStore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring for RUStoreShardedClient. Every node is placed on
+ * a 64 bit ring at a number of virtual node points, and a key belongs to
+ * the node of the first point at or after the hash of the key, wrapping
+ * around. Adding a node only takes over the keys just before its points
+ * and removing one only hands its own keys to the next points, so about
+ * 1/n of the keys move either way; the virtual nodes spread those keys
+ * over all other nodes and even out the share of each node.
+ *
+ * Lookups read an immutable map through a volatile field and never lock.
+ * Nodes are added and removed by copying the map, which is fine since
+ * that is rare.
+ */
+final class HashRing {
+
+	private final int virtualNodes;
+	private volatile TreeMap<Long, String> points = new TreeMap<>();
+
+	HashRing(int virtualNodes) {
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException("virtualNodes must be positive");
+		}
+		this.virtualNodes = virtualNodes;
+	}
+
+	synchronized void add(String node) {
+		TreeMap<Long, String> next = new TreeMap<>(points);
+		for (int i = 0; i < virtualNodes; i++) {
+			// on the rare collision the point keeps its first owner
+			next.putIfAbsent(hash(node + "#" + i), node);
+		}
+		points = next;
+	}
+
+	synchronized void remove(String node) {
+		TreeMap<Long, String> next = new TreeMap<>(points);
+		next.values().removeIf(node::equals);
+		points = next;
+	}
+
+	/**
+	 * @return		node the key belongs to, null if the ring is empty
+	 */
+	String node(String key) {
+		TreeMap<Long, String> ring = points;
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+		return point != null ? point.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @return		nodes on the ring, in no particular order
+	 */
+	List<String> nodes() {
+		return new ArrayList<>(new LinkedHashSet<>(points.values()));
+	}
+
+	/* FNV-1a over the characters, then the MurmurHash3 finalizer so similar keys land far apart */
+	static long hash(String s) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
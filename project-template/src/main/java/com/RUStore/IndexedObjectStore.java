@@ -0,0 +1,191 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore with a sorted index of its keys, so keys
+ * can be listed by prefix and page in time proportional to the page
+ * instead of the store. The index is a ConcurrentSkipListSet; lookups
+ * and listings never lock.
+ *
+ * After every successful mutation the index entry for the key is brought
+ * in line with the wrapped store under a lock stripe. Whichever of two
+ * racing mutations reconciles last sees the final state, so the index
+ * never keeps a removed key or misses a stored one, and no I/O of the
+ * wrapped store happens under the stripe.
+ */
+public class IndexedObjectStore implements ObjectStore, Closeable {
+
+	private final ObjectStore inner;
+	private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+	private final ReentrantLock[] stripes;
+
+	/**
+	 * @param inner		store to index, its current keys are indexed right away
+	 */
+	public IndexedObjectStore(ObjectStore inner) {
+		this.inner = inner;
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+
+		for (String key : inner.keys()) {
+			index.add(key);
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		if (!inner.putIfAbsent(key, data, expiresAt)) {
+			return false;
+		}
+		reconcile(key);
+		return true;
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		if (!inner.putFileIfAbsent(key, file, expiresAt)) {
+			return false;
+		}
+		reconcile(key);
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		long version = inner.put(key, data, expiresAt);
+		reconcile(key);
+		return version;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		return inner.expire(key, expiresAt);
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (!inner.remove(key)) {
+			return false;
+		}
+		reconcile(key);
+		return true;
+	}
+
+	private void reconcile(String key) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (inner.containsKey(key)) {
+				index.add(key);
+			} else {
+				index.remove(key);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String[] keys() {
+		return index.toArray(new String[0]);
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		// start at whichever of the prefix and the cursor comes later
+		NavigableSet<String> tail = startAfter != null && startAfter.compareTo(prefix) >= 0
+				? index.tailSet(startAfter, false)
+				: index.tailSet(prefix, true);
+
+		List<String> page = new ArrayList<>(Math.min(limit, 1024));
+		for (String key : tail) {
+			// keys with the prefix are contiguous, the first one without it ends the listing
+			if (page.size() == limit || !key.startsWith(prefix)) {
+				break;
+			}
+			page.add(key);
+		}
+		return page.toArray(new String[0]);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.RUStore;
+
+/**
+ * Thrown by a memory-bounded ObjectStore when an object cannot be stored
+ * within its budget. The server answers the PUT with status 3, and
+ * RUStoreClient throws it for a SET or CAS that got that status.
+ */
+public class InsufficientSpaceException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public InsufficientSpaceException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,141 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * Decorates a store so every successful PUT and REMOVE invalidates the
+ * key in the near caches of the clients that read it, see
+ * InvalidationTracker. The server puts it just inside any
+ * BoundedObjectStore, so evictions invalidate like any other REMOVE, and
+ * on a replica the changes it applies do as well.
+ */
+public class InvalidatingObjectStore implements ObjectStore, Closeable {
+
+	private final ObjectStore inner;
+	private final InvalidationTracker tracker;
+
+	/**
+	 * @param inner		store that holds the objects
+	 * @param tracker	keys the clients may cache
+	 */
+	InvalidatingObjectStore(ObjectStore inner, InvalidationTracker tracker) {
+		this.inner = inner;
+		this.tracker = tracker;
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		if (!inner.putIfAbsent(key, data, expiresAt)) {
+			return false;
+		}
+		tracker.invalidate(key);
+		return true;
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		if (!inner.putFileIfAbsent(key, file, expiresAt)) {
+			return false;
+		}
+		tracker.invalidate(key);
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		long version = inner.put(key, data, expiresAt);
+		tracker.invalidate(key);
+		return version;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		return inner.expire(key, expiresAt);
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (!inner.remove(key)) {
+			return false;
+		}
+		tracker.invalidate(key);
+		return true;
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		tracker.addStats(stats);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
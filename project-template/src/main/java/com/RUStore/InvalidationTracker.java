@@ -0,0 +1,171 @@
+package com.RUStore;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which client near caches may hold which keys, so they can be
+ * told when a key changes. A client that wants a near cache opens a
+ * second connection with SUBSCRIBE, which turns it into a stream of
+ * invalidations, and binds its main connection to that subscriber with
+ * TRACK. From then on every GET and MGET on the main connection tracks
+ * the keys it reads.
+ *
+ * Keys are tracked before they are read, so a change that the reader
+ * might have missed is always pushed. Like a near cache entry, tracking
+ * lasts until the first change: the key is forgotten once its
+ * invalidation went out, and the next GET tracks it again. Past maxKeys
+ * the tracker invalidates arbitrary keys to stay within bounds.
+ *
+ * Invalidations are queued per subscriber and written by the thread that
+ * serves its connection, so a slow client never holds up a write. If its
+ * queue overflows, the subscriber is told to drop its whole cache.
+ */
+final class InvalidationTracker {
+
+	// push message types
+	static final int PING = 0;
+	static final int KEY = 1;
+	static final int ALL = 2;
+
+	// an idle subscriber is pinged so a client that went away is noticed
+	private static final long PING_MILLIS = 5000;
+	private static final int QUEUE_SIZE = 4096;
+
+	/* the invalidation stream of one client */
+	final class Subscriber {
+		final long id;
+		private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		private volatile boolean overflowed;
+		private volatile boolean closed;
+
+		Subscriber(long id) {
+			this.id = id;
+		}
+
+		void push(String key) {
+			if (!queue.offer(key)) {
+				overflowed = true;
+			}
+		}
+	}
+
+	private final int maxKeys;
+	private final ConcurrentHashMap<String, Set<Subscriber>> tracked = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, Subscriber> subscribers = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final LongAdder invalidations = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+
+	/**
+	 * @param maxKeys	most keys tracked at once
+	 */
+	InvalidationTracker(int maxKeys) {
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * @return		subscriber with that id, null if it is gone
+	 */
+	Subscriber find(long id) {
+		return subscribers.get(id);
+	}
+
+	/* subscriber may cache key from now on */
+	void track(String key, Subscriber subscriber) {
+		if (subscriber.closed) {
+			return;
+		}
+		// added inside the map operation, so a concurrent invalidate either sees the subscriber or runs after it
+		tracked.compute(key, (k, holders) -> {
+			if (holders == null) {
+				holders = ConcurrentHashMap.newKeySet();
+			}
+			holders.add(subscriber);
+			return holders;
+		});
+
+		// whichever key the iterator offers first is given up, its holders simply fetch it again
+		if (tracked.size() > maxKeys) {
+			Iterator<String> victims = tracked.keySet().iterator();
+			if (victims.hasNext()) {
+				invalidate(victims.next());
+			}
+		}
+	}
+
+	/* key changed, every subscriber that may cache it is told */
+	void invalidate(String key) {
+		// taken out atomically, a subscriber tracking it from now on lands in a new set
+		Set<Subscriber> holders = tracked.remove(key);
+		if (holders == null) {
+			return;
+		}
+		for (Subscriber subscriber : holders) {
+			if (!subscriber.closed) {
+				subscriber.push(key);
+				invalidations.increment();
+			}
+		}
+	}
+
+	/**
+	 * Serves a SUBSCRIBE connection until it is closed: answers with
+	 * status 0 and the subscriber id, then writes PING, KEY with the key
+	 * or ALL messages as their type byte and the key.
+	 */
+	void serve(Socket socket, DataOutputStream out) throws IOException {
+		Subscriber subscriber = new Subscriber(ids.incrementAndGet());
+		subscribers.put(subscriber.id, subscriber);
+		try {
+			out.writeInt(0);
+			out.writeLong(subscriber.id);
+			out.flush();
+
+			while (true) {
+				String key;
+				try {
+					key = subscriber.queue.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (subscriber.overflowed) {
+					// some invalidations are lost, only dropping everything is safe
+					subscriber.overflowed = false;
+					subscriber.queue.clear();
+					overflows.increment();
+					out.writeByte(ALL);
+				} else if (key == null) {
+					out.writeByte(PING);
+				} else {
+					do {
+						out.writeByte(KEY);
+						out.writeUTF(key);
+					} while ((key = subscriber.queue.poll()) != null);
+				}
+				out.flush();
+			}
+		} finally {
+			subscriber.closed = true;
+			subscribers.remove(subscriber.id);
+			socket.close();
+		}
+	}
+
+	void addStats(Map<String, Long> stats) {
+		stats.put("tracking.keys", (long) tracked.size());
+		stats.put("tracking.subscribers", (long) subscribers.size());
+		stats.put("tracking.invalidations", invalidations.sum());
+		stats.put("tracking.overflows", overflows.sum());
+	}
+}
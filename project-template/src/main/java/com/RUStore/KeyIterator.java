@@ -0,0 +1,60 @@
+package com.RUStore;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over keys in ascending order, fetching one LISTPAGE at a time
+ * when the previous page runs out. Only the current page is held in
+ * memory, and each request continues after the last key seen, so keys
+ * added or removed meanwhile never cause a key to be returned twice.
+ */
+class KeyIterator implements Iterator<String> {
+
+	/* one page of a listing and whether the server has more after it */
+	static final class Page {
+		final String[] keys;
+		final boolean more;
+
+		Page(String[] keys, boolean more) {
+			this.keys = keys;
+			this.more = more;
+		}
+	}
+
+	/* fetches the page of keys after startAfter, null for the first page */
+	interface PageSource {
+		Page fetch(String startAfter);
+	}
+
+	private final PageSource source;
+	private Page page;
+	private int next;
+
+	KeyIterator(PageSource source) {
+		this.source = source;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (page == null) {
+			page = source.fetch(null);
+		}
+		while (next == page.keys.length) {
+			if (!page.more || page.keys.length == 0) {
+				return false;
+			}
+			page = source.fetch(page.keys[page.keys.length - 1]);
+			next = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.keys[next++];
+	}
+}
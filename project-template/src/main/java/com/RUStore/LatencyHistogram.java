@@ -0,0 +1,96 @@
+package com.RUStore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets. Values
+ * below 32 get a bucket each, and every power of two above that is split
+ * into 32 equal buckets, so any value is reported within about 3% while
+ * the whole range of a long fits in under 2000 counters. Recording is a
+ * single atomic increment, reading walks the buckets.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param value	non-negative value, usually nanoseconds
+	 */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	long mean() {
+		long count = count();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile	between 0 and 1, e.g. 0.99
+	 *
+	 * @return		highest value that falls in the same bucket as the
+	 *        		value at the quantile, 0 if nothing was recorded
+	 */
+	long percentile(double quantile) {
+		long[] snapshot = new long[counts.length()];
+		long total = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestInBucket(i), max());
+			}
+		}
+		return max();
+	}
+
+	static int index(long value) {
+		if (value < SUB_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+	}
+
+	static long highestInBucket(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = (index >>> SUB_BITS) - 1;
+		long lowest = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
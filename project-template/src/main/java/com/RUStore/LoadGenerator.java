@@ -0,0 +1,369 @@
+package com.RUStore;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB-style load generator. Worker threads share a pool of connections
+ * and run a mix of reads, writes and removes against keys picked from a
+ * uniform or zipfian distribution, then report throughput and latency
+ * percentiles per operation. Writes overwrite with SET, so they store a
+ * value whether or not the key exists; reads and removes of a missing key
+ * are counted as misses.
+ *
+ * Without --rate every thread sends its next request as soon as the last
+ * one is answered (closed loop). With --rate requests are scheduled at a
+ * fixed interval and latency is measured from the scheduled time, so a
+ * server that falls behind shows up in the percentiles instead of simply
+ * receiving fewer requests.
+ */
+public class LoadGenerator {
+
+	private static final int READ = 0;
+	private static final int WRITE = 1;
+	private static final int REMOVE = 2;
+	private static final String[] OP_NAMES = { "read", "write", "remove" };
+
+	// distinct values cycled through by writes, sized by the value size distribution
+	private static final int VALUE_POOL = 64;
+
+	/* command line options */
+	static class Options {
+		String host;
+		int port;
+		int threads = 16;
+		int connections;   // defaults to the thread count
+		long durationSeconds = 30;
+		long warmupSeconds = 5;
+		int keys = 100000;
+		boolean zipfian = true;
+		double zipfTheta = 0.99;
+		int[] mix = { 95, 5, 0 };   // read, write, remove weights
+		long minValueSize = 1024;
+		long maxValueSize = 1024;
+		long rate;   // total requests per second, 0 for closed loop
+		boolean preload = true;
+
+		static Options parse(String[] args) {
+			if (args.length < 2) {
+				throw new IllegalArgumentException("Missing host and port");
+			}
+			Options options = new Options();
+			options.host = args[0];
+			options.port = Integer.parseInt(args[1]);
+			for (int i = 2; i < args.length; i++) {
+				String arg = args[i];
+				int eq = arg.indexOf('=');
+				if (!arg.startsWith("--") || eq < 0) {
+					throw new IllegalArgumentException("Bad option: " + arg);
+				}
+				options.set(arg.substring(2, eq), arg.substring(eq + 1));
+			}
+			if (options.connections == 0) {
+				options.connections = options.threads;
+			}
+			return options;
+		}
+
+		private void set(String name, String value) {
+			switch (name) {
+				case "threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "connections":
+					connections = Integer.parseInt(value);
+					break;
+				case "duration":
+					durationSeconds = Long.parseLong(value);
+					break;
+				case "warmup":
+					warmupSeconds = Long.parseLong(value);
+					break;
+				case "keys":
+					keys = Integer.parseInt(value);
+					break;
+				case "distribution":
+					zipfian = "zipfian".equalsIgnoreCase(value);
+					if (!zipfian && !"uniform".equalsIgnoreCase(value)) {
+						throw new IllegalArgumentException("--distribution must be uniform or zipfian");
+					}
+					break;
+				case "zipf-theta":
+					zipfTheta = Double.parseDouble(value);
+					if (zipfTheta <= 0 || zipfTheta >= 1) {
+						throw new IllegalArgumentException("--zipf-theta must be between 0 and 1");
+					}
+					break;
+				case "mix":
+					String[] weights = value.split(":");
+					if (weights.length != 3) {
+						throw new IllegalArgumentException("--mix must be READ:WRITE:REMOVE");
+					}
+					for (int i = 0; i < 3; i++) {
+						mix[i] = Integer.parseInt(weights[i]);
+					}
+					break;
+				case "value-size":
+					int dash = value.indexOf('-');
+					minValueSize = ServerConfig.bytes(name, dash < 0 ? value : value.substring(0, dash));
+					maxValueSize = dash < 0 ? minValueSize : ServerConfig.bytes(name, value.substring(dash + 1));
+					if (maxValueSize < minValueSize || maxValueSize > Integer.MAX_VALUE - 8) {
+						throw new IllegalArgumentException("--value-size range is invalid");
+					}
+					break;
+				case "rate":
+					rate = Long.parseLong(value);
+					break;
+				case "preload":
+					preload = Boolean.parseBoolean(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: --" + name);
+			}
+		}
+
+		static String usage() {
+			return "Usage: java LoadGenerator <host> <port> [options]\n"
+					+ "  --threads=N                  worker threads (default 16)\n"
+					+ "  --connections=N              pooled connections shared by the workers (default threads)\n"
+					+ "  --duration=SECONDS           measured run time (default 30)\n"
+					+ "  --warmup=SECONDS             unmeasured run time before that (default 5)\n"
+					+ "  --keys=N                     size of the key space (default 100000)\n"
+					+ "  --distribution=uniform|zipfian  key popularity (default zipfian)\n"
+					+ "  --zipf-theta=X               zipfian skew (default 0.99)\n"
+					+ "  --mix=READ:WRITE:REMOVE      operation weights (default 95:5:0)\n"
+					+ "  --value-size=BYTES[-BYTES]   fixed or uniformly distributed value size (default 1k)\n"
+					+ "  --rate=N                     open loop target requests per second, 0 for closed loop (default 0)\n"
+					+ "  --preload=true|false         store every key before the run (default true)";
+		}
+	}
+
+	/**
+	 * Zipfian ranks using the method of Gray et al. as in YCSB. Ranks are
+	 * hashed onto the key space so the popular keys are spread out
+	 * instead of being the first few.
+	 */
+	static class Zipfian {
+		private final long items;
+		private final double theta;
+		private final double zetan;
+		private final double alpha;
+		private final double eta;
+
+		Zipfian(long items, double theta) {
+			this.items = items;
+			this.theta = theta;
+			double zeta2 = 1 + Math.pow(0.5, theta);
+			double sum = 0;
+			for (long i = 1; i <= items; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			this.zetan = sum;
+			this.alpha = 1 / (1 - theta);
+			this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		long next(SplittableRandom random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			long rank;
+			if (uz < 1) {
+				rank = 0;
+			} else if (uz < 1 + Math.pow(0.5, theta)) {
+				rank = 1;
+			} else {
+				rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+			}
+			return Long.remainderUnsigned(fnv(rank), items);
+		}
+
+		private static long fnv(long value) {
+			long hash = 0xCBF29CE484222325L;
+			for (int i = 0; i < 8; i++) {
+				hash ^= value & 0xFF;
+				hash *= 0x100000001B3L;
+				value >>>= 8;
+			}
+			return hash;
+		}
+	}
+
+	private final Options options;
+	private final RUStoreClientPool pool;
+	private final Zipfian zipfian;
+	private final byte[][] values = new byte[VALUE_POOL][];
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[OP_NAMES.length];
+	private final LongAdder[] misses = new LongAdder[OP_NAMES.length];
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private volatile boolean measuring;
+	private volatile boolean running = true;
+
+	LoadGenerator(Options options) {
+		this.options = options;
+		this.pool = new RUStoreClientPool(options.host, options.port, options.connections);
+		pool.setMaxWait(TimeUnit.MINUTES.toMillis(1));
+		this.zipfian = options.zipfian ? new Zipfian(options.keys, options.zipfTheta) : null;
+
+		Random random = new Random(42);
+		for (int i = 0; i < VALUE_POOL; i++) {
+			long spread = options.maxValueSize - options.minValueSize;
+			values[i] = new byte[(int) (options.minValueSize + (spread > 0 ? random.nextInt((int) spread + 1) : 0))];
+			random.nextBytes(values[i]);
+		}
+		for (int op = 0; op < latencies.length; op++) {
+			latencies[op] = new LatencyHistogram();
+			misses[op] = new LongAdder();
+		}
+	}
+
+	private static String key(long index) {
+		return "user" + index;
+	}
+
+	private void preload() {
+		long start = System.nanoTime();
+		int batch = 1000;
+		for (int first = 0; first < options.keys; first += batch) {
+			int count = Math.min(batch, options.keys - first);
+			String[] keys = new String[count];
+			byte[][] data = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				keys[i] = key(first + i);
+				data[i] = values[(first + i) % VALUE_POOL];
+			}
+			pool.put(keys, data);
+		}
+		System.out.println("Loaded " + options.keys + " keys in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	private void work(int seed) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int totalWeight = options.mix[READ] + options.mix[WRITE] + options.mix[REMOVE];
+		long interval = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.threads) / options.rate : 0;
+		long next = System.nanoTime();
+
+		while (running) {
+			long scheduled = System.nanoTime();
+			if (interval > 0) {
+				// open loop: wait for our slot, but never skip one we are already late for
+				next += interval;
+				long wait = next - scheduled;
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				scheduled = next;
+			}
+
+			int pick = random.nextInt(totalWeight);
+			int op = pick < options.mix[READ] ? READ : pick < options.mix[READ] + options.mix[WRITE] ? WRITE : REMOVE;
+			String key = key(zipfian != null ? zipfian.next(random) : random.nextInt(options.keys));
+
+			boolean miss;
+			try {
+				switch (op) {
+					case READ:
+						miss = pool.get(key) == null;
+						break;
+					case WRITE:
+						// put would refuse the preloaded keys without storing anything
+						pool.set(key, values[random.nextInt(VALUE_POOL)]);
+						miss = false;
+						break;
+					default:
+						miss = pool.remove(key) == 1;
+						break;
+				}
+			} catch (RuntimeException e) {
+				if (measuring) {
+					errors.increment();
+				}
+				continue;
+			}
+
+			if (measuring) {
+				latencies[op].record(System.nanoTime() - scheduled);
+				if (miss) {
+					misses[op].increment();
+				}
+				completed.increment();
+			}
+		}
+	}
+
+	void run() throws InterruptedException {
+		if (options.preload) {
+			preload();
+		}
+
+		Thread[] workers = new Thread[options.threads];
+		for (int i = 0; i < workers.length; i++) {
+			int seed = i;
+			workers[i] = new Thread(() -> work(seed), "load-" + i);
+			workers[i].start();
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds));
+		measuring = true;
+		long start = System.nanoTime();
+
+		// report progress every five seconds
+		long last = 0;
+		for (long elapsed = 0; elapsed < options.durationSeconds; ) {
+			long step = Math.min(5, options.durationSeconds - elapsed);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(step));
+			elapsed += step;
+			long done = completed.sum();
+			System.out.println("[" + elapsed + "s] " + (done - last) / step + " ops/s");
+			last = done;
+		}
+
+		measuring = false;
+		long nanos = System.nanoTime() - start;
+		running = false;
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		pool.close();
+		report(nanos);
+	}
+
+	private void report(long nanos) {
+		double seconds = nanos / 1e9;
+		long total = completed.sum();
+		System.out.printf("%nOperations: %d in %.1f s, %.0f ops/s, %d errors%n", total, seconds, total / seconds, errors.sum());
+		System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "op", "count", "misses", "p50(us)", "p99(us)",
+				"p999(us)", "max(us)");
+		for (int op = 0; op < latencies.length; op++) {
+			LatencyHistogram histogram = latencies[op];
+			if (histogram.count() == 0) {
+				continue;
+			}
+			System.out.printf("%-8s %10d %10d %10.1f %10.1f %10.1f %10.1f%n", OP_NAMES[op], histogram.count(),
+					misses[op].sum(), histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+					histogram.percentile(0.999) / 1e3, histogram.max() / 1e3);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Options options;
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(Options.usage());
+			return;
+		}
+		System.out.println("Running " + Arrays.toString(options.mix) + " read/write/remove mix on "
+				+ options.keys + " " + (options.zipfian ? "zipfian" : "uniform") + " keys with "
+				+ options.threads + " threads over " + options.connections + " connections"
+				+ (options.rate > 0 ? " at " + options.rate + " ops/s" : ""));
+		new LoadGenerator(options).run();
+	}
+}
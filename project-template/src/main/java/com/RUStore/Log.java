@@ -0,0 +1,119 @@
+package com.RUStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous, level gated logger for the server. A call below the
+ * configured level returns after one comparison; an enabled call only
+ * queues the format string and its arguments, and a background thread
+ * formats and prints them. If the queue is full the message is dropped
+ * and counted instead of making a request wait for the console.
+ *
+ * If the last argument is a Throwable its stack trace is printed after
+ * the message.
+ */
+final class Log {
+
+	enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	/* a message waiting to be printed */
+	private static final class Entry {
+		final Level level;
+		final String format;
+		final Object[] args;
+
+		Entry(Level level, String format, Object[] args) {
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(8192);
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile Level threshold = Level.INFO;
+
+	static {
+		Thread writer = new Thread(Log::writeLoop, "rustore-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Log() {
+	}
+
+	static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	static boolean enabled(Level level) {
+		return level.ordinal() <= threshold.ordinal();
+	}
+
+	static void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	static void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	static void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	/**
+	 * @return		number of messages dropped because the queue was full
+	 */
+	static long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Prints everything still queued. Called on shutdown, since the
+	 * writer thread dies with the JVM.
+	 */
+	static void flush() {
+		List<Entry> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		for (Entry entry : remaining) {
+			print(entry);
+		}
+		System.out.flush();
+	}
+
+	private static void log(Level level, String format, Object[] args) {
+		if (enabled(level) && !queue.offer(new Entry(level, format, args))) {
+			dropped.increment();
+		}
+	}
+
+	private static void writeLoop() {
+		while (true) {
+			try {
+				print(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				// a bad format string must not kill the writer
+				System.out.println("[ERROR] Could not log message: " + e);
+			}
+		}
+	}
+
+	private static void print(Entry entry) {
+		System.out.println("[" + entry.level + "] " + String.format(entry.format, entry.args));
+		if (entry.args.length > 0 && entry.args[entry.args.length - 1] instanceof Throwable) {
+			((Throwable) entry.args[entry.args.length - 1]).printStackTrace(System.out);
+		}
+	}
+}
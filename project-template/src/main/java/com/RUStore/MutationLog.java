@@ -0,0 +1,578 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of PUT, REMOVE and EXPIRE records, split into numbered
+ * segment files (segment-00000000000000000001.log, ...). Only the newest
+ * segment is written to; older segments are sealed and may be rewritten
+ * by compact().
+ *
+ * Record layout:
+ *   length    4 bytes, size of everything after this field
+ *   crc       4 bytes, CRC32 of type, key length, key and value
+ *   type      1 byte, PUT, REMOVE or EXPIRE
+ *   keyLength 2 bytes
+ *   key       UTF-8 bytes
+ *   value     remaining bytes (empty for REMOVE, the 8 byte expiry time
+ *             for EXPIRE)
+ *
+ * Positions handed out by append() are segment id << 32 | end offset, so
+ * they grow monotonically across segments and can be passed to sync().
+ */
+public class MutationLog implements Closeable {
+
+	/* when appended records are forced to disk */
+	public enum SyncPolicy {
+		ALWAYS,  // every append is forced before it is acknowledged
+		GROUP,   // appends wait for a shared force issued every N ms
+		OS       // the operating system decides when to write back
+	}
+
+	public static final byte PUT = 1;
+	public static final byte REMOVE = 2;
+	public static final byte EXPIRE = 3;
+
+	static final int HEADER = 4 + 4 + 1 + 2;
+	private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+	/* where a record lives on disk */
+	public static final class Location {
+		public final long segment;
+		public final int offset;
+		public final int length;
+
+		Location(long segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return		log position right after this record
+		 */
+		public long end() {
+			return (segment << 32) | (offset + length);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Location)) {
+				return false;
+			}
+			Location other = (Location) o;
+			return segment == other.segment && offset == other.offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(segment) * 31 + offset;
+		}
+	}
+
+	/* receives records in log order during replay */
+	public interface RecordVisitor {
+		void record(byte type, String key, ByteBuffer value, Location location);
+	}
+
+	/* decides during compaction which records are still needed */
+	public interface CompactionFilter {
+		boolean keep(byte type, String key, Location location);
+
+		void moved(byte type, String key, Location from, Location to);
+	}
+
+	private static final class Segment {
+		final long id;
+		final Path path;
+		final AtomicLong deadBytes = new AtomicLong();
+		volatile long size;
+
+		Segment(long id, Path path, long size) {
+			this.id = id;
+			this.path = path;
+			this.size = size;
+		}
+	}
+
+	private final Path dir;
+	private final int segmentSize;
+	private final SyncPolicy policy;
+
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private Segment active;
+	private FileChannel activeChannel;
+	private volatile long writePosition;
+
+	private final Object syncLock = new Object();
+	private long durablePosition;
+	private IOException syncFailure;
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * Opens the log stored in dir, creating it if necessary. Call replay()
+	 * before appending so a torn tail from a crash is cut off.
+	 *
+	 * @param dir				directory holding the segment files
+	 * @param segmentSize		size at which a new segment is started
+	 * @param policy			when appends are forced to disk
+	 * @param groupCommitMillis	interval between forces in GROUP mode
+	 */
+	public MutationLog(Path dir, int segmentSize, SyncPolicy policy, long groupCommitMillis) throws IOException {
+		this.dir = dir;
+		this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+		this.policy = policy;
+
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(".compact")) {
+					// leftover from a compaction that never finished
+					Files.delete(file);
+				} else if (name.startsWith("segment-") && name.endsWith(".log")) {
+					long id = Long.parseLong(name.substring(8, name.length() - 4));
+					segments.put(id, new Segment(id, file, Files.size(file)));
+				}
+			}
+		}
+
+		if (policy == SyncPolicy.GROUP) {
+			flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+				Thread t = new Thread(task, "rustore-log-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(this::groupCommit,
+					groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads every segment through a memory mapping and hands each valid
+	 * record to visitor, oldest first. A record that is cut short or fails
+	 * its checksum ends the scan of the newest segment, which is then
+	 * truncated to the last good record. The value buffers passed to the
+	 * visitor stay readable after replay() returns.
+	 */
+	public synchronized void replay(RecordVisitor visitor) throws IOException {
+		for (Segment segment : segments.values()) {
+			boolean newest = segment.id == segments.lastKey();
+			int valid = scan(segment, visitor);
+			if (valid < segment.size) {
+				if (!newest) {
+					throw new IOException("Corrupt record in sealed segment " + segment.path + " at offset " + valid);
+				}
+				Log.warn("Truncating torn log tail of %s at offset %d", segment.path, valid);
+				try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+					channel.truncate(valid);
+				}
+				segment.size = valid;
+			}
+		}
+
+		if (segments.isEmpty()) {
+			roll(1);
+		} else {
+			Segment last = segments.lastEntry().getValue();
+			active = last;
+			activeChannel = FileChannel.open(last.path, StandardOpenOption.WRITE);
+			activeChannel.position(last.size);
+			writePosition = (last.id << 32) | last.size;
+		}
+		durablePosition = writePosition;
+	}
+
+	private static MappedByteBuffer map(Segment segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+		}
+	}
+
+	private int scan(Segment segment, RecordVisitor visitor) throws IOException {
+		return scan(map(segment), segment.id, visitor);
+	}
+
+	private static int scan(MappedByteBuffer map, long id, RecordVisitor visitor) {
+		CRC32 crc = new CRC32();
+		int offset = 0;
+		while (map.remaining() >= HEADER) {
+			int length = map.getInt(offset);
+			if (length < HEADER - 4 || length > map.limit() - offset - 4) {
+				break;
+			}
+			int checksum = map.getInt(offset + 4);
+
+			ByteBuffer body = map.duplicate();
+			body.position(offset + 8).limit(offset + 4 + length);
+			crc.reset();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			byte type = body.get();
+			int keyLength = body.getShort() & 0xFFFF;
+			if (keyLength > body.remaining()) {
+				break;
+			}
+			byte[] keyBytes = new byte[keyLength];
+			body.get(keyBytes);
+
+			visitor.record(type, new String(keyBytes, StandardCharsets.UTF_8), body.slice(),
+					new Location(id, offset, length + 4));
+			offset += length + 4;
+			map.position(offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * Appends a record. The record is handed to the operating system but
+	 * not necessarily durable; pass the returned location's end() to
+	 * sync() before acknowledging the mutation.
+	 *
+	 * @return		location of the new record
+	 */
+	public Location append(byte type, String key, byte[] value) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int valueLength = value == null ? 0 : value.length;
+
+		ByteBuffer header = header(type, keyBytes, valueLength);
+		CRC32 crc = checksum(header);
+		if (valueLength > 0) {
+			crc.update(value);
+		}
+		seal(header, crc);
+		ByteBuffer[] record = valueLength > 0
+				? new ByteBuffer[] { header, ByteBuffer.wrap(value) }
+				: new ByteBuffer[] { header };
+
+		synchronized (this) {
+			int offset = reserve(header.remaining() + valueLength);
+			while (header.hasRemaining() || record[record.length - 1].hasRemaining()) {
+				activeChannel.write(record);
+			}
+			return advance(offset, header.capacity() + valueLength);
+		}
+	}
+
+	/**
+	 * Appends a PUT record whose value is the contents of file, copying it
+	 * into the log with transferTo instead of through the heap.
+	 *
+	 * @return		location of the new record
+	 */
+	public Location append(String key, Path file) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+		try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = source.size();
+			if (size > Integer.MAX_VALUE - HEADER - keyBytes.length) {
+				throw new IOException("Object too large for the mutation log: " + size + " bytes");
+			}
+			int valueLength = (int) size;
+
+			// checksum the file before taking the log lock
+			ByteBuffer header = header(PUT, keyBytes, valueLength);
+			CRC32 crc = checksum(header);
+			ByteBuffer chunk = ByteBuffer.allocateDirect(64 << 10);
+			long read = 0;
+			while (read < size) {
+				chunk.clear();
+				int n = source.read(chunk, read);
+				if (n < 0) {
+					throw new IOException("File shrank while appending to the mutation log: " + file);
+				}
+				chunk.flip();
+				crc.update(chunk);
+				read += n;
+			}
+			seal(header, crc);
+
+			synchronized (this) {
+				int offset = reserve(header.remaining() + valueLength);
+				while (header.hasRemaining()) {
+					activeChannel.write(header);
+				}
+				long copied = 0;
+				while (copied < size) {
+					copied += source.transferTo(copied, size - copied, activeChannel);
+				}
+				return advance(offset, header.capacity() + valueLength);
+			}
+		}
+	}
+
+	/* builds everything in front of the value, the crc is filled in by seal() */
+	private static ByteBuffer header(byte type, byte[] keyBytes, int valueLength) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER + keyBytes.length);
+		header.putInt(HEADER - 4 + keyBytes.length + valueLength).putInt(0)
+				.put(type).putShort((short) keyBytes.length).put(keyBytes);
+		return header;
+	}
+
+	/* starts the record checksum with type and key, the caller adds the value */
+	private static CRC32 checksum(ByteBuffer header) {
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 8, header.position() - 8);
+		return crc;
+	}
+
+	private static void seal(ByteBuffer header, CRC32 crc) {
+		header.putInt(4, (int) crc.getValue());
+		header.flip();
+	}
+
+	/* caller holds the log lock, returns the offset the record starts at */
+	private int reserve(int length) throws IOException {
+		if (active.size > 0 && active.size + length > segmentSize) {
+			roll(active.id + 1);
+		}
+		return (int) active.size;
+	}
+
+	/* caller holds the log lock */
+	private Location advance(int offset, int length) {
+		active.size += length;
+		writePosition = (active.id << 32) | active.size;
+		return new Location(active.id, offset, length);
+	}
+
+	/**
+	 * Blocks until everything up to position is durable according to the
+	 * sync policy. Once a force failed, every later sync throws: the
+	 * kernel may have dropped the dirty pages, so a later force that
+	 * succeeds proves nothing about records written before it.
+	 */
+	public void sync(long position) throws IOException {
+		if (policy == SyncPolicy.OS) {
+			return;
+		}
+
+		synchronized (syncLock) {
+			checkSynced();
+			if (policy == SyncPolicy.ALWAYS) {
+				// whoever gets here first forces for everyone that appended before it
+				if (durablePosition < position) {
+					force();
+				}
+				return;
+			}
+
+			while (durablePosition < position) {
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for group commit", e);
+				}
+				checkSynced();
+			}
+		}
+	}
+
+	/* caller holds syncLock */
+	private void checkSynced() throws IOException {
+		if (syncFailure != null) {
+			throw new IOException("Mutation log could not be forced to disk", syncFailure);
+		}
+	}
+
+	private void groupCommit() {
+		try {
+			synchronized (syncLock) {
+				if (durablePosition < writePosition) {
+					force();
+					syncLock.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Error forcing mutation log: %s", e.getMessage());
+			synchronized (syncLock) {
+				// wake the writers waiting for this commit so they fail instead of hanging
+				syncLock.notifyAll();
+			}
+		}
+	}
+
+	/* caller holds syncLock */
+	private void force() throws IOException {
+		FileChannel channel;
+		long position;
+		synchronized (this) {
+			channel = activeChannel;
+			position = writePosition;
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// roll sealed the segment in the meantime, and forced it before closing it
+		} catch (IOException e) {
+			syncFailure = e;
+			throw e;
+		}
+		durablePosition = position;
+	}
+
+	/* caller holds the log lock */
+	private void roll(long id) throws IOException {
+		if (activeChannel != null) {
+			// the sealed segment must be durable before positions move past it
+			if (policy != SyncPolicy.OS) {
+				activeChannel.force(false);
+			}
+			activeChannel.close();
+		}
+		Path path = dir.resolve(String.format("segment-%020d.log", id));
+		activeChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		active = new Segment(id, path, 0);
+		segments.put(id, active);
+		writePosition = id << 32;
+	}
+
+	/**
+	 * Records that a record in a segment is no longer needed, so the
+	 * compactor knows how much space it can reclaim.
+	 */
+	public void markDead(Location location) {
+		Segment segment;
+		synchronized (this) {
+			segment = segments.get(location.segment);
+		}
+		if (segment != null) {
+			segment.deadBytes.addAndGet(location.length);
+		}
+	}
+
+	/**
+	 * @return		ids of sealed segments whose dead bytes make up at least
+	 *        		ratio of their size, oldest first
+	 */
+	public synchronized List<Long> compactionCandidates(double ratio) {
+		List<Long> ids = new ArrayList<>();
+		for (Segment segment : segments.values()) {
+			if (segment != active && segment.deadBytes.get() >= segment.size * ratio) {
+				ids.add(segment.id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Rewrites a sealed segment keeping only the records filter accepts.
+	 * The new file replaces the old one atomically, and an empty result
+	 * deletes the segment altogether. Record order is preserved.
+	 */
+	public void compact(long id, CompactionFilter filter) throws IOException {
+		Segment segment;
+		boolean oldest;
+		long dead;
+		synchronized (this) {
+			segment = segments.get(id);
+			if (segment == null || segment == active) {
+				return;
+			}
+			oldest = segments.firstKey() == id;
+			// records marked dead from here on may have been copied, they stay counted
+			dead = segment.deadBytes.get();
+		}
+
+		Path temp = dir.resolve(segment.path.getFileName() + ".compact");
+		List<Byte> types = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+		List<Location> from = new ArrayList<>();
+		List<Location> to = new ArrayList<>();
+		long[] written = { 0 };
+
+		MappedByteBuffer map = map(segment);
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			scan(map, id, (type, key, value, location) -> {
+				// tombstones only matter while an older segment may still hold the PUT
+				boolean keep = type == REMOVE ? !oldest && filter.keep(type, key, location)
+						: filter.keep(type, key, location);
+				if (!keep) {
+					return;
+				}
+				try {
+					ByteBuffer record = map.duplicate();
+					record.position(location.offset).limit(location.offset + location.length);
+					int offset = (int) written[0];
+					while (record.hasRemaining()) {
+						written[0] += out.write(record);
+					}
+					types.add(type);
+					keys.add(key);
+					from.add(location);
+					to.add(new Location(id, offset, location.length));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			out.force(true);
+		} catch (UncheckedIOException e) {
+			Files.deleteIfExists(temp);
+			throw e.getCause();
+		}
+
+		synchronized (this) {
+			if (written[0] == 0) {
+				Files.delete(temp);
+				Files.delete(segment.path);
+				segments.remove(id);
+			} else {
+				Files.move(temp, segment.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				segment.size = written[0];
+				segment.deadBytes.addAndGet(-dead);
+			}
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			filter.moved(types.get(i), keys.get(i), from.get(i), to.get(i));
+		}
+	}
+
+	/**
+	 * @return		total bytes held by all segments
+	 */
+	public synchronized long sizeOnDisk() {
+		long total = 0;
+		for (Segment segment : segments.values()) {
+			total += segment.size;
+		}
+		return total;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdownNow();
+		}
+		synchronized (this) {
+			if (activeChannel != null) {
+				activeChannel.force(false);
+				activeChannel.close();
+				activeChannel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.RUStore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of values inside RUStoreClient. Entries are dropped
+ * when the server pushes an invalidation for their key, see
+ * InvalidationTracker.
+ *
+ * An invalidation can overtake the GET response it concerns, since it
+ * comes over another connection. So a GET first reserves its key with a
+ * placeholder and only caches the value if the placeholder is still
+ * there once the response arrived; an invalidation in between removes it
+ * and the value is used once without being cached.
+ *
+ * The invalidation reader runs on its own thread, so every method locks
+ * the cache.
+ */
+final class NearCache {
+
+	// rough heap cost of an entry on top of its key and value
+	private static final int ENTRY_OVERHEAD = 64;
+
+	/* a cached value, null while the GET that reserved it is in flight */
+	private static final class Entry {
+		byte[] value;
+	}
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private boolean enabled = true;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	NearCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return		cached value, shared with every other caller, null on a
+	 *        		miss
+	 */
+	synchronized byte[] get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.value == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.value;
+	}
+
+	/**
+	 * Reserves key for a GET that is about to be sent.
+	 *
+	 * @return		token to hand to fill, null if the value will not be
+	 *        		cached
+	 */
+	synchronized Object reserve(String key) {
+		if (!enabled) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Caches the value a GET returned, unless key was invalidated since
+	 * it was reserved.
+	 *
+	 * @param token		what reserve returned
+	 * @param value		value from the server, null if key doesn't exist
+	 */
+	synchronized void fill(String key, Object token, byte[] value) {
+		if (token == null || entries.get(key) != token) {
+			return;
+		}
+		Entry entry = (Entry) token;
+		if (value == null || cost(key, value) > maxBytes) {
+			remove(key);
+			return;
+		}
+		if (entry.value == null) {
+			entry.value = value;
+			bytes += cost(key, value);
+		}
+
+		// the least recently used values make room, pending reservations are dropped with them
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<String, Entry> e = eldest.next();
+			if (e.getValue().value != null) {
+				bytes -= cost(e.getKey(), e.getValue().value);
+			}
+			eldest.remove();
+		}
+	}
+
+	private static long cost(String key, byte[] value) {
+		return 2L * key.length() + value.length + ENTRY_OVERHEAD;
+	}
+
+	/* the server changed key, or this client did */
+	synchronized void invalidate(String key) {
+		if (remove(key)) {
+			invalidations.increment();
+		}
+	}
+
+	private boolean remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null && entry.value != null) {
+			bytes -= cost(key, entry.value);
+		}
+		return entry != null;
+	}
+
+	/* drops everything, e.g. after invalidations were lost */
+	synchronized void clear() {
+		invalidations.add(entries.size());
+		entries.clear();
+		bytes = 0;
+	}
+
+	/* stops caching for good once invalidations can no longer be received */
+	synchronized void disable() {
+		enabled = false;
+		clear();
+	}
+
+	synchronized boolean enabled() {
+		return enabled;
+	}
+
+	void addStats(Map<String, Long> stats) {
+		stats.put("near_cache.hits", hits.sum());
+		stats.put("near_cache.misses", misses.sum());
+		stats.put("near_cache.invalidations", invalidations.sum());
+		synchronized (this) {
+			stats.put("near_cache.entries", (long) entries.size());
+			stats.put("near_cache.bytes", bytes);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Storage backend used by RUStoreServer. Implementations are shared by
+ * every ClientHandler thread and must be safe for concurrent use; each
+ * operation is expected to be atomic and resolve the key in a single
+ * lookup.
+ */
+public interface ObjectStore {
+
+	/**
+	 * Stores data under key unless the key is already present.
+	 *
+	 * @param key	unique identifier for the object
+	 * @param data	object data
+	 *
+	 * @return		true if the object was stored,
+	 *        		false if the key already exists
+	 */
+	boolean putIfAbsent(String key, byte[] data);
+
+	/**
+	 * Stores the contents of a file under key unless the key is already
+	 * present. Used for uploads too large to buffer in memory; stores
+	 * that keep objects on disk can adopt the file instead of reading it.
+	 * The store takes ownership of the file and deletes or moves it.
+	 *
+	 * @param key	unique identifier for the object
+	 * @param file	temporary file holding the object data
+	 *
+	 * @return		true if the object was stored,
+	 *        		false if the key already exists
+	 */
+	default boolean putFileIfAbsent(String key, Path file) throws IOException {
+		try {
+			return !containsKey(key) && putIfAbsent(key, Files.readAllBytes(file));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Stores data under key unless the key is already present, and lets
+	 * it expire at the given time. See ExpiringObjectStore. Decorators
+	 * pass the expiry time on with the object, so a store that persists
+	 * both can write them at once.
+	 *
+	 * @param key		unique identifier for the object
+	 * @param data		object data
+	 * @param expiresAt	expiry time in epoch milliseconds, 0 for never
+	 *
+	 * @return		true if the object was stored,
+	 *        		false if the key already exists
+	 */
+	default boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		return putIfAbsent(key, data) && (expiresAt == 0 || expire(key, expiresAt));
+	}
+
+	/**
+	 * Like putFileIfAbsent(key, file), letting the object expire at the
+	 * given time.
+	 *
+	 * @param key		unique identifier for the object
+	 * @param file		temporary file holding the object data
+	 * @param expiresAt	expiry time in epoch milliseconds, 0 for never
+	 *
+	 * @return		true if the object was stored,
+	 *        		false if the key already exists
+	 */
+	default boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		return putFileIfAbsent(key, file) && (expiresAt == 0 || expire(key, expiresAt));
+	}
+
+	/**
+	 * Stores data under key, replacing any object stored there. The
+	 * replacement is atomic: readers see either the old or the new object,
+	 * never neither. The new object does not keep the expiry time of the
+	 * old one.
+	 *
+	 * @param key	unique identifier for the object
+	 * @param data	object data
+	 *
+	 * @return		version of the new object, 0 if the store doesn't keep
+	 *        		versions
+	 */
+	long put(String key, byte[] data);
+
+	/**
+	 * Like put(key, data), letting the object expire at the given time.
+	 *
+	 * @param key		unique identifier for the object
+	 * @param data		object data
+	 * @param expiresAt	expiry time in epoch milliseconds, 0 for never
+	 *
+	 * @return		version of the new object, 0 if the store doesn't keep
+	 *        		versions
+	 */
+	default long put(String key, byte[] data, long expiresAt) {
+		long version = put(key, data);
+		if (expiresAt != 0) {
+			expire(key, expiresAt);
+		}
+		return version;
+	}
+
+	/**
+	 * Stores data under key if the object stored there has the given
+	 * version, see VersionedObjectStore. Decorators pass the call on to
+	 * the store they wrap.
+	 *
+	 * The default checks version(key) first, so in a store that doesn't
+	 * keep versions only version 0 can match, and the key must not exist.
+	 * It is not atomic; stores that keep versions override it.
+	 *
+	 * @param key		unique identifier for the object
+	 * @param data		object data
+	 * @param version	version the stored object must have, 0 if the key
+	 *               	must not exist
+	 *
+	 * @return		version of the new object, at least 1, 0 if the stored
+	 *        		version differs
+	 */
+	default long putIfVersion(String key, byte[] data, long version) {
+		if (version(key) != version) {
+			return 0;
+		}
+		if (version != 0) {
+			return Math.max(put(key, data), 1);
+		}
+		return putIfAbsent(key, data) ? Math.max(version(key), 1) : 0;
+	}
+
+	/**
+	 * Like putIfVersion(key, data, version), letting the object expire at
+	 * the given time.
+	 *
+	 * @param key		unique identifier for the object
+	 * @param data		object data
+	 * @param version	version the stored object must have, 0 if the key
+	 *               	must not exist
+	 * @param expiresAt	expiry time in epoch milliseconds, 0 for never
+	 *
+	 * @return		version of the new object, 0 if the stored version
+	 *        		differs
+	 */
+	default long putIfVersion(String key, byte[] data, long version, long expiresAt) {
+		long stored = putIfVersion(key, data, version);
+		if (stored != 0 && expiresAt != 0) {
+			expire(key, expiresAt);
+		}
+		return stored;
+	}
+
+	/**
+	 * Returns the version of an object. Read it before the object itself:
+	 * a change that lands in between then shows as a newer object with an
+	 * older version, which only makes a following putIfVersion fail.
+	 *
+	 * @param key	key associated with the object
+	 *
+	 * @return		version of the object, 0 if the key doesn't exist or
+	 *        		the store doesn't keep versions
+	 */
+	default long version(String key) {
+		return 0;
+	}
+
+	/**
+	 * Records when an object expires. Only ExpiringObjectStore acts on
+	 * it; stores that persist objects persist the expiry time as well so
+	 * it survives a restart, decorators pass the call on to the store
+	 * they wrap.
+	 *
+	 * @param key		key associated with the object
+	 * @param expiresAt	expiry time in epoch milliseconds, 0 for never
+	 *
+	 * @return		true if the key exists
+	 */
+	default boolean expire(String key, long expiresAt) {
+		return containsKey(key);
+	}
+
+	/**
+	 * @param key	key associated with the object
+	 *
+	 * @return		expiry time recorded with expire, 0 if none or the key
+	 *        		doesn't exist
+	 */
+	default long expiresAt(String key) {
+		return 0;
+	}
+
+	/**
+	 * @param key	key associated with the object
+	 *
+	 * @return		object data, null if the key doesn't exist
+	 */
+	byte[] get(String key);
+
+	/**
+	 * Returns an object in the form the store keeps it, which may be
+	 * compressed (see ValueCodec), so it can be sent to clients that
+	 * inflate it themselves. Decorators pass the call on to the store
+	 * they wrap.
+	 *
+	 * @param key	key associated with the object
+	 *
+	 * @return		stored form of the object data, null if the key
+	 *        		doesn't exist
+	 */
+	default byte[] getStored(String key) {
+		byte[] data = get(key);
+		return data == null ? null : ValueCodec.escape(data);
+	}
+
+	/**
+	 * Looks up stored content by its SHA-256, so a client can link a key
+	 * to it without uploading it again. Only stores that deduplicate
+	 * values can answer; decorators pass the call on to the store they
+	 * wrap.
+	 *
+	 * @param hash	SHA-256 of the object data
+	 *
+	 * @return		object data, null if no stored object has that hash
+	 */
+	default byte[] getByHash(byte[] hash) {
+		return null;
+	}
+
+	/**
+	 * @param key	key associated with the object
+	 *
+	 * @return		true if an object is stored under key
+	 */
+	default boolean containsKey(String key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Opens an object that is kept in a file so it can be sent with
+	 * FileChannel.transferTo instead of being copied onto the heap.
+	 *
+	 * @param key	key associated with the object
+	 *
+	 * @return		channel the caller must close, null if the object is
+	 *        		not file backed or doesn't exist
+	 */
+	default FileChannel openFile(String key) throws IOException {
+		return null;
+	}
+
+	/**
+	 * @param key	key associated with the object
+	 *
+	 * @return		true if the object was removed,
+	 *        		false if the key doesn't exist
+	 */
+	boolean remove(String key);
+
+	/**
+	 * @return		snapshot of the keys currently stored
+	 */
+	String[] keys();
+
+	/**
+	 * Lists keys in ascending order, one page at a time. This default
+	 * sorts a full snapshot; stores with a sorted index should override it.
+	 *
+	 * @param prefix		only keys starting with prefix, "" for all
+	 * @param startAfter	only keys greater than this, null to start at
+	 *                  	the first key
+	 * @param limit			maximum number of keys to return
+	 *
+	 * @return		matching keys, sorted
+	 */
+	default String[] keys(String prefix, String startAfter, int limit) {
+		return Arrays.stream(keys())
+				.filter(key -> key.startsWith(prefix) && (startAfter == null || key.compareTo(startAfter) > 0))
+				.sorted()
+				.limit(limit)
+				.toArray(String[]::new);
+	}
+
+	/**
+	 * @return		number of objects currently stored
+	 */
+	int size();
+
+	/**
+	 * Adds implementation specific metrics to the STATS response.
+	 * Decorators pass the call on to the store they wrap.
+	 *
+	 * @param stats	metric values by name
+	 */
+	default void addStats(Map<String, Long> stats) {
+	}
+}
@@ -0,0 +1,16 @@
+package com.RUStore;
+
+/**
+ * Thrown by RUStoreClient when the server refuses an object larger than
+ * its --max-object-size, status 8 on the wire. Nothing was stored and the
+ * connection stays usable, but the same object will be refused again by
+ * that server.
+ */
+public class ObjectTooLargeException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ObjectTooLargeException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,130 @@
+package com.RUStore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Object store that keeps values in off-heap slabs. The map only holds a
+ * long handle per key, so heap usage depends on the number of keys and
+ * not on the size of the data.
+ *
+ * Slots are reused as soon as a value is removed, so a GET must never
+ * copy out of a slot that is being freed. Keys are therefore spread over
+ * a fixed set of read/write locks: GETs share their stripe, while REMOVE
+ * takes it exclusively and frees the slot only after in-flight reads of
+ * that key are done.
+ */
+public class OffHeapObjectStore implements ObjectStore {
+
+	private final ConcurrentHashMap<String, Long> handles = new ConcurrentHashMap<>();
+	private final SlabAllocator allocator;
+	private final ReentrantReadWriteLock[] stripes;
+
+	/**
+	 * @param slabSize	size of each off-heap slab in bytes
+	 */
+	public OffHeapObjectStore(int slabSize) {
+		this.allocator = new SlabAllocator(slabSize);
+
+		// power of two so a stripe can be picked with a mask
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantReadWriteLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		if (handles.containsKey(key)) {
+			return false;
+		}
+
+		// copy off-heap first, give the slot back if another PUT won the race
+		long handle = allocator.allocate(data);
+		if (handles.putIfAbsent(key, handle) == null) {
+			return true;
+		}
+		allocator.free(handle);
+		return false;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		long handle = allocator.allocate(data);
+		ReentrantReadWriteLock.WriteLock lock = stripe(key).writeLock();
+		lock.lock();
+		try {
+			// the old slot is freed like on REMOVE, once no GET is copying out of it
+			Long previous = handles.put(key, handle);
+			if (previous != null) {
+				allocator.free(previous);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return 0;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		ReentrantReadWriteLock.ReadLock lock = stripe(key).readLock();
+		lock.lock();
+		try {
+			Long handle = handles.get(key);
+			return handle == null ? null : allocator.read(handle);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(String key) {
+		ReentrantReadWriteLock.WriteLock lock = stripe(key).writeLock();
+		lock.lock();
+		try {
+			Long handle = handles.remove(key);
+			if (handle == null) {
+				return false;
+			}
+			allocator.free(handle);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return handles.containsKey(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return handles.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		stats.put("offheap.used_bytes", allocator.usedBytes());
+		stats.put("offheap.reserved_bytes", allocator.reservedBytes());
+	}
+
+	@Override
+	public int size() {
+		return handles.size();
+	}
+
+	/**
+	 * @return		allocator backing this store, for memory accounting
+	 */
+	public SlabAllocator allocator() {
+		return allocator;
+	}
+
+	private ReentrantReadWriteLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+}
@@ -0,0 +1,252 @@
+package com.RUStore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wire protocol constants shared by the server and the clients.
+ *
+ * Version 1 sends every command as a writeUTF string. Version 2 replaces
+ * it with a frame header of a one byte opcode and an int payload length,
+ * followed by the same fields version 1 sends after the command string.
+ * A PUTSTREAM payload only covers the key, its chunks are framed on their
+ * own. Responses are unchanged.
+ *
+ * A version 2 client opens the connection with MAGIC and the highest
+ * version it speaks, and the server answers with the version both sides
+ * will use. MAGIC can never start a version 1 request since no command
+ * string is that long, so version 1 clients keep working unchanged.
+ *
+ * Version 3 adds a byte of optional features to the handshake. Once both
+ * sides agreed on version 3, the client sends the features it would like
+ * and the server answers with the ones it agrees to; an older server
+ * never sees the extra byte. Requests are framed as in version 2.
+ *
+ * REPLICATE turns the connection into a replication stream from a
+ * primary to a replica, see ReplicationSource. SUBSCRIBE turns it into a
+ * stream of near cache invalidations, see InvalidationTracker.
+ *
+ * TTL prefixes a PUT, PUTSTREAM, MPUT or PUTHASH request like REQ does,
+ * with a long time to live in milliseconds as its payload. The objects
+ * the request stores expire once it has passed, see ExpiringObjectStore.
+ * GETTTL answers with the status and the time an object has left to
+ * live in milliseconds, 0 if it never expires.
+ *
+ * GETRANGE reads part of an object. Its response is the status, the
+ * size of the whole object, the length of the slice and the slice, which
+ * is cut short at the end of the object.
+ *
+ * SNAPSHOT has the server write a snapshot of its store to its data
+ * directory, see Snapshotter.
+ *
+ * SET stores a value like PUT but replaces an existing object. CAS
+ * carries a long version after the key and only stores the value if the
+ * object has that version, 0 meaning the key must not exist. Both answer
+ * with the status and a long version: the version of the new object, or
+ * with status 6, a version mismatch, the current one. GETVERSIONED
+ * answers like GET with the version of the object between the status and
+ * the value. A TTL prefix works on SET and CAS too. See
+ * VersionedObjectStore.
+ *
+ * Uploads over the server's limits are read to their end and answered
+ * with status 7, the server is busy, or 8, the object is too large. A
+ * connection over the limit gets BUSY in place of the handshake reply.
+ * See AdmissionControl.
+ */
+final class Protocol {
+
+	static final int MAGIC = 0xFF52;
+
+	static final int VERSION_1 = 1;
+	static final int VERSION_2 = 2;
+	static final int VERSION_3 = 3;
+	static final int CURRENT_VERSION = VERSION_3;
+	// what a server over --max-connections answers in place of a version, see RUStoreServer.refuse
+	static final int BUSY = 0;
+
+	// values are exchanged in the compressed form described in ValueCodec
+	static final int FEATURE_COMPRESSION = 1;
+	// the server deduplicates values and answers PUTHASH
+	static final int FEATURE_DEDUP = 2;
+	// the server pushes near cache invalidations, see InvalidationTracker
+	static final int FEATURE_TRACKING = 4;
+	// the server understands the TTL prefix
+	static final int FEATURE_TTL = 8;
+
+	// size of the SHA-256 a PUTHASH carries
+	static final int HASH_SIZE = 32;
+
+	static final int PUT = 1;
+	static final int GET = 2;
+	static final int REMOVE = 3;
+	static final int LIST = 4;
+	static final int PUTSTREAM = 5;
+	static final int GETSTREAM = 6;
+	static final int MPUT = 7;
+	static final int MGET = 8;
+	static final int MREMOVE = 9;
+	static final int PING = 10;
+	static final int DISCONNECT = 11;
+	static final int REQ = 12;
+	static final int STATS = 13;
+	static final int LISTPAGE = 14;
+	static final int PUTHASH = 15;
+	static final int REPLICATE = 16;
+	static final int SUBSCRIBE = 17;
+	static final int TRACK = 18;
+	static final int TTL = 19;
+	static final int SNAPSHOT = 20;
+	static final int GETRANGE = 21;
+	static final int SET = 22;
+	static final int CAS = 23;
+	static final int GETVERSIONED = 24;
+	static final int GETTTL = 25;
+	static final int MAX_OPCODE = GETTTL;
+
+	// response to a version 2 opcode the server does not know, after skipping its payload
+	static final int UNKNOWN_COMMAND = -1;
+
+	private static final String[] NAMES = {
+		null, "PUT", "GET", "REMOVE", "LIST", "PUTSTREAM", "GETSTREAM",
+		"MPUT", "MGET", "MREMOVE", "PING", "DISCONNECT", "REQ", "STATS", "LISTPAGE", "PUTHASH",
+		"REPLICATE", "SUBSCRIBE", "TRACK", "TTL", "SNAPSHOT", "GETRANGE",
+		"SET", "CAS", "GETVERSIONED", "GETTTL"
+	};
+	private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+	static {
+		for (int op = 1; op < NAMES.length; op++) {
+			OPCODES.put(NAMES[op], op);
+		}
+	}
+
+	/* outcome of the handshake */
+	static final class Handshake {
+		final int version;
+		final int features;
+
+		Handshake(int version, int features) {
+			this.version = version;
+			this.features = features;
+		}
+
+		boolean has(int feature) {
+			return (features & feature) != 0;
+		}
+	}
+
+	private Protocol() {
+	}
+
+	/**
+	 * @return		opcode of a version 1 command string, 0 if unknown
+	 */
+	static int opcode(String command) {
+		Integer op = OPCODES.get(command);
+		return op == null ? 0 : op;
+	}
+
+	/**
+	 * @return		command string of an opcode, null if unknown
+	 */
+	static String name(int opcode) {
+		return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : null;
+	}
+
+	/**
+	 * @return		bytes writeUTF produces for s, including its length
+	 */
+	static int utfSize(String s) {
+		int size = 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				size += 1;
+			} else if (c <= 0x07FF) {
+				size += 2;
+			} else {
+				size += 3;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Starts a request. Version 1 writes the command string, version 2
+	 * a frame header; the caller then writes payloadLength bytes of fields.
+	 */
+	static void writeHeader(DataOutputStream out, int version, int opcode, int payloadLength) throws IOException {
+		if (version == VERSION_1) {
+			out.writeUTF(NAMES[opcode]);
+		} else {
+			out.writeByte(opcode);
+			out.writeInt(payloadLength);
+		}
+	}
+
+	/**
+	 * Client side of the handshake.
+	 *
+	 * @param features	features the client would like to use
+	 *
+	 * @return		version and features the server agreed to
+	 *        		Throws ServerBusyException if the server turned the
+	 *        		connection away
+	 */
+	static Handshake negotiate(DataOutputStream out, DataInputStream in, int features) throws IOException {
+		out.writeShort(MAGIC);
+		out.writeByte(CURRENT_VERSION);
+		out.flush();
+		int version = in.readUnsignedByte();
+		if (version == BUSY) {
+			throw new ServerBusyException("Server has too many connections, retry later");
+		}
+		if (version < VERSION_1 || version > CURRENT_VERSION) {
+			throw new IOException("Server chose unsupported protocol version " + version);
+		}
+		if (version < VERSION_3) {
+			return new Handshake(version, 0);
+		}
+
+		out.writeByte(features);
+		out.flush();
+		int agreed = in.readUnsignedByte();
+		if ((agreed & ~features) != 0) {
+			throw new IOException("Server chose features " + agreed + " that were not asked for");
+		}
+		return new Handshake(version, agreed);
+	}
+
+	/**
+	 * Server side of the handshake. The input must support mark, so a
+	 * version 1 request can be read again from its first byte.
+	 *
+	 * @param supported	features the server is willing to use
+	 *
+	 * @return		version and features to use with this client
+	 */
+	static Handshake accept(DataInputStream in, DataOutputStream out, int supported) throws IOException {
+		in.mark(2);
+		if (in.readUnsignedShort() != MAGIC) {
+			in.reset();
+			return new Handshake(VERSION_1, 0);
+		}
+		int version = Math.min(in.readUnsignedByte(), CURRENT_VERSION);
+		if (version < VERSION_1) {
+			throw new IOException("Client requested protocol version " + version);
+		}
+		out.writeByte(version);
+		out.flush();
+		if (version < VERSION_3) {
+			return new Handshake(version, 0);
+		}
+
+		int features = in.readUnsignedByte() & supported;
+		out.writeByte(features);
+		out.flush();
+		return new Handshake(version, features);
+	}
+}
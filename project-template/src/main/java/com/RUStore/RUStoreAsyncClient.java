@@ -0,0 +1,306 @@
+package com.RUStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Asynchronous client that pipelines requests over a single connection.
+ * Every request is tagged with an id and written without waiting for
+ * earlier responses; a reader thread matches each response to its
+ * request by id and completes the returned future.
+ *
+ * Requests from any number of threads are queued and written by one
+ * writer thread, which only flushes once the queue is empty, so bursts
+ * of small requests share TCP segments. The number of requests in flight
+ * is bounded; callers block once the limit is reached.
+ */
+public class RUStoreAsyncClient {
+
+	/* a request that has been queued but not answered yet */
+	private abstract static class Request<T> {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		int id;
+
+		abstract void write(DataOutputStream out, int version) throws IOException;
+
+		abstract T read(DataInputStream in) throws IOException;
+	}
+
+	private static final Request<Void> SHUTDOWN = new Request<Void>() {
+		@Override
+		void write(DataOutputStream out, int version) {
+		}
+
+		@Override
+		Void read(DataInputStream in) {
+			return null;
+		}
+	};
+
+	private final String host;
+	private final int port;
+	private final Semaphore inFlight;
+
+	private Socket socket;
+	private DataOutputStream out;
+	private DataInputStream in;
+
+	private final LinkedBlockingQueue<Request<?>> outgoing = new LinkedBlockingQueue<>();
+	private final ConcurrentLinkedQueue<Request<?>> pending = new ConcurrentLinkedQueue<>();
+	private volatile IOException failure;
+	private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+	private int nextId;
+	private int version;
+
+	/**
+	 * RUStoreAsyncClient Constructor
+	 *
+	 * @param host			host url
+	 * @param port			port number
+	 * @param maxInFlight	maximum number of requests awaiting a response
+	 */
+	public RUStoreAsyncClient(String host, int port, int maxInFlight) {
+		this.host = host;
+		this.port = port;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * RUStoreAsyncClient Constructor allowing 1024 requests in flight
+	 *
+	 * @param host	host url
+	 * @param port	port number
+	 */
+	public RUStoreAsyncClient(String host, int port) {
+		this(host, port, 1024);
+	}
+
+	/**
+	 * Opens the connection and starts the writer and reader threads.
+	 *
+	 * @return		n/a, however throw an exception if any issues occur
+	 */
+	public void connect() throws IOException {
+		socket = new Socket(host, port);
+		// we coalesce writes ourselves, don't let Nagle hold them back
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 << 10));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+		try {
+			version = Protocol.negotiate(out, in, 0).version;
+		} catch (ServerBusyException e) {
+			closeSocket();
+			throw e;
+		}
+
+		Thread writer = new Thread(this::writeLoop, "rustore-async-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Thread reader = new Thread(this::readLoop, "rustore-async-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Asynchronous version of RUStoreClient.put(String, byte[]).
+	 *
+	 * @return		future completing with 0 upon success, 1 if key
+	 *        		already exists, 3 if the server has no space for
+	 *        		the object, 5 if the server is a read-only replica,
+	 *        		exceptionally with ServerBusyException or
+	 *        		ObjectTooLargeException if the server refused the
+	 *        		upload, or exceptionally otherwise
+	 */
+	public CompletableFuture<Integer> putAsync(String key, byte[] data) {
+		return submit(new Request<Integer>() {
+			@Override
+			void write(DataOutputStream out, int version) throws IOException {
+				Protocol.writeHeader(out, version, Protocol.PUT, Protocol.utfSize(key) + 4 + data.length);
+				out.writeUTF(key);
+				out.writeInt(data.length);
+				out.write(data);
+			}
+
+			@Override
+			Integer read(DataInputStream in) throws IOException {
+				int response = in.readInt();
+				if (response == 7 || response == 8) {  // upload refused, nothing stored
+					throw RUStoreClient.refused(response, key);
+				}
+				return status(response, "PUT");
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of RUStoreClient.get(String).
+	 *
+	 * @return		future completing with the object data, null if key
+	 *        		doesn't exist, or exceptionally otherwise
+	 */
+	public CompletableFuture<byte[]> getAsync(String key) {
+		return submit(new Request<byte[]>() {
+			@Override
+			void write(DataOutputStream out, int version) throws IOException {
+				Protocol.writeHeader(out, version, Protocol.GET, Protocol.utfSize(key));
+				out.writeUTF(key);
+			}
+
+			@Override
+			byte[] read(DataInputStream in) throws IOException {
+				if (status(in.readInt(), "GET") == 1) {
+					return null;
+				}
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				return data;
+			}
+		});
+	}
+
+	/**
+	 * Asynchronous version of RUStoreClient.remove(String).
+	 *
+	 * @return		future completing with 0 upon success, 1 if key
+	 *        		doesn't exist, 5 if the server is a read-only
+	 *        		replica, or exceptionally otherwise
+	 */
+	public CompletableFuture<Integer> removeAsync(String key) {
+		return submit(new Request<Integer>() {
+			@Override
+			void write(DataOutputStream out, int version) throws IOException {
+				Protocol.writeHeader(out, version, Protocol.REMOVE, Protocol.utfSize(key));
+				out.writeUTF(key);
+			}
+
+			@Override
+			Integer read(DataInputStream in) throws IOException {
+				return status(in.readInt(), "REMOVE");
+			}
+		});
+	}
+
+	private static int status(int response, String operation) throws IOException {
+		if (response != 0 && response != 1 && !(response == 3 && operation.equals("PUT"))
+				&& !(response == 5 && !operation.equals("GET"))) {
+			throw new IOException("Unexpected response from server during " + operation + " operation");
+		}
+		return response;
+	}
+
+	private <T> CompletableFuture<T> submit(Request<T> request) {
+		if (failure != null) {
+			request.future.completeExceptionally(failure);
+			return request.future;
+		}
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			request.future.completeExceptionally(e);
+			return request.future;
+		}
+		request.future.whenComplete((result, error) -> inFlight.release());
+		outgoing.add(request);
+		if (failure != null) {
+			// the connection died while we were queueing, don't leave the request hanging
+			fail(failure);
+		}
+		return request.future;
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				Request<?> request = outgoing.take();
+				if (request == SHUTDOWN) {
+					Protocol.writeHeader(out, version, Protocol.DISCONNECT, 0);
+					out.flush();
+					return;
+				}
+
+				// registered before it is written so the reader can never see the response first
+				request.id = nextId++;
+				pending.add(request);
+				Protocol.writeHeader(out, version, Protocol.REQ, 4);
+				out.writeInt(request.id);
+				request.write(out, version);
+
+				if (outgoing.isEmpty()) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(new IOException("Writer interrupted", e));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readLoop() {
+		try {
+			while (true) {
+				int id = in.readInt();
+				Request<Object> request = (Request<Object>) pending.poll();
+				if (request == null || request.id != id) {
+					throw new IOException("Response " + id + " does not match any pending request");
+				}
+				try {
+					request.future.complete(request.read(in));
+				} catch (ServerBusyException | ObjectTooLargeException e) {
+					// the server answered in full, the connection goes on
+					request.future.completeExceptionally(e);
+				} catch (IOException e) {
+					request.future.completeExceptionally(e);
+					throw e;
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		closeSocket();
+		Request<?> request;
+		while ((request = pending.poll()) != null) {
+			request.future.completeExceptionally(failure);
+		}
+		while ((request = outgoing.poll()) != null) {
+			request.future.completeExceptionally(failure);
+		}
+		terminated.complete(null);
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to clean up
+		}
+	}
+
+	/**
+	 * Waits for the requests already submitted, then signals the server
+	 * to close the connection and closes the socket.
+	 *
+	 * @return		n/a, however throw an exception if any issues occur
+	 */
+	public void disconnect() {
+		// the server answers everything sent before DISCONNECT, then closes and the reader sees EOF
+		outgoing.add(SHUTDOWN);
+		terminated.join();
+	}
+}
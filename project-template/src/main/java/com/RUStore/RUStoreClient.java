@@ -3,16 +3,45 @@ package com.RUStore;
 /* any necessary Java packages here */
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class RUStoreClient {
 	/* any necessary class members here */
+	// smaller values are uploaded right away, a hash round trip costs more than sending them
+	private static final int DEDUP_MIN_SIZE = 4 << 10;
+	// the server pings an idle invalidation stream every few seconds, silence means it is gone
+	private static final int INVALIDATION_TIMEOUT_MILLIS = 15000;
+
 	private Socket socket;
     private DataOutputStream out;
     private DataInputStream in;
     private String host;
     private int port;
+    private int chunkSize = 64 << 10;
+    private int version;
+    private boolean wantCompression;
+    private boolean compression;   // agreed with the server on connect
+    private boolean wantDedup;
+    private boolean dedup;   // agreed with the server on connect
+    private long nearCacheBytes;
+    private NearCache nearCache;   // null unless the server pushes invalidations
+    private Socket invalidations;
+    private boolean ttl;   // agreed with the server on connect
+    private long ttlMillis;   // time to live of the put being sent, 0 for none
+
+	/* opens the destination of a streaming GET once the object is known to exist */
+	private interface Sink {
+		OutputStream open() throws IOException;
+	}
 
 	/**
 	 * RUStoreClient Constructor, initializes default values
@@ -35,10 +64,102 @@ public class RUStoreClient {
 	
 	public void connect() throws IOException {
         socket = new Socket(host, port);
-        out = new DataOutputStream(socket.getOutputStream());
-        in = new DataInputStream(socket.getInputStream());
+        // every request is flushed as a whole, so Nagle has nothing left to coalesce
+        socket.setTcpNoDelay(true);
+        // buffered so a request goes out in as few writes as possible, every request flushes
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        try {
+            Protocol.Handshake handshake = Protocol.negotiate(out, in,
+                    (wantCompression ? Protocol.FEATURE_COMPRESSION : 0) | (wantDedup ? Protocol.FEATURE_DEDUP : 0)
+                    | (nearCacheBytes > 0 ? Protocol.FEATURE_TRACKING : 0) | Protocol.FEATURE_TTL);
+            version = handshake.version;
+            compression = handshake.has(Protocol.FEATURE_COMPRESSION);
+            dedup = handshake.has(Protocol.FEATURE_DEDUP);
+            ttl = handshake.has(Protocol.FEATURE_TTL);
+            nearCache = null;
+            if (handshake.has(Protocol.FEATURE_TRACKING)) {
+                subscribe();
+            }
+        } catch (IOException | RuntimeException e) {
+            // a busy server turns the connection away in the handshake, don't leave the sockets open
+            closeQuietly();
+            throw e;
+        }
     }
 
+	/* opens the invalidation stream and binds this connection to it */
+	private void subscribe() throws IOException {
+		invalidations = new Socket(host, port);
+		invalidations.setSoTimeout(INVALIDATION_TIMEOUT_MILLIS);
+		DataOutputStream pushOut = new DataOutputStream(new BufferedOutputStream(invalidations.getOutputStream()));
+		DataInputStream pushIn = new DataInputStream(new BufferedInputStream(invalidations.getInputStream()));
+		int pushVersion = Protocol.negotiate(pushOut, pushIn, 0).version;
+		Protocol.writeHeader(pushOut, pushVersion, Protocol.SUBSCRIBE, 0);
+		pushOut.flush();
+		if (pushIn.readInt() != 0) {
+			throw new RuntimeException("Unexpected response from server during SUBSCRIBE operation");
+		}
+		long id = pushIn.readLong();
+
+		header(Protocol.TRACK, 8);
+		out.writeLong(id);
+		out.flush();
+		if (in.readInt() != 0) {
+			throw new RuntimeException("Unexpected response from server during TRACK operation");
+		}
+
+		NearCache cache = new NearCache(nearCacheBytes);
+		Thread reader = new Thread(() -> readInvalidations(pushIn, cache), "rustore-invalidations");
+		reader.setDaemon(true);
+		reader.start();
+		nearCache = cache;
+	}
+
+	private static void readInvalidations(DataInputStream pushIn, NearCache cache) {
+		try {
+			while (true) {
+				int type = pushIn.readUnsignedByte();
+				if (type == InvalidationTracker.KEY) {
+					cache.invalidate(pushIn.readUTF());
+				} else if (type == InvalidationTracker.ALL) {
+					cache.clear();
+				}
+			}
+		} catch (IOException e) {
+			// without invalidations cached values could go stale, so the cache is given up
+			cache.disable();
+		}
+	}
+
+	/* starts a request, payloadLength counts the bytes written after the header */
+	private void header(int opcode, long payloadLength) throws IOException {
+		if (version >= Protocol.VERSION_2 && payloadLength > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Request larger than 2 GB, use the streaming put instead");
+		}
+		if (ttlMillis > 0) {
+			// the time to live goes in front of the request, like the id of a tagged one
+			Protocol.writeHeader(out, version, Protocol.TTL, 8);
+			out.writeLong(ttlMillis);
+		}
+		Protocol.writeHeader(out, version, opcode, (int) payloadLength);
+	}
+
+	/* makes the puts sent until clearTtl expire after ttlMillis */
+	private void setTtl(long ttlMillis) {
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("TTL must be positive, got " + ttlMillis);
+		}
+		if (!ttl) {
+			throw new IllegalStateException("Server does not support TTL");
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	private void clearTtl() {
+		ttlMillis = 0;
+	}
+
 	/**
 	 * Sends an arbitrary data object to the object store server. If an 
 	 * object with the same key already exists, the object should NOT be 
@@ -49,14 +170,26 @@ public class RUStoreClient {
 	 * 
 	 * @return		0 upon success
 	 *        		1 if key already exists
-	 *        		Throw an exception otherwise
+	 *        		3 if the server has no space for the object
+	 *        		5 if the server is a read-only replica
+	 *        		Throw ServerBusyException or ObjectTooLargeException
+	 *        		if the server refused the upload, see refused, and
+	 *        		an exception otherwise
 	 */
 	public int put(String key, byte[] data) {
 		try {
-			out.writeUTF("PUT");
+			// offer the hash first, the value only goes out if the server doesn't have it yet
+			if (dedup && data.length >= DEDUP_MIN_SIZE) {
+				int response = putHash(key, DedupObjectStore.hash(data));
+				if (response != 4) {  // 4 means the server needs the data
+					return response;
+				}
+			}
+
+			byte[] compressed = compress(data);
+			header(Protocol.PUT, Protocol.utfSize(key) + valueSize(data, compressed));
 			out.writeUTF(key);
-			out.writeInt(data.length);
-			out.write(data);
+			writeValue(data, compressed);
 			out.flush(); 
 
 			// await response from server
@@ -66,6 +199,12 @@ public class RUStoreClient {
 				return 0;
 			} else if (response == 1) {  // key already exists
 				return 1;
+			} else if (response == 3) {  // no space on the server
+				return 3;
+			} else if (response == 5) {  // writes go to the primary
+				return 5;
+			} else if (response == 7 || response == 8) {  // upload refused, nothing stored
+				throw refused(response, key);
 			} else {
 				throw new RuntimeException("Unexpected response from server during PUT operation");
 			}
@@ -74,6 +213,26 @@ public class RUStoreClient {
 			throw new RuntimeException("Error during PUT operation", e);
 		} 
 	}
+
+	/**
+	 * Like put(key, data), except that the object expires after the given
+	 * time to live. The server removes it then, and it is never returned
+	 * once expired.
+	 * 
+	 * @param key		key to be used as the unique identifier for the object
+	 * @param data		byte array representing arbitrary data object
+	 * @param ttlMillis	time to live in milliseconds
+	 * 
+	 * @return		see put(key, data)
+	 */
+	public int put(String key, byte[] data, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return put(key, data);
+		} finally {
+			clearTtl();
+		}
+	}
 	
 	/**
 	 * Sends an arbitrary data object to the object store server. If an 
@@ -85,18 +244,291 @@ public class RUStoreClient {
 	 * 
 	 * @return		0 upon success
 	 *        		1 if key already exists
-	 *        		Throw an exception otherwise
+	 *        		3 if the server has no space for the object
+	 *        		5 if the server is a read-only replica
+	 *        		Throw ServerBusyException or ObjectTooLargeException
+	 *        		if the server refused the upload, see refused, and
+	 *        		an exception otherwise
 	 */
 
 	public int put(String key, String file_path) {
-		try {
-			byte[] data = Files.readAllBytes(Paths.get(file_path));
+		// stream the file instead of loading it, so its size is not limited by memory
+		try (InputStream data = Files.newInputStream(Paths.get(file_path))) {
 			return put(key, data);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException("Error reading from file during PUT operation", e);
 		}
 	}
+
+	/**
+	 * Like put(key, file_path), except that the object expires after the
+	 * given time to live.
+	 * 
+	 * @param key		key to be used as the unique identifier for the object
+	 * @param file_path	path of file data to transfer
+	 * @param ttlMillis	time to live in milliseconds
+	 * 
+	 * @return		see put(key, file_path)
+	 */
+	public int put(String key, String file_path, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return put(key, file_path);
+		} finally {
+			clearTtl();
+		}
+	}
+
+	/**
+	 * Streams an arbitrary data object to the object store server in
+	 * chunks, so objects larger than memory can be stored. The stream is
+	 * read until it ends but not closed. If an object with the same key
+	 * already exists, the object should NOT be overwritten.
+	 * 
+	 * @param key	key to be used as the unique identifier for the object
+	 * @param data	stream providing the object data
+	 * 
+	 * @return		0 upon success
+	 *        		1 if key already exists
+	 *        		3 if the server has no space for the object
+	 *        		5 if the server is a read-only replica
+	 *        		Throw ServerBusyException or ObjectTooLargeException
+	 *        		if the server refused the upload, see refused, and
+	 *        		an exception otherwise
+	 */
+	public int put(String key, InputStream data) {
+		try {
+			// the frame only covers the key, the chunks that follow carry their own lengths
+			header(Protocol.PUTSTREAM, Protocol.utfSize(key));
+			out.writeUTF(key);
+
+			// send length prefixed chunks, a zero length ends the object
+			byte[] chunk = new byte[chunkSize];
+			IOException readError = null;
+			while (true) {
+				int n;
+				try {
+					n = data.read(chunk);
+				} catch (IOException e) {
+					readError = e;
+					break;
+				}
+				if (n < 0) {
+					break;
+				}
+				if (n > 0) {
+					out.writeInt(n);
+					out.write(chunk, 0, n);
+				}
+			}
+
+			// a negative length tells the server to throw the partial object away
+			out.writeInt(readError == null ? 0 : -1);
+			out.flush();
+
+			// await response from server
+			int response = in.readInt();
+
+			if (readError != null) {
+				throw new RuntimeException("Error reading data during PUT operation", readError);
+			} else if (response == 0) {  // success
+				return 0;
+			} else if (response == 1) {  // key already exists
+				return 1;
+			} else if (response == 3) {  // no space on the server
+				return 3;
+			} else if (response == 5) {  // writes go to the primary
+				return 5;
+			} else if (response == 7 || response == 8) {  // upload refused, nothing stored
+				throw refused(response, key);
+			} else {
+				throw new RuntimeException("Unexpected response from server during PUT operation");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during PUT operation", e);
+		}
+	}
+
+	/**
+	 * Like put(key, data), except that the object expires after the given
+	 * time to live.
+	 * 
+	 * @param key		key to be used as the unique identifier for the object
+	 * @param data		stream providing the object data
+	 * @param ttlMillis	time to live in milliseconds
+	 * 
+	 * @return		see put(key, data)
+	 */
+	public int put(String key, InputStream data, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return put(key, data);
+		} finally {
+			clearTtl();
+		}
+	}
+
+	/**
+	 * Streams an arbitrary data object from a channel to the object store
+	 * server. If an object with the same key already exists, the object
+	 * should NOT be overwritten.
+	 * 
+	 * @param key	key to be used as the unique identifier for the object
+	 * @param data	channel providing the object data
+	 * 
+	 * @return		0 upon success
+	 *        		1 if key already exists
+	 *        		3 if the server has no space for the object
+	 *        		5 if the server is a read-only replica
+	 *        		Throw ServerBusyException or ObjectTooLargeException
+	 *        		if the server refused the upload, see refused, and
+	 *        		an exception otherwise
+	 */
+	public int put(String key, ReadableByteChannel data) {
+		return put(key, Channels.newInputStream(data));
+	}
+
+	/**
+	 * Sends an arbitrary data object to the object store server. Unlike
+	 * put, an object with the same key is overwritten, in a single round
+	 * trip and without the key ever going missing in between.
+	 *
+	 * @param key	key to be used as the unique identifier for the object
+	 * @param data	byte array representing arbitrary data object
+	 *
+	 * @return		version of the stored object, see compareAndSet.
+	 *        		Throw InsufficientSpaceException if the server has no
+	 *        		space for the object, ReadOnlyReplicaException if it is
+	 *        		a read-only replica, ServerBusyException or
+	 *        		ObjectTooLargeException if it refused the upload, and
+	 *        		an exception if any other issues occur.
+	 */
+	public long set(String key, byte[] data) {
+		return storeVersioned(Protocol.SET, key, -1, data);
+	}
+
+	/**
+	 * Like set(key, data), except that the object expires after the given
+	 * time to live.
+	 *
+	 * @param key		key to be used as the unique identifier for the object
+	 * @param data		byte array representing arbitrary data object
+	 * @param ttlMillis	time to live in milliseconds
+	 *
+	 * @return		see set(key, data)
+	 */
+	public long set(String key, byte[] data, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return set(key, data);
+		} finally {
+			clearTtl();
+		}
+	}
+
+	/**
+	 * Overwrites an object only if it still has the given version, so a
+	 * read-modify-write needs no lock: read the object with getVersioned,
+	 * compute the new value and retry from the read if this returns 0.
+	 * Versions are kept by the server the object was read from; read from
+	 * the primary, not from a replica.
+	 *
+	 * @param key		key associated with the object
+	 * @param version	version the object must have, 0 to store the object
+	 *               	only if the key doesn't exist
+	 * @param data		byte array representing arbitrary data object
+	 *
+	 * @return		version of the stored object,
+	 *        		0 if the object has another version or, for version
+	 *        		0, the key already exists.
+	 *        		Throw an exception as set(key, data) does otherwise
+	 */
+	public long compareAndSet(String key, long version, byte[] data) {
+		if (version < 0) {
+			throw new IllegalArgumentException("Version must not be negative, got " + version);
+		}
+		return storeVersioned(Protocol.CAS, key, version, data);
+	}
+
+	/**
+	 * Like compareAndSet(key, version, data), except that the object
+	 * expires after the given time to live.
+	 *
+	 * @param key		key associated with the object
+	 * @param version	version the object must have, 0 if the key must not exist
+	 * @param data		byte array representing arbitrary data object
+	 * @param ttlMillis	time to live in milliseconds
+	 *
+	 * @return		see compareAndSet(key, version, data)
+	 */
+	public long compareAndSet(String key, long version, byte[] data, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return compareAndSet(key, version, data);
+		} finally {
+			clearTtl();
+		}
+	}
+
+	/**
+	 * Maps the status of an upload the server refused to the exception
+	 * to throw. The server read and dropped the value, so the connection
+	 * can be used for the next request right away.
+	 *
+	 * @return		ServerBusyException for 7, the server is over its
+	 *        		connection or in-flight byte limit and the upload can
+	 *        		be retried after a backoff;
+	 *        		ObjectTooLargeException for 8, the object is larger
+	 *        		than the server accepts
+	 */
+	static RuntimeException refused(int response, String key) {
+		if (response == 7) {
+			return new ServerBusyException("Server is busy, retry " + key + " later");
+		}
+		return new ObjectTooLargeException("Object " + key + " is larger than the server accepts");
+	}
+
+	/* sends a SET, or a CAS for version, and returns the version of the stored object */
+	private long storeVersioned(int opcode, String key, long version, byte[] data) {
+		// the server pushes the invalidation too, this one makes our own change visible right away
+		if (nearCache != null) {
+			nearCache.invalidate(key);
+		}
+		String operation = Protocol.name(opcode);
+		try {
+			byte[] compressed = compress(data);
+			header(opcode, Protocol.utfSize(key) + (opcode == Protocol.CAS ? 8 : 0) + valueSize(data, compressed));
+			out.writeUTF(key);
+			if (opcode == Protocol.CAS) {
+				out.writeLong(version);
+			}
+			writeValue(data, compressed);
+			out.flush();
+
+			// await response from server
+			int response = in.readInt();
+
+			if (response == 0) {  // success
+				return in.readLong();
+			} else if (response == 6) {  // another version, which we don't need
+				in.readLong();
+				return 0;
+			} else if (response == 3) {  // no space on the server
+				throw new InsufficientSpaceException("Server has no space for " + key);
+			} else if (response == 5) {  // writes go to the primary
+				throw new ReadOnlyReplicaException("Server is a read-only replica");
+			} else if (response == 7 || response == 8) {  // upload refused, nothing stored
+				throw refused(response, key);
+			} else {
+				throw new RuntimeException("Unexpected response from server during " + operation + " operation");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during " + operation + " operation", e);
+		}
+	}
 	
 		/**
 	 * Downloads arbitrary data object associated with a given key
@@ -104,28 +536,41 @@ public class RUStoreClient {
 	 * 
 	 * @param key   key associated with the object
 	 * 
+	 * With a near cache (see setNearCache) the array may be shared with
+	 * other callers and must not be modified.
+	 * 
 	 * @return      object data as a byte array, null if key doesn't exist.
 	 *              Throw an exception if any other issues occur.
 	 */
 	public byte[] get(String key) {
+		if (nearCache == null) {
+			return fetch(key);
+		}
+		byte[] cached = nearCache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		Object token = nearCache.reserve(key);
+		byte[] data = fetch(key);
+		nearCache.fill(key, token, data);
+		return data;
+	}
+
+	private byte[] fetch(String key) {
 		try {
 			// send get command string
-			out.writeUTF("GET");
+			header(Protocol.GET, Protocol.utfSize(key));
 
 			// send the key
 			out.writeUTF(key);
+			out.flush();
 
 			// await response from server
 			int response = in.readInt();
 
 			if (response == 0) {  // Success
-				// read the length of the data
-				int dataLength = in.readInt();
-
-				// read the actual data
-				byte[] data = new byte[dataLength];
-				in.readFully(data);
-				return data;
+				// read the length and the actual data
+				return readValue();
 			} else if (response == 1) {  // key doesn't exist
 				return null;
 			} else {
@@ -139,7 +584,40 @@ public class RUStoreClient {
 
 	/**
 	 * Downloads arbitrary data object associated with a given key
-	 * from the object store server and places it in a file. 
+	 * together with its version, for a following compareAndSet. Never
+	 * served from the near cache.
+	 *
+	 * @param key   key associated with the object
+	 *
+	 * @return      object data and version, null if key doesn't exist.
+	 *              Throw an exception if any other issues occur.
+	 */
+	public VersionedValue getVersioned(String key) {
+		try {
+			header(Protocol.GETVERSIONED, Protocol.utfSize(key));
+			out.writeUTF(key);
+			out.flush();
+
+			// await response from server
+			int response = in.readInt();
+
+			if (response == 0) {  // Success
+				long version = in.readLong();
+				return new VersionedValue(readValue(), version);
+			} else if (response == 1) {  // key doesn't exist
+				return null;
+			} else {
+				throw new RuntimeException("Unexpected response from server during GETVERSIONED operation");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during GETVERSIONED operation", e);
+		}
+	}
+
+	/**
+	 * Downloads arbitrary data object associated with a given key
+	 * from the object store server and places it in a file.
 	 * 
 	 * @param key       key associated with the object
 	 * @param file_path output file path
@@ -149,19 +627,226 @@ public class RUStoreClient {
 	 *                  Throw an exception otherwise
 	 */
 	public int get(String key, String file_path) {
+		// the file is only created once the server confirms the key exists
+		return getStream(key, 0, -1, () -> Files.newOutputStream(Paths.get(file_path)), true);
+	}
+
+	/**
+	 * Downloads part of the data object associated with a given key into
+	 * the same part of a file, leaving the rest of the file as it is. An
+	 * interrupted download resumes with the size of the partial file as
+	 * offset, and a large one can be split into ranges downloaded over
+	 * several connections at once (see size).
+	 * 
+	 * @param key       key associated with the object
+	 * @param file_path output file path, created if it doesn't exist
+	 * @param offset    first byte of the object to download
+	 * @param length    most bytes to download, Long.MAX_VALUE for the
+	 *                  rest of the object
+	 * 
+	 * @return          0 upon success
+	 *                  1 if key doesn't exist
+	 *                  Throw an exception otherwise
+	 */
+	public int get(String key, String file_path, long offset, long length) {
+		checkRange(offset, length);
+		return getStream(key, offset, length, () -> {
+			FileChannel file = FileChannel.open(Paths.get(file_path), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			file.position(offset);
+			return Channels.newOutputStream(file);
+		}, true);
+	}
+
+	/**
+	 * Downloads part of the data object associated with a given key.
+	 * 
+	 * @param key       key associated with the object
+	 * @param offset    first byte of the object to download
+	 * @param length    most bytes to download
+	 * 
+	 * @return          the requested bytes, fewer if the object ends
+	 *                  before offset + length and none if it ends before
+	 *                  offset. null if key doesn't exist.
+	 *                  Throw an exception if any other issues occur.
+	 */
+	public byte[] get(String key, long offset, int length) {
+		checkRange(offset, length);
+		ByteArrayOutputStream slice = new ByteArrayOutputStream();
+		return getStream(key, offset, length, () -> slice, false) == 0 ? slice.toByteArray() : null;
+	}
+
+	/**
+	 * @param key       key associated with the object
+	 * 
+	 * @return          size of the data object in bytes, -1 if key doesn't
+	 *                  exist.
+	 *                  Throw an exception if any other issues occur.
+	 */
+	public long size(String key) {
 		try {
-			byte[] data = get(key);
+			// an empty range only returns the size
+			header(Protocol.GETRANGE, Protocol.utfSize(key) + 16);
+			out.writeUTF(key);
+			out.writeLong(0);
+			out.writeLong(0);
+			out.flush();
 
-			if (data == null) {
-				return 1;  // key doesn't exist
+			int response = in.readInt();
+			if (response == 1) {  // key doesn't exist
+				return -1;
+			} else if (response != 0) {
+				throw new RuntimeException("Unexpected response from server during GETRANGE operation");
 			}
+			long size = in.readLong();
+			in.readLong();  // empty slice
+			return size;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during GETRANGE operation", e);
+		}
+	}
 
-			// write the data to the file
-			Files.write(Paths.get(file_path), data);
+	/**
+	 * Returns how long an object has left to live, see put(key, data,
+	 * ttlMillis).
+	 * 
+	 * @param key       key associated with the object
+	 * 
+	 * @return          remaining time to live in milliseconds, 0 if the
+	 *                  object never expires, -1 if key doesn't exist.
+	 *                  Throw an exception if any other issues occur.
+	 */
+	public long ttl(String key) {
+		try {
+			header(Protocol.GETTTL, Protocol.utfSize(key));
+			out.writeUTF(key);
+			out.flush();
+
+			int response = in.readInt();
+			if (response == 1) {  // key doesn't exist
+				return -1;
+			} else if (response != 0) {
+				throw new RuntimeException("Unexpected response from server during GETTTL operation");
+			}
+			return in.readLong();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during GETTTL operation", e);
+		}
+	}
+
+	private static void checkRange(long offset, long length) {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+		}
+	}
+
+	/**
+	 * Streams the data object associated with a given key from the
+	 * object store server into an output stream, one chunk at a time.
+	 * The stream is not closed.
+	 * 
+	 * @param key       key associated with the object
+	 * @param dest      stream that receives the object data
+	 * 
+	 * @return          0 upon success
+	 *                  1 if key doesn't exist
+	 *                  Throw an exception otherwise
+	 */
+	public int get(String key, OutputStream dest) {
+		return getStream(key, 0, -1, () -> dest, false);
+	}
+
+	/**
+	 * Streams the data object associated with a given key from the
+	 * object store server into a channel. The channel is not closed.
+	 * 
+	 * @param key       key associated with the object
+	 * @param dest      channel that receives the object data
+	 * 
+	 * @return          0 upon success
+	 *                  1 if key doesn't exist
+	 *                  Throw an exception otherwise
+	 */
+	public int get(String key, WritableByteChannel dest) {
+		return get(key, Channels.newOutputStream(dest));
+	}
+
+	/* streams the whole object with a length of -1, the given range otherwise */
+	private int getStream(String key, long offset, long length, Sink sink, boolean close) {
+		try {
+			if (length < 0) {
+				// send streaming get command string
+				header(Protocol.GETSTREAM, Protocol.utfSize(key));
+
+				// send the key
+				out.writeUTF(key);
+			} else {
+				header(Protocol.GETRANGE, Protocol.utfSize(key) + 16);
+				out.writeUTF(key);
+				out.writeLong(offset);
+				out.writeLong(length);
+			}
+			out.flush();
+
+			// await response from server
+			int response = in.readInt();
+
+			if (response == 1) {  // key doesn't exist
+				return 1;
+			} else if (response != 0) {
+				throw new RuntimeException("Unexpected response from server during GET operation");
+			}
+
+			if (length >= 0) {
+				in.readLong();  // size of the whole object
+			}
+			long remaining = in.readLong();
+			byte[] chunk = new byte[(int) Math.min(chunkSize, Math.max(remaining, 1))];
+			OutputStream dest = null;
+			IOException writeError = null;
+			try {
+				dest = sink.open();
+			} catch (IOException e) {
+				writeError = e;
+			}
+
+			// keep draining the socket after a write error so the connection stays usable
+			while (remaining > 0) {
+				int n = (int) Math.min(chunk.length, remaining);
+				in.readFully(chunk, 0, n);
+				remaining -= n;
+				if (writeError == null) {
+					try {
+						dest.write(chunk, 0, n);
+					} catch (IOException e) {
+						writeError = e;
+					}
+				}
+			}
+
+			if (dest != null) {
+				try {
+					if (close) {
+						dest.close();
+					} else {
+						dest.flush();
+					}
+				} catch (IOException e) {
+					if (writeError == null) {
+						writeError = e;
+					}
+				}
+			}
+			if (writeError != null) {
+				writeError.printStackTrace();
+				throw new RuntimeException("Error writing data during GET operation", writeError);
+			}
 			return 0;  // success
 		} catch (IOException e) {
 			e.printStackTrace();
-			throw new RuntimeException("Error writing to file during GET operation", e);
+			throw new RuntimeException("Error during GET operation", e);
 		}
 	}
 
@@ -174,15 +859,21 @@ public class RUStoreClient {
 	 * 
 	 * @return		0 upon success
 	 *        		1 if key doesn't exist
+	 *        		5 if the server is a read-only replica
 	 *        		Throw an exception otherwise
 	 */
 	public int remove(String key) {
+		// the server pushes the invalidation too, this one makes our own change visible right away
+		if (nearCache != null) {
+			nearCache.invalidate(key);
+		}
 		try {
 			// send remove command
-			out.writeUTF("REMOVE");
+			header(Protocol.REMOVE, Protocol.utfSize(key));
 	
 			// send the key
 			out.writeUTF(key);
+			out.flush();
 	
 			// swait response from server
 			int response = in.readInt();
@@ -191,6 +882,8 @@ public class RUStoreClient {
 				return 0;
 			} else if (response == 1) {  // key doesn't exist
 				return 1;
+			} else if (response == 5) {  // writes go to the primary
+				return 5;
 			} else {
 				throw new RuntimeException("Unexpected response from server during REMOVE operation");
 			}
@@ -200,6 +893,263 @@ public class RUStoreClient {
 		}
 	}
 	
+	/**
+	 * Sends many data objects to the object store server in a single
+	 * request. Objects whose key already exists are NOT overwritten.
+	 * 
+	 * @param keys	keys to be used as the unique identifiers for the objects
+	 * @param data	byte arrays representing the data objects, data[i]
+	 *            	is stored under keys[i]
+	 * 
+	 * @return		status for each key, in order:
+	 *        		0 upon success
+	 *        		1 if key already exists
+	 *        		3 if the server has no space for the object
+	 *        		5 if the server is a read-only replica
+	 *        		7 if the server is too busy, retry later
+	 *        		8 if the object is larger than the server accepts
+	 *        		Throw an exception otherwise
+	 */
+	public int[] put(String[] keys, byte[][] data) {
+		if (keys.length != data.length) {
+			throw new IllegalArgumentException("Got " + keys.length + " keys but " + data.length + " objects");
+		}
+		checkBatchSize(keys);
+		try {
+			byte[][] compressed = new byte[keys.length][];
+			long length = 4;
+			for (int i = 0; i < keys.length; i++) {
+				compressed[i] = compress(data[i]);
+				length += Protocol.utfSize(keys[i]) + valueSize(data[i], compressed[i]);
+			}
+			header(Protocol.MPUT, length);
+			out.writeInt(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				out.writeUTF(keys[i]);
+				writeValue(data[i], compressed[i]);
+			}
+			out.flush();
+
+			// await one status per key from server
+			return readStatuses(keys.length, "PUT");
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during PUT operation", e);
+		}
+	}
+
+	/**
+	 * Like put(keys, data), except that every object expires after the
+	 * given time to live.
+	 * 
+	 * @param keys		keys to be used as the unique identifiers for the objects
+	 * @param data		byte arrays representing the data objects
+	 * @param ttlMillis	time to live in milliseconds
+	 * 
+	 * @return		see put(keys, data)
+	 */
+	public int[] put(String[] keys, byte[][] data, long ttlMillis) {
+		setTtl(ttlMillis);
+		try {
+			return put(keys, data);
+		} finally {
+			clearTtl();
+		}
+	}
+
+	/**
+	 * Downloads many data objects from the object store server in a
+	 * single request.
+	 * 
+	 * @param keys	keys associated with the objects
+	 * 
+	 * @return		object data for each key, in order, with null for
+	 *        		keys that don't exist.
+	 *        		Throw an exception if any other issues occur.
+	 */
+	public byte[][] get(String[] keys) {
+		checkBatchSize(keys);
+		if (nearCache == null) {
+			return fetch(keys);
+		}
+
+		// only the keys that are not cached go to the server
+		byte[][] values = new byte[keys.length][];
+		int[] missing = new int[keys.length];
+		int misses = 0;
+		for (int i = 0; i < keys.length; i++) {
+			values[i] = nearCache.get(keys[i]);
+			if (values[i] == null) {
+				missing[misses++] = i;
+			}
+		}
+		if (misses == 0) {
+			return values;
+		}
+		String[] fetchKeys = new String[misses];
+		Object[] tokens = new Object[misses];
+		for (int i = 0; i < misses; i++) {
+			fetchKeys[i] = keys[missing[i]];
+			tokens[i] = nearCache.reserve(fetchKeys[i]);
+		}
+		byte[][] fetched = fetch(fetchKeys);
+		for (int i = 0; i < misses; i++) {
+			nearCache.fill(fetchKeys[i], tokens[i], fetched[i]);
+			values[missing[i]] = fetched[i];
+		}
+		return values;
+	}
+
+	private byte[][] fetch(String[] keys) {
+		try {
+			header(Protocol.MGET, keysSize(keys));
+			out.writeInt(keys.length);
+			for (String key : keys) {
+				out.writeUTF(key);
+			}
+			out.flush();
+
+			if (in.readInt() != keys.length) {
+				throw new RuntimeException("Unexpected response from server during GET operation");
+			}
+
+			// every response is read even after a bad one, so the connection stays usable
+			byte[][] values = new byte[keys.length][];
+			boolean unexpected = false;
+			for (int i = 0; i < keys.length; i++) {
+				int response = in.readInt();
+				if (response == 0) {  // success
+					values[i] = readValue();
+				} else if (response != 1) {  // 1 means key doesn't exist
+					unexpected = true;
+				}
+			}
+			if (unexpected) {
+				throw new RuntimeException("Unexpected response from server during GET operation");
+			}
+			return values;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during GET operation", e);
+		}
+	}
+
+	/**
+	 * Removes many data objects from the object store server in a
+	 * single request.
+	 * 
+	 * @param keys	keys associated with the objects
+	 * 
+	 * @return		status for each key, in order:
+	 *        		0 upon success
+	 *        		1 if key doesn't exist
+	 *        		5 if the server is a read-only replica
+	 *        		Throw an exception otherwise
+	 */
+	public int[] remove(String[] keys) {
+		checkBatchSize(keys);
+		if (nearCache != null) {
+			for (String key : keys) {
+				nearCache.invalidate(key);
+			}
+		}
+		try {
+			header(Protocol.MREMOVE, keysSize(keys));
+			out.writeInt(keys.length);
+			for (String key : keys) {
+				out.writeUTF(key);
+			}
+			out.flush();
+
+			// await one status per key from server
+			return readStatuses(keys.length, "REMOVE");
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during REMOVE operation", e);
+		}
+	}
+
+	private static void checkBatchSize(String[] keys) {
+		if (keys.length > RUStoreServer.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("At most " + RUStoreServer.MAX_BATCH_SIZE + " keys per request");
+		}
+	}
+
+	private static long keysSize(String[] keys) {
+		long size = 4;
+		for (String key : keys) {
+			size += Protocol.utfSize(key);
+		}
+		return size;
+	}
+
+	/* links key to content the server already stores, see put(String, byte[]) */
+	private int putHash(String key, byte[] hash) throws IOException {
+		header(Protocol.PUTHASH, Protocol.utfSize(key) + Protocol.HASH_SIZE);
+		out.writeUTF(key);
+		out.write(hash);
+		out.flush();
+
+		int response = in.readInt();
+		if (response != 0 && response != 1 && response != 3 && response != 4 && response != 5) {
+			throw new RuntimeException("Unexpected response from server during PUT operation");
+		}
+		return response;
+	}
+
+	/* deflated data if compression was agreed on and pays off, null otherwise */
+	private byte[] compress(byte[] data) {
+		return compression ? ValueCodec.compress(data, ValueCodec.DEFAULT_MIN_SIZE) : null;
+	}
+
+	/* bytes writeValue sends for data */
+	private long valueSize(byte[] data, byte[] compressed) {
+		if (!compression) {
+			return 4L + data.length;
+		}
+		return ValueCodec.FIELD_SIZE + (long) (compressed != null ? compressed.length : data.length);
+	}
+
+	/* sends a value, deflated if compressed is not null */
+	private void writeValue(byte[] data, byte[] compressed) throws IOException {
+		if (!compression) {
+			out.writeInt(data.length);
+			out.write(data);
+		} else if (compressed == null) {
+			ValueCodec.writeField(out, ValueCodec.RAW, data.length, data.length);
+			out.write(data);
+		} else {
+			ValueCodec.writeField(out, ValueCodec.DEFLATE, data.length, compressed.length);
+			out.write(compressed);
+		}
+	}
+
+	private byte[] readValue() throws IOException {
+		if (compression) {
+			return ValueCodec.readValue(in);
+		}
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+
+	private int[] readStatuses(int count, String operation) throws IOException {
+		if (in.readInt() != count) {
+			throw new RuntimeException("Unexpected response from server during " + operation + " operation");
+		}
+		int[] statuses = new int[count];
+		boolean unexpected = false;
+		for (int i = 0; i < count; i++) {
+			statuses[i] = in.readInt();
+			unexpected |= statuses[i] != 0 && statuses[i] != 1 && statuses[i] != 5
+					&& !((statuses[i] == 3 || statuses[i] == 7 || statuses[i] == 8) && operation.equals("PUT"));
+		}
+		if (unexpected) {
+			throw new RuntimeException("Unexpected response from server during " + operation + " operation");
+		}
+		return statuses;
+	}
+	
 	/**
 	 * Retrieves of list of object keys from the object store server
 	 * 
@@ -209,7 +1159,8 @@ public class RUStoreClient {
 	public String[] list() {
 		try {
 			// send LIST command string
-			out.writeUTF("LIST");
+			header(Protocol.LIST, 0);
+			out.flush();
 	
 			// await response from server for the number of keys
 			int keyCount = in.readInt();
@@ -230,6 +1181,206 @@ public class RUStoreClient {
 		}
 	}
 	
+	/**
+	 * Retrieves one page of object keys in ascending order.
+	 * 
+	 * @param prefix		only keys starting with prefix, "" for all keys
+	 * @param startAfter	only keys after this one, null for the first page
+	 * @param pageSize		maximum number of keys, the server caps it at 10000
+	 * 
+	 * @return		keys as string array, empty if there are no more.
+	 *        		Throw an exception if any other issues occur.
+	 */
+	public String[] list(String prefix, String startAfter, int pageSize) {
+		return listPage(prefix, startAfter, pageSize).keys;
+	}
+
+	/**
+	 * Lists object keys in ascending order, fetching them from the
+	 * object store server one page at a time as the iterator advances.
+	 * The iterator uses this client, which must stay connected, and
+	 * the same rules for sharing it across threads apply.
+	 * 
+	 * @param prefix	only keys starting with prefix, "" for all keys
+	 * @param pageSize	number of keys fetched per request
+	 * 
+	 * @return		iterator over the keys.
+	 *        		Its methods throw an exception if any issues occur.
+	 */
+	public Iterator<String> list(String prefix, int pageSize) {
+		return new KeyIterator(startAfter -> listPage(prefix, startAfter, pageSize));
+	}
+
+	KeyIterator.Page listPage(String prefix, String startAfter, int pageSize) {
+		try {
+			String after = startAfter == null ? "" : startAfter;
+			header(Protocol.LISTPAGE, Protocol.utfSize(prefix) + Protocol.utfSize(after) + 4L);
+			out.writeUTF(prefix);
+			out.writeUTF(after);
+			out.writeInt(pageSize);
+			out.flush();
+
+			// await response from server for the number of keys in the page
+			int keyCount = in.readInt();
+			String[] keys = new String[keyCount];
+			for (int i = 0; i < keyCount; i++) {
+				keys[i] = in.readUTF();
+			}
+			return new KeyIterator.Page(keys, in.readBoolean());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during LIST operation", e);
+		}
+	}
+
+	/**
+	 * Checks that the connection to the object store server is still
+	 * usable with a single round trip.
+	 * 
+	 * @return		true if the server answered, false otherwise
+	 */
+	public boolean ping() {
+		try {
+			if (socket == null || socket.isClosed()) {
+				return false;
+			}
+			header(Protocol.PING, 0);
+			out.flush();
+			return in.readInt() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Retrieves the server's metrics: connection and byte counters, the
+	 * number of stored objects, and for each command its count and
+	 * mean, p50, p99, p999 and max latency in nanoseconds.
+	 * 
+	 * @return		metric values by name, in the order the server sent them.
+	 *        		Throw an exception if any issues occur.
+	 */
+	public Map<String, Long> stats() {
+		try {
+			header(Protocol.STATS, 0);
+			out.flush();
+
+			// await response from server for the number of metrics
+			int count = in.readInt();
+			Map<String, Long> stats = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				stats.put(name, in.readLong());
+			}
+			return stats;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during STATS operation", e);
+		}
+	}
+
+	/**
+	 * Has the server write a point-in-time snapshot of its objects to a
+	 * file in its data directory, which a server started with
+	 * --load-snapshot can load. Writes go on while the snapshot is
+	 * written; this call returns once the file is complete.
+	 * 
+	 * @return		path of the snapshot file on the server, null if another
+	 *        		snapshot is being written.
+	 *        		Throw an exception if any other issues occur.
+	 */
+	public String snapshot() {
+		try {
+			header(Protocol.SNAPSHOT, 0);
+			out.flush();
+
+			// await response from server
+			int response = in.readInt();
+
+			if (response == 1) {  // a snapshot is already running
+				return null;
+			} else if (response != 0) {
+				throw new RuntimeException("Unexpected response from server during SNAPSHOT operation");
+			}
+			String file = in.readUTF();
+			in.readLong();  // objects
+			in.readLong();  // bytes
+			return file;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Error during SNAPSHOT operation", e);
+		}
+	}
+
+	/**
+	 * Sets the size of the chunks used by the streaming put and get
+	 * methods, which bounds how much of an object is held in memory.
+	 * 
+	 * @param chunkSize	chunk size in bytes, at most 16 MB
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > (16 << 20)) {
+			throw new IllegalArgumentException("Chunk size must be between 1 byte and 16 MB");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Asks the server to exchange values compressed, which it agrees to
+	 * when it runs with --compression. Values that compress well are then
+	 * sent deflated by put and received deflated by get, and everything
+	 * else is sent as it is. Takes effect on the next connect.
+	 * 
+	 * @param enabled	true to ask for compression
+	 */
+	public void setCompression(boolean enabled) {
+		this.wantCompression = enabled;
+	}
+
+	/**
+	 * Asks the server to let put(String, byte[]) send the SHA-256 of a
+	 * value before the value itself, which it agrees to when it runs with
+	 * --dedup. If the server already stores the same content the key is
+	 * linked to it and the value is never uploaded; otherwise the value
+	 * follows as usual, at the cost of one more round trip. Values under
+	 * 4 KB are always sent right away. Takes effect on the next connect.
+	 * 
+	 * @param enabled	true to send hashes first
+	 */
+	public void setDeduplication(boolean enabled) {
+		this.wantDedup = enabled;
+	}
+
+	/**
+	 * Keeps values returned by get(String) and get(String[]) in a local
+	 * LRU cache of up to maxBytes, if the server can tell the client when
+	 * a key changes. The server then pushes invalidations over a second
+	 * connection, so repeated reads of hot keys are served from memory
+	 * and a changed key is read from the server again shortly after the
+	 * change. Values are shared between callers and must not be modified.
+	 * Takes effect on the next connect.
+	 * 
+	 * @param maxBytes	size of the cache, 0 for no cache
+	 */
+	public void setNearCache(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Near cache size must not be negative");
+		}
+		this.nearCacheBytes = maxBytes;
+	}
+
+	/**
+	 * @return		near cache hits, misses, invalidations, entries and
+	 *        		bytes by name, empty without a near cache
+	 */
+	public Map<String, Long> nearCacheStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		if (nearCache != null) {
+			nearCache.addStats(stats);
+		}
+		return stats;
+	}
+
 	/**
 	 * Signals to server to close connection before closes 
 	 * the client socket.
@@ -240,16 +1391,53 @@ public class RUStoreClient {
 		try {
 			if (!socket.isClosed()) {
 				// Send DISCONNECT command
-				out.writeUTF("DISCONNECT");
+				header(Protocol.DISCONNECT, 0);
+				out.flush();
 	
 				// close the streams and the socket
 				in.close();
 				out.close();
 				socket.close();
 			}
+			if (invalidations != null) {
+				invalidations.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException("Error during DISCONNECT operation", e);
 		}
 	}
+
+	/**
+	 * Sends DISCONNECT if the connection still works and closes the
+	 * socket, without reporting errors. Used by RUStoreClientPool.
+	 */
+	void disconnectQuietly() {
+		try {
+			if (socket != null && !socket.isClosed()) {
+				header(Protocol.DISCONNECT, 0);
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the socket is closed below either way
+		}
+		closeQuietly();
+	}
+
+	/**
+	 * Closes the socket without talking to the server, for connections
+	 * that are broken or in an unknown state.
+	 */
+	void closeQuietly() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+			if (invalidations != null) {
+				invalidations.close();
+			}
+		} catch (IOException e) {
+			// nothing left to clean up
+		}
+	}
 }
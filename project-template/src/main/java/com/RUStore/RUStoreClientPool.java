@@ -0,0 +1,410 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Thread-safe pool of RUStoreClient connections to one object store
+ * server. Threads can either check a connection out with borrow() and
+ * hand it back with release(), or use the put/get/remove/list methods
+ * here, which do that for them.
+ *
+ * At most maxConnections are open at once; a borrower waits up to the
+ * max wait time for one to free up. Connections that sat idle longer
+ * than the validation interval are pinged before being handed out, and
+ * connections idle longer than the idle timeout are closed in the
+ * background.
+ */
+public class RUStoreClientPool implements AutoCloseable {
+
+	/* a connection waiting in the pool */
+	private static final class Idle {
+		final RUStoreClient client;
+		final long since;
+
+		Idle(RUStoreClient client) {
+			this.client = client;
+			this.since = System.nanoTime();
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final Semaphore permits;
+
+	// most recently used connections are handed out first so the rest can go idle
+	private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+	private final ScheduledExecutorService evictor;
+
+	private volatile long maxWaitMillis = 5000;
+	private volatile long idleTimeoutMillis = 60000;
+	private volatile long validateAfterMillis = 10000;
+	private volatile boolean compression;
+	private volatile boolean dedup;
+	private volatile long nearCacheBytes;
+	private volatile boolean closed;
+
+	/**
+	 * RUStoreClientPool Constructor, connections are opened lazily
+	 *
+	 * @param host				host url
+	 * @param port				port number
+	 * @param maxConnections	maximum number of open connections
+	 */
+	public RUStoreClientPool(String host, int port, int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("maxConnections must be positive");
+		}
+		this.host = host;
+		this.port = port;
+		this.permits = new Semaphore(maxConnections, true);
+
+		evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread t = new Thread(task, "rustore-pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		evictor.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param millis	how long borrow() waits for a free connection
+	 */
+	public void setMaxWait(long millis) {
+		this.maxWaitMillis = millis;
+	}
+
+	/**
+	 * @param millis	how long a connection may stay unused before it is closed
+	 */
+	public void setIdleTimeout(long millis) {
+		this.idleTimeoutMillis = millis;
+	}
+
+	/**
+	 * @param millis	idle time after which a connection is pinged before reuse
+	 */
+	public void setValidateAfter(long millis) {
+		this.validateAfterMillis = millis;
+	}
+
+	/**
+	 * @param enabled	whether new connections ask the server to exchange
+	 *               	values compressed, see RUStoreClient.setCompression
+	 */
+	public void setCompression(boolean enabled) {
+		this.compression = enabled;
+	}
+
+	/**
+	 * @param enabled	whether new connections send hashes before values,
+	 *               	see RUStoreClient.setDeduplication
+	 */
+	public void setDeduplication(boolean enabled) {
+		this.dedup = enabled;
+	}
+
+	/**
+	 * @param maxBytes	near cache size of each new connection, see
+	 *                	RUStoreClient.setNearCache
+	 */
+	public void setNearCache(long maxBytes) {
+		this.nearCacheBytes = maxBytes;
+	}
+
+	/**
+	 * Checks out a connected client. It must be given back with
+	 * release(), or invalidate() if it failed, and not be used by
+	 * another thread in the meantime.
+	 *
+	 * @return		connected client
+	 *        		Throw an exception if no connection could be obtained
+	 */
+	public RUStoreClient borrow() {
+		if (closed) {
+			throw new IllegalStateException("Pool is closed");
+		}
+		try {
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw new RuntimeException("Timed out waiting for a connection to " + host + ":" + port);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted waiting for a connection", e);
+		}
+
+		try {
+			Idle candidate;
+			while ((candidate = idle.pollFirst()) != null) {
+				long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - candidate.since);
+				if (idleMillis < validateAfterMillis || candidate.client.ping()) {
+					return candidate.client;
+				}
+				candidate.client.closeQuietly();
+			}
+
+			RUStoreClient client = new RUStoreClient(host, port);
+			client.setCompression(compression);
+			client.setDeduplication(dedup);
+			client.setNearCache(nearCacheBytes);
+			client.connect();
+			return client;
+		} catch (ServerBusyException e) {
+			// thrown as is, so callers can tell a busy server from one that is down
+			permits.release();
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			permits.release();
+			throw new RuntimeException("Error connecting to " + host + ":" + port, e);
+		}
+	}
+
+	/**
+	 * Returns a healthy client to the pool.
+	 */
+	public void release(RUStoreClient client) {
+		if (closed) {
+			client.disconnectQuietly();
+		} else {
+			idle.offerFirst(new Idle(client));
+		}
+		permits.release();
+	}
+
+	/**
+	 * Closes a client whose connection failed instead of returning it.
+	 */
+	public void invalidate(RUStoreClient client) {
+		client.closeQuietly();
+		permits.release();
+	}
+
+	/**
+	 * Runs an operation on a pooled connection. The connection goes back
+	 * to the pool afterwards, or is closed if the operation threw, since
+	 * its stream may have been left in the middle of a response. Errors
+	 * the server answered with leave the connection usable.
+	 */
+	public <T> T execute(Function<RUStoreClient, T> operation) {
+		RUStoreClient client = borrow();
+		T result;
+		try {
+			result = operation.apply(client);
+		} catch (InsufficientSpaceException | ReadOnlyReplicaException | ServerBusyException
+				| ObjectTooLargeException e) {
+			release(client);
+			throw e;
+		} catch (RuntimeException e) {
+			invalidate(client);
+			throw e;
+		}
+		release(client);
+		return result;
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, byte[])
+	 */
+	public int put(String key, byte[] data) {
+		return execute(client -> client.put(key, data));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, String)
+	 */
+	public int put(String key, String file_path) {
+		return execute(client -> client.put(key, file_path));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, byte[], long)
+	 */
+	public int put(String key, byte[] data, long ttlMillis) {
+		return execute(client -> client.put(key, data, ttlMillis));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, String, long)
+	 */
+	public int put(String key, String file_path, long ttlMillis) {
+		return execute(client -> client.put(key, file_path, ttlMillis));
+	}
+
+	/**
+	 * @see RUStoreClient#set(String, byte[])
+	 */
+	public long set(String key, byte[] data) {
+		return execute(client -> client.set(key, data));
+	}
+
+	/**
+	 * @see RUStoreClient#set(String, byte[], long)
+	 */
+	public long set(String key, byte[] data, long ttlMillis) {
+		return execute(client -> client.set(key, data, ttlMillis));
+	}
+
+	/**
+	 * @see RUStoreClient#compareAndSet(String, long, byte[])
+	 */
+	public long compareAndSet(String key, long version, byte[] data) {
+		return execute(client -> client.compareAndSet(key, version, data));
+	}
+
+	/**
+	 * @see RUStoreClient#compareAndSet(String, long, byte[], long)
+	 */
+	public long compareAndSet(String key, long version, byte[] data, long ttlMillis) {
+		return execute(client -> client.compareAndSet(key, version, data, ttlMillis));
+	}
+
+	/**
+	 * @see RUStoreClient#get(String)
+	 */
+	public byte[] get(String key) {
+		return execute(client -> client.get(key));
+	}
+
+	/**
+	 * @see RUStoreClient#getVersioned(String)
+	 */
+	public VersionedValue getVersioned(String key) {
+		return execute(client -> client.getVersioned(key));
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, String)
+	 */
+	public int get(String key, String file_path) {
+		return execute(client -> client.get(key, file_path));
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, String, long, long)
+	 */
+	public int get(String key, String file_path, long offset, long length) {
+		return execute(client -> client.get(key, file_path, offset, length));
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, long, int)
+	 */
+	public byte[] get(String key, long offset, int length) {
+		return execute(client -> client.get(key, offset, length));
+	}
+
+	/**
+	 * @see RUStoreClient#size(String)
+	 */
+	public long size(String key) {
+		return execute(client -> client.size(key));
+	}
+
+	/**
+	 * @see RUStoreClient#ttl(String)
+	 */
+	public long ttl(String key) {
+		return execute(client -> client.ttl(key));
+	}
+
+	/**
+	 * @see RUStoreClient#remove(String)
+	 */
+	public int remove(String key) {
+		return execute(client -> client.remove(key));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String[], byte[][])
+	 */
+	public int[] put(String[] keys, byte[][] data) {
+		return execute(client -> client.put(keys, data));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String[], byte[][], long)
+	 */
+	public int[] put(String[] keys, byte[][] data, long ttlMillis) {
+		return execute(client -> client.put(keys, data, ttlMillis));
+	}
+
+	/**
+	 * @see RUStoreClient#get(String[])
+	 */
+	public byte[][] get(String[] keys) {
+		return execute(client -> client.get(keys));
+	}
+
+	/**
+	 * @see RUStoreClient#remove(String[])
+	 */
+	public int[] remove(String[] keys) {
+		return execute(client -> client.remove(keys));
+	}
+
+	/**
+	 * @see RUStoreClient#list()
+	 */
+	public String[] list() {
+		return execute(RUStoreClient::list);
+	}
+
+	/**
+	 * @see RUStoreClient#list(String, String, int)
+	 */
+	public String[] list(String prefix, String startAfter, int pageSize) {
+		return execute(client -> client.list(prefix, startAfter, pageSize));
+	}
+
+	/**
+	 * Like RUStoreClient#list(String, int), but every page is fetched on
+	 * whichever pooled connection is free, so no connection is held
+	 * between pages.
+	 */
+	public Iterator<String> list(String prefix, int pageSize) {
+		return new KeyIterator(startAfter -> execute(client -> client.listPage(prefix, startAfter, pageSize)));
+	}
+
+	/**
+	 * @see RUStoreClient#stats()
+	 */
+	public Map<String, Long> stats() {
+		return execute(RUStoreClient::stats);
+	}
+
+	private void evictIdle() {
+		long now = System.nanoTime();
+		Iterator<Idle> it = idle.iterator();
+		while (it.hasNext()) {
+			Idle candidate = it.next();
+			if (TimeUnit.NANOSECONDS.toMillis(now - candidate.since) >= idleTimeoutMillis
+					&& idle.removeFirstOccurrence(candidate)) {
+				candidate.client.disconnectQuietly();
+			}
+		}
+	}
+
+	/**
+	 * Disconnects every idle connection. Borrowed connections are closed
+	 * as they are released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		List<Idle> drained = new ArrayList<>();
+		idle.drainTo(drained);
+		for (Idle candidate : drained) {
+			candidate.client.disconnectQuietly();
+		}
+	}
+}
@@ -1,127 +1,893 @@
 package com.RUStore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RUStoreServer {
-    private static HashMap<String, byte[]> objectStore = new HashMap<>();
+    private static ObjectStore objectStore;
+
+    // largest chunk a client may send in a PUTSTREAM, and the size of the chunks we copy with
+    static final int MAX_CHUNK_SIZE = 16 << 20;
+    static final int COPY_CHUNK_SIZE = 64 << 10;
+
+    // most keys a single MPUT, MGET or MREMOVE may carry
+    static final int MAX_BATCH_SIZE = 1 << 16;
+
+    // most keys a single LISTPAGE returns
+    static final int MAX_PAGE_SIZE = 10000;
 
     static class ClientHandler implements Runnable {
         private Socket clientSocket;
-        private HashMap<String, byte[]> objectStore;
+        private ObjectStore objectStore;
+        private ServerConfig config;
+        private ServerStats stats;
+        private ReplicationLog replication;   // null unless replicas may follow this server
+        private InvalidationTracker tracker;   // null if near caches are off
+        private InvalidationTracker.Subscriber subscriber;   // set by TRACK
+        private Snapshotter snapshotter;   // null if SNAPSHOT is not served
+        private AdmissionControl admission;
+        private boolean compression;   // values are exchanged in ValueCodec form
+        private long expiresAt;   // set by a TTL prefix for the request it wraps, 0 otherwise
+
+        public ClientHandler(Socket clientSocket, ObjectStore objectStore, ServerConfig config, ServerStats stats) {
+            this(clientSocket, objectStore, config, stats, null, null, null, new AdmissionControl(config));
+        }
 
-        public ClientHandler(Socket clientSocket, HashMap<String, byte[]> objectStore) {
+        public ClientHandler(Socket clientSocket, ObjectStore objectStore, ServerConfig config, ServerStats stats,
+                ReplicationLog replication, InvalidationTracker tracker, Snapshotter snapshotter,
+                AdmissionControl admission) {
             this.clientSocket = clientSocket;
             this.objectStore = objectStore;
+            this.config = config;
+            this.stats = stats;
+            this.replication = replication;
+            this.tracker = tracker;
+            this.snapshotter = snapshotter;
+            this.admission = admission;
         }
 
         @Override
 		public void run() {
+			stats.connectionOpened();
 			try {
-				// create DataInputStream and DataOutputStream for communication protocol
-				DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-				DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+				// responses are flushed once per batch of requests, Nagle would only delay them
+				clientSocket.setTcpNoDelay(true);
+				// a client that stops sending, between requests or halfway through an upload, gives its connection up
+				if (config.idleTimeoutMillis > 0) {
+					clientSocket.setSoTimeout(config.idleTimeoutMillis);
+				}
+
+				// create DataInputStream and DataOutputStream for communication protocol,
+				// buffered so pipelined requests are read and answered in batches
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						stats.countIn(clientSocket.getInputStream())));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						stats.countOut(clientSocket.getOutputStream())));
+
+				// clients that don't open with the handshake speak version 1
+				Protocol.Handshake handshake = Protocol.accept(in, out, config.features());
+				int version = handshake.version;
+				compression = handshake.has(Protocol.FEATURE_COMPRESSION);
 
 				while (true) {
 					// read the command from the client
-					String command = in.readUTF();
-
-					// log the received command
-					System.out.println("Received command: " + command);
-
-					// based on the command, decide which operation to use
-					if ("PUT".equals(command)) {
-						handlePut(in, out);
-					} else if ("GET".equals(command)) {
-						handleGet(in, out);
-					} else if ("REMOVE".equals(command)) {
-						handleRemove(in, out);
-					} else if ("LIST".equals(command)) {
-						handleList(out);
-					} else if ("DISCONNECT".equals(command)) {
-						clientSocket.close();
-						break;
+					int opcode = version == Protocol.VERSION_1 ? readCommand(in, out) : readFrame(in, out);
+
+					if (opcode != 0) {
+						// log the received command
+						Log.debug("Received command: %s", Protocol.name(opcode));
+
+						long start = System.nanoTime();
+						boolean open;
+						try {
+							open = dispatch(opcode, in, out);
+						} finally {
+							expiresAt = 0;
+						}
+						// replication and invalidation streams last as long as the client, they are no request latency
+						if (opcode != Protocol.REPLICATE && opcode != Protocol.SUBSCRIBE) {
+							stats.record(opcode, System.nanoTime() - start);
+						}
+						if (!open) {
+							break;
+						}
+					}
+
+					// only flush once the client has no further requests queued up
+					if (in.available() == 0) {
+						out.flush();
 					}
 				}
+			} catch (EOFException e) {
+				Log.debug("Client %s went away without disconnecting", clientSocket.getInetAddress());
+			} catch (SocketTimeoutException e) {
+				admission.idleConnectionClosed();
+				Log.debug("Closing idle client %s", clientSocket.getInetAddress());
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.warn("Error serving client %s", clientSocket.getInetAddress(), e);
+			} finally {
+				stats.connectionClosed();
+				// make sure pooled workers never leak the connection
+				try {
+					clientSocket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		/**
+		 * Reads a version 1 command string.
+		 *
+		 * @return		opcode of the command, 0 if unknown
+		 */
+		private int readCommand(DataInputStream in, DataOutputStream out) throws IOException {
+			String command = in.readUTF();
+
+			// a tagged request carries an id that is echoed in front of the response
+			if ("REQ".equals(command)) {
+				out.writeInt(in.readInt());
+				command = in.readUTF();
+			}
+			// a PUT with an expiry time carries it in front of the request
+			if ("TTL".equals(command)) {
+				expiresAt = readExpiry(in);
+				command = in.readUTF();
 			}
+			return Protocol.opcode(command);
+		}
+
+		/**
+		 * Reads a version 2 frame header.
+		 *
+		 * @return		opcode of the frame, 0 if it was unknown and skipped
+		 */
+		private int readFrame(DataInputStream in, DataOutputStream out) throws IOException {
+			int opcode = in.readUnsignedByte();
+			int length = in.readInt();
+
+			// a tagged request carries an id that is echoed in front of the response
+			if (opcode == Protocol.REQ) {
+				out.writeInt(in.readInt());
+				opcode = in.readUnsignedByte();
+				length = in.readInt();
+			}
+			// a PUT with an expiry time carries it in front of the request
+			if (opcode == Protocol.TTL) {
+				expiresAt = readExpiry(in);
+				opcode = in.readUnsignedByte();
+				length = in.readInt();
+			}
+			if (length < 0) {
+				throw new IOException("Invalid frame length " + length);
+			}
+
+			if (Protocol.name(opcode) == null || opcode == Protocol.REQ || opcode == Protocol.TTL) {
+				// the length lets us step over requests from newer clients and stay in sync
+				if (in.skipBytes(length) < length) {
+					throw new EOFException();
+				}
+				out.writeInt(Protocol.UNKNOWN_COMMAND);
+				return 0;
+			}
+			return opcode;
+		}
+
+		/**
+		 * Reads the time to live of a TTL prefix.
+		 *
+		 * @return		expiry time in epoch milliseconds
+		 */
+		private long readExpiry(DataInputStream in) throws IOException {
+			long ttlMillis = in.readLong();
+			if (ttlMillis <= 0) {
+				throw new IOException("Invalid TTL " + ttlMillis);
+			}
+			long now = System.currentTimeMillis();
+			return ttlMillis < Long.MAX_VALUE - now ? now + ttlMillis : Long.MAX_VALUE;
+		}
+
+		/**
+		 * Runs one command. Package-private so benchmarks can drive the
+		 * handlers with in-memory streams.
+		 *
+		 * @return		false once the client disconnected
+		 */
+		boolean dispatch(int opcode, DataInputStream in, DataOutputStream out) throws IOException {
+			// based on the command, decide which operation to use
+			switch (opcode) {
+				case Protocol.PUT:
+					handlePut(in, out);
+					break;
+				case Protocol.PUTHASH:
+					handlePutHash(in, out);
+					break;
+				case Protocol.SET:
+					handleSet(in, out);
+					break;
+				case Protocol.CAS:
+					handleCas(in, out);
+					break;
+				case Protocol.GET:
+					handleGet(in, out);
+					break;
+				case Protocol.GETVERSIONED:
+					handleGetVersioned(in, out);
+					break;
+				case Protocol.REMOVE:
+					handleRemove(in, out);
+					break;
+				case Protocol.MPUT:
+					handleMultiPut(in, out);
+					break;
+				case Protocol.MGET:
+					handleMultiGet(in, out);
+					break;
+				case Protocol.MREMOVE:
+					handleMultiRemove(in, out);
+					break;
+				case Protocol.PUTSTREAM:
+					handlePutStream(in, out);
+					break;
+				case Protocol.GETSTREAM:
+					handleGetStream(in, out);
+					break;
+				case Protocol.GETRANGE:
+					handleGetRange(in, out);
+					break;
+				case Protocol.GETTTL:
+					handleGetTtl(in, out);
+					break;
+				case Protocol.LIST:
+					handleList(out);
+					break;
+				case Protocol.LISTPAGE:
+					handleListPage(in, out);
+					break;
+				case Protocol.PING:
+					out.writeInt(0);
+					break;
+				case Protocol.STATS:
+					handleStats(out);
+					break;
+				case Protocol.REPLICATE:
+					// the connection belongs to the replication stream from now on
+					handleReplicate(in, out);
+					return false;
+				case Protocol.SUBSCRIBE:
+					// so is the invalidation stream
+					handleSubscribe(out);
+					return false;
+				case Protocol.TRACK:
+					handleTrack(in, out);
+					break;
+				case Protocol.SNAPSHOT:
+					handleSnapshot(out);
+					break;
+				case Protocol.DISCONNECT:
+					out.flush();
+					clientSocket.close();
+					return false;
+				default:
+					break;
+			}
+			return true;
 		}
 
 		private void handlePut(DataInputStream in, DataOutputStream out) throws IOException {
 			// read the key from the client
 			String key = in.readUTF();
-		
+
+			respondStored(putValue(key, in), out);
+		}
+
+		private void handlePutHash(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key and the hash of the value from the client
+			String key = in.readUTF();
+			byte[] hash = new byte[Protocol.HASH_SIZE];
+			in.readFully(hash);
+
+			// the client only uploads the value if no stored object has the same content
+			byte[] data = objectStore.getByHash(hash);
+			if (data == null) {
+				Log.debug("Content not stored. Sending response: 4");
+				out.writeInt(4);
+				return;
+			}
+			respondStored(store(key, data), out);
+		}
+
+		private void handleSet(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key from the client
+			String key = in.readUTF();
+
+			storeVersioned(key, -1, in, out);
+		}
+
+		private void handleCas(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key and the version the object must have from the client
+			String key = in.readUTF();
+			long version = in.readLong();
+			if (version < 0) {
+				throw new IOException("Invalid version " + version);
+			}
+
+			storeVersioned(key, version, in, out);
+		}
+
+		/**
+		 * Reads a value and replaces the object under key with it, only if
+		 * it has the given version unless that is -1, and answers with the
+		 * status and a version: 0 and the new version if stored, 6 and the
+		 * current version on a mismatch. 3, 5, 7 and 8 as for PUT come
+		 * without a version.
+		 */
+		private void storeVersioned(String key, long version, DataInputStream in, DataOutputStream out)
+				throws IOException {
+			ValueHeader value = readValueHeader(in);
+			int status = admit(value, value.buffered(), in);
+			if (status != 0) {
+				respondStored(status, out);
+				return;
+			}
+
+			long stored;
+			try {
+				byte[] data = readValue(in, value);
+				stored = version < 0
+						? objectStore.put(key, data, expiresAt)
+						: objectStore.putIfVersion(key, data, version, expiresAt);
+			} catch (InsufficientSpaceException e) {
+				Log.debug("%s", e.getMessage());
+				respondStored(3, out);
+				return;
+			} catch (ReadOnlyReplicaException e) {
+				Log.debug("%s", e.getMessage());
+				respondStored(5, out);
+				return;
+			} finally {
+				admission.release(value.buffered());
+			}
+
+			if (stored == 0) {
+				// the current version lets the client tell whether it has to read the object again
+				Log.debug("Version mismatch. Sending response: 6");
+				out.writeInt(6);
+				out.writeLong(objectStore.version(key));
+				return;
+			}
+			Log.debug("Storing data. Sending response: 0");
+			out.writeInt(0);
+			out.writeLong(stored);
+		}
+
+		/**
+		 * Reads the size prefix of a value, and how a compressing client
+		 * encoded it.
+		 */
+		private ValueHeader readValueHeader(DataInputStream in) throws IOException {
+			// a compressing client says how the value is encoded first
+			int codec = ValueCodec.RAW;
+			int rawSize = -1;
+			if (compression) {
+				codec = in.readUnsignedByte();
+				rawSize = in.readInt();
+			}
+
 			// read the data size from the client
 			int dataSize = in.readInt();
-		
-			// read the actual data from the client
-			byte[] data = new byte[dataSize];
+			if (dataSize < 0) {
+				throw new IOException("Invalid data size " + dataSize);
+			}
+			if (codec == ValueCodec.DEFLATE ? rawSize < 0 : codec != ValueCodec.RAW || (compression && rawSize != dataSize)) {
+				throw new IOException("Invalid value encoding " + codec);
+			}
+			return new ValueHeader(codec, rawSize, dataSize);
+		}
+
+		/**
+		 * Reads the value behind a header into memory, inflated if the
+		 * client compressed it.
+		 */
+		private byte[] readValue(DataInputStream in, ValueHeader value) throws IOException {
+			byte[] data = new byte[value.dataSize];
 			in.readFully(data);
-		
-			// store the data in the objectStore hashmap
-			if (objectStore.containsKey(key)) {
-				System.out.println("Key already exists. Sending response: 1");
-				out.writeInt(1);  // key already exists
+			if (value.codec == ValueCodec.DEFLATE) {
+				// inflated here, the store decides on its own whether to keep it compressed
+				return ValueCodec.inflate(data, 0, value.dataSize, value.rawSize);
+			}
+			return data;
+		}
+
+		/**
+		 * Checks a value against --max-object-size and reserves the memory
+		 * it is read into from --max-inflight-bytes. A refused value is
+		 * skipped, so the connection stays in step for the next request.
+		 *
+		 * @param buffered	bytes the value takes in memory until it is stored,
+		 *        			to be released by the caller once admitted
+		 *
+		 * @return		0 if admitted, 7 if the server is too busy and 8 if
+		 *        		the object is too large
+		 */
+		private int admit(ValueHeader value, long buffered, DataInputStream in) throws IOException {
+			int status = admission.tooLarge(value.objectSize()) ? 8 : admission.reserve(buffered) ? 0 : 7;
+			if (status != 0) {
+				discard(in, value.dataSize);
+			}
+			return status;
+		}
+
+		/**
+		 * Reads and drops bytes of a request that is refused.
+		 */
+		private static void discard(DataInputStream in, long n) throws IOException {
+			while (n > 0) {
+				int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+				if (skipped == 0) {
+					// skipBytes also gives up at the end of the stream
+					if (in.read() < 0) {
+						throw new EOFException();
+					}
+					skipped = 1;
+				}
+				n -= skipped;
+			}
+		}
+
+		private void handleMultiPut(DataInputStream in, DataOutputStream out) throws IOException {
+			int count = readBatchSize(in);
+
+			// every key and value is read before answering, the statuses go back in request order
+			int[] statuses = new int[count];
+			int stored = 0;
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				statuses[i] = putValue(key, in);  // 1 if the key exists, 3 if there is no space
+				if (statuses[i] == 0) {
+					stored++;
+				}
+			}
+			Log.debug("Stored %d of %d objects", stored, count);
+
+			out.writeInt(count);
+			for (int status : statuses) {
+				out.writeInt(status);
+			}
+		}
+
+		private int readBatchSize(DataInputStream in) throws IOException {
+			int count = in.readInt();
+			if (count < 0 || count > MAX_BATCH_SIZE) {
+				throw new IOException("Invalid batch size " + count);
+			}
+			return count;
+		}
+
+		/**
+		 * Reads a size prefixed value and stores it under key.
+		 *
+		 * @return		PUT status, 0 if stored, 1 if the key already exists,
+		 *        		3 if the store has no space for the value, 5 if
+		 *        		this server is a read-only replica, 7 if it is too
+		 *        		busy and 8 if the object is too large
+		 */
+		private int putValue(String key, DataInputStream in) throws IOException {
+			ValueHeader value = readValueHeader(in);
+
+			// small objects are read in one go, anything that will end up on disk is streamed there
+			boolean spill = value.codec == ValueCodec.RAW && config.spillDir() != null
+					&& value.dataSize > config.diskThreshold;
+			long buffered = spill ? config.diskThreshold : value.buffered();
+			int status = admit(value, buffered, in);
+			if (status != 0) {
+				return status;
+			}
+
+			try {
+				if (!spill) {
+					return store(key, readValue(in, value));
+				}
+				try (UploadBuffer upload = new UploadBuffer(config.spillDir(), config.diskThreshold)) {
+					byte[] chunk = new byte[COPY_CHUNK_SIZE];
+					int remaining = value.dataSize;
+					while (remaining > 0) {
+						int n = in.read(chunk, 0, Math.min(chunk.length, remaining));
+						if (n < 0) {
+							throw new EOFException();
+						}
+						upload.write(chunk, 0, n);
+						remaining -= n;
+					}
+					return store(key, upload);
+				}
+			} finally {
+				admission.release(buffered);
+			}
+		}
+
+		private void handlePutStream(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key from the client
+			String key = in.readUTF();
+
+			// read chunks until the zero length terminator, never holding more than one in memory
+			long reserved = 0;
+			try (UploadBuffer upload = new UploadBuffer(config.spillDir(), config.diskThreshold)) {
+				byte[] chunk = new byte[COPY_CHUNK_SIZE];
+				long size = 0;
+				int status = 0;
+				int length;
+				while ((length = in.readInt()) != 0) {
+					if (length == -1) {
+						// the client could not read its source, drop what we have so far
+						out.writeInt(2);
+						return;
+					}
+					if (length < 0 || length > MAX_CHUNK_SIZE) {
+						throw new IOException("Invalid chunk size " + length);
+					}
+					size += length;
+					if (status == 0) {
+						// the stream has no size up front, so the limits are checked as it grows
+						long buffered = length + (config.spillDir() == null ? size : Math.min(size, config.diskThreshold));
+						if (admission.tooLarge(size)) {
+							status = 8;
+						} else if (buffered > reserved) {
+							if (admission.reserve(buffered - reserved)) {
+								reserved = buffered;
+							} else {
+								status = 7;
+							}
+						}
+					}
+					if (status != 0) {
+						// the rest of a refused stream is read to the terminator before answering
+						discard(in, length);
+						continue;
+					}
+					if (length > chunk.length) {
+						chunk = new byte[length];
+					}
+					in.readFully(chunk, 0, length);
+					upload.write(chunk, 0, length);
+				}
+				respondStored(status != 0 ? status : store(key, upload), out);
+			} finally {
+				admission.release(reserved);
+			}
+		}
+
+		/**
+		 * @return		PUT status, see putValue
+		 */
+		private int store(String key, byte[] data) {
+			try {
+				return objectStore.putIfAbsent(key, data, expiresAt) ? 0 : 1;
+			} catch (InsufficientSpaceException e) {
+				Log.debug("%s", e.getMessage());
+				return 3;
+			} catch (ReadOnlyReplicaException e) {
+				Log.debug("%s", e.getMessage());
+				return 5;
+			}
+		}
+
+		/**
+		 * @return		PUT status, see putValue
+		 */
+		private int store(String key, UploadBuffer upload) throws IOException {
+			try {
+				boolean stored = upload.spilled()
+						? objectStore.putFileIfAbsent(key, upload.takeFile(), expiresAt)
+						: objectStore.putIfAbsent(key, upload.toByteArray(), expiresAt);
+				return stored ? 0 : 1;
+			} catch (InsufficientSpaceException e) {
+				Log.debug("%s", e.getMessage());
+				return 3;
+			} catch (ReadOnlyReplicaException e) {
+				Log.debug("%s", e.getMessage());
+				return 5;
+			}
+		}
+
+		private void respondStored(int status, DataOutputStream out) throws IOException {
+			if (status == 0) {
+				Log.debug("Storing data. Sending response: 0");
+			} else if (status == 1) {
+				Log.debug("Key already exists. Sending response: 1");
+			} else if (status == 3) {
+				Log.debug("No space for object. Sending response: 3");
+			} else if (status == 7) {
+				Log.debug("Server is busy. Sending response: 7");
+			} else if (status == 8) {
+				Log.debug("Object is too large. Sending response: 8");
 			} else {
-				System.out.println("Storing data. Sending response: 0");
-				objectStore.put(key, data);
-				out.writeInt(0);  // data stored successfully
+				Log.debug("Server is a read-only replica. Sending response: %d", status);
 			}
+			out.writeInt(status);
 		}
 
 		private void handleGet(DataInputStream in, DataOutputStream out) throws IOException {
-			System.out.println("Handling GET request");
+			Log.debug("Handling GET request");
 	
 			// read the key from the client
 			String key = in.readUTF();
+
+			sendValue(key, out);
+		}
+
+		private void handleGetVersioned(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key from the client
+			String key = in.readUTF();
+
+			// the version is read first, so a change in between can only make it look older than the value
+			long version = objectStore.version(key);
+
+			try (FileChannel file = objectStore.openFile(key)) {
+				if (file != null) {
+					long size = file.size();
+					if (size > Integer.MAX_VALUE) {
+						// too large for a GET, and so for a GETVERSIONED
+						out.writeInt(2);
+						return;
+					}
+					out.writeInt(0);
+					out.writeLong(version);
+					sendFileValue(file, size, out);
+					return;
+				}
+			}
+
+			byte[] data = compression ? objectStore.getStored(key) : objectStore.get(key);
+			if (data == null) {
+				out.writeInt(1);
+				Log.debug("Key not found. Sending response: 1");
+				return;
+			}
+
+			out.writeInt(0);
+			out.writeLong(version);
+			if (compression) {
+				ValueCodec.writeStored(out, data);
+			} else {
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+
+		private void handleMultiGet(DataInputStream in, DataOutputStream out) throws IOException {
+			int count = readBatchSize(in);
+			String[] keys = new String[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = in.readUTF();
+			}
+
+			// each key is answered exactly like a GET, one after the other
+			out.writeInt(count);
+			for (String key : keys) {
+				sendValue(key, out);
+			}
+		}
+
+		private void sendValue(String key, DataOutputStream out) throws IOException {
+			// tracked before reading, so a change right after the read is still pushed
+			if (subscriber != null) {
+				tracker.track(key, subscriber);
+			}
+
+			// large objects live in files and go straight from the page cache to the socket
+			try (FileChannel file = objectStore.openFile(key)) {
+				if (file != null) {
+					sendFile(file, out);
+					return;
+				}
+			}
+
+			// a compressing client gets the value in the form it is stored in
+			byte[] data = compression ? objectStore.getStored(key) : objectStore.get(key);
 	
-			if (objectStore.containsKey(key)) {
-				byte[] data = objectStore.get(key);
-	
+			if (data != null) {
 				// send a success response to the client
 				out.writeInt(0);
-	
-				// send the data size to the client
-				out.writeInt(data.length);
-	
-				// send the actual data to the client
-				out.write(data);
-				out.flush();
+
+				if (compression) {
+					ValueCodec.writeStored(out, data);
+				} else {
+					// send the data size to the client
+					out.writeInt(data.length);
+		
+					// send the actual data to the client, the run loop flushes it
+					out.write(data);
+				}
 	
 			} else {
 				// send a key not found response to the client
 				out.writeInt(1);
-				System.out.println("Key not found. Sending response: 1");
+				Log.debug("Key not found. Sending response: 1");
+			}
+		}
+
+		private void handleGetStream(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key from the client
+			String key = in.readUTF();
+
+			try (FileChannel file = objectStore.openFile(key)) {
+				if (file != null) {
+					out.writeInt(0);
+					out.writeLong(file.size());
+					transfer(file, 0, file.size(), out);
+					return;
+				}
+			}
+
+			byte[] data = objectStore.get(key);
+			if (data == null) {
+				out.writeInt(1);  // key not found
+				return;
+			}
+			out.writeInt(0);
+			out.writeLong(data.length);
+			out.write(data);
+		}
+
+		private void handleGetTtl(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key from the client
+			String key = in.readUTF();
+
+			long expiresAt = objectStore.expiresAt(key);
+			if (!objectStore.containsKey(key)) {
+				out.writeInt(1);  // key not found
+				return;
 			}
+			// an object that is due but not removed yet still has a moment left
+			out.writeInt(0);
+			out.writeLong(expiresAt == 0 ? 0 : Math.max(1, expiresAt - System.currentTimeMillis()));
+		}
+
+		private void handleGetRange(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the key and the range from the client
+			String key = in.readUTF();
+			long offset = in.readLong();
+			long length = in.readLong();
+			if (offset < 0 || length < 0) {
+				throw new IOException("Invalid range " + offset + "+" + length);
+			}
+
+			// only the slice is read from the file, the rest never leaves the disk
+			try (FileChannel file = objectStore.openFile(key)) {
+				if (file != null) {
+					long size = file.size();
+					long count = Math.max(0, Math.min(length, size - offset));
+					out.writeInt(0);
+					out.writeLong(size);
+					out.writeLong(count);
+					transfer(file, offset, count, out);
+					return;
+				}
+			}
+
+			byte[] data = objectStore.get(key);
+			if (data == null) {
+				out.writeInt(1);  // key not found
+				return;
+			}
+			// a slice past the end of the object is empty
+			int start = (int) Math.min(offset, data.length);
+			int count = (int) Math.min(length, data.length - start);
+			out.writeInt(0);
+			out.writeLong(data.length);
+			out.writeLong(count);
+			out.write(data, start, count);
+		}
+
+		private void sendFile(FileChannel file, DataOutputStream out) throws IOException {
+			long size = file.size();
+			if (size > Integer.MAX_VALUE) {
+				// only GETSTREAM can describe objects of 2 GB and more
+				out.writeInt(2);
+				return;
+			}
+
+			// send a success response and the data size through the stream as usual
+			out.writeInt(0);
+			sendFileValue(file, size, out);
+		}
+
+		/* sends a file of less than 2 GB as the value field of a response */
+		private void sendFileValue(FileChannel file, long size, DataOutputStream out) throws IOException {
+			if (compression) {
+				ValueCodec.writeField(out, ValueCodec.RAW, (int) size, (int) size);
+			} else {
+				out.writeInt((int) size);
+			}
+			transfer(file, 0, size, out);
+		}
+
+		/* sends count bytes of file starting at position */
+		private void transfer(FileChannel file, long position, long count, DataOutputStream out) throws IOException {
+			// everything buffered so far has to reach the socket before the file does
+			out.flush();
+
+			// let the kernel copy the file contents to the socket
+			SocketChannel socket = clientSocket.getChannel();
+			long sent = 0;
+			while (sent < count) {
+				sent += file.transferTo(position + sent, count - sent, socket);
+			}
+			stats.sent(sent);
+		}
+
+		private void handleMultiRemove(DataInputStream in, DataOutputStream out) throws IOException {
+			int count = readBatchSize(in);
+			String[] keys = new String[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = in.readUTF();
+			}
+
+			int removed = 0;
+			out.writeInt(count);
+			for (String key : keys) {
+				int status = remove(key);  // 1 if the key doesn't exist
+				if (status == 0) {
+					removed++;
+				}
+				out.writeInt(status);
+			}
+			Log.debug("Removed %d of %d objects", removed, count);
 		}
 
 		private void handleRemove(DataInputStream in, DataOutputStream out) throws IOException {
 			// read the key from the client
 			String key = in.readUTF();
 		
-			// check if the key exists in the objectStore
-			if (objectStore.containsKey(key)) {
-				// remove the file associated with the key
-				objectStore.remove(key);
-				System.out.println("Removed object with key: " + key);
-		
-				// send a success response
-				out.writeInt(0);
-			} else {
-				// key doesn't exist
-				out.writeInt(1);
-				System.out.println("Key doesn't exist. Sending response: 1");
+			// remove the object, the status tells us whether it existed
+			int status = remove(key);
+			if (status == 0) {
+				Log.debug("Removed object with key: %s", key);
+			} else if (status == 1) {
+				Log.debug("Key doesn't exist. Sending response: 1");
+			}
+			out.writeInt(status);
+		}
+
+		/**
+		 * @return		REMOVE status, 0 if removed, 1 if the key doesn't
+		 *        		exist and 5 if this server is a read-only replica
+		 */
+		private int remove(String key) {
+			try {
+				return objectStore.remove(key) ? 0 : 1;
+			} catch (ReadOnlyReplicaException e) {
+				Log.debug("%s. Sending response: 5", e.getMessage());
+				return 5;
 			}
 		}
 
 		private void handleList(DataOutputStream out) throws IOException {
 			// get the list of keys from the object store
-			String[] keys = objectStore.keySet().toArray(new String[0]);
+			String[] keys = objectStore.keys();
 		
 			// send the number of keys to the client
 			out.writeInt(keys.length);
@@ -130,41 +896,331 @@ public class RUStoreServer {
 			for (String key : keys) {
 				out.writeUTF(key);
 			}
+		}
+
+		private void handleListPage(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the prefix, the key to continue after ("" to start at the beginning) and the page size
+			String prefix = in.readUTF();
+			String startAfter = in.readUTF();
+			int pageSize = Math.max(1, Math.min(in.readInt(), MAX_PAGE_SIZE));
+
+			// one extra key tells us whether another page follows
+			String[] keys = objectStore.keys(prefix, startAfter.isEmpty() ? null : startAfter, pageSize + 1);
+			int count = Math.min(keys.length, pageSize);
+
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeUTF(keys[i]);
+			}
+			out.writeBoolean(keys.length > pageSize);
+		}
+
+		private void handleReplicate(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the replication id and offset the replica has applied so far
+			long id = in.readLong();
+			long offset = in.readLong();
+
+			if (replication == null) {
+				Log.warn("Replica %s refused, replication is off", clientSocket.getRemoteSocketAddress());
+				out.writeInt(1);
+				out.flush();
+				return;
+			}
+			new ReplicationSource(replication, clientSocket, in, out).run(id, offset);
+		}
+
+		private void handleSubscribe(DataOutputStream out) throws IOException {
+			if (tracker == null) {
+				out.writeInt(1);  // near caches are off
+				out.flush();
+				return;
+			}
+			tracker.serve(clientSocket, out);
+		}
+
+		private void handleTrack(DataInputStream in, DataOutputStream out) throws IOException {
+			// read the id of the subscriber that receives the invalidations for this connection
+			long id = in.readLong();
+
+			subscriber = tracker == null ? null : tracker.find(id);
+			out.writeInt(subscriber != null ? 0 : 1);
+		}
+
+		private void handleSnapshot(DataOutputStream out) throws IOException {
+			Snapshotter.Result result = snapshotter == null ? null : snapshotter.snapshot();
+			if (result == null) {
+				Log.debug("Snapshot already running. Sending response: 1");
+				out.writeInt(1);
+				return;
+			}
+
+			// send the file the snapshot went to, its object count and its size
+			out.writeInt(0);
+			out.writeUTF(result.file.toAbsolutePath().toString());
+			out.writeLong(result.objects);
+			out.writeLong(result.bytes);
+		}
+
+		private void handleStats(DataOutputStream out) throws IOException {
+			Map<String, Long> snapshot = stats.snapshot(objectStore);
+			admission.addStats(snapshot);
+
+			// send the number of metrics, then each name and value
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Long> metric : snapshot.entrySet()) {
+				out.writeUTF(metric.getKey());
+				out.writeLong(metric.getValue());
+			}
 		}		
+
+		/**
+		 * Encoding and size of a value a client is about to send.
+		 */
+		private static final class ValueHeader {
+			final int codec;
+			final int rawSize;   // inflated size of a DEFLATE value
+			final int dataSize;   // bytes on the wire
+
+			ValueHeader(int codec, int rawSize, int dataSize) {
+				this.codec = codec;
+				this.rawSize = rawSize;
+				this.dataSize = dataSize;
+			}
+
+			long objectSize() {
+				return codec == ValueCodec.DEFLATE ? rawSize : dataSize;
+			}
+
+			// bytes held in memory while the value is read and inflated
+			long buffered() {
+				return codec == ValueCodec.DEFLATE ? (long) dataSize + rawSize : dataSize;
+			}
+		}
+    }
+    /**
+     * Creates the executor that runs one ClientHandler per accepted
+     * connection. ClientHandler is blocking, so in VIRTUAL mode every
+     * connection gets a cheap virtual thread, while POOL mode caps the
+     * number of platform threads and queues the remaining connections.
+     */
+    static Executor createExecutor(ServerConfig config) {
+        if (config.executionMode == ServerConfig.ExecutionMode.VIRTUAL) {
+            try {
+                // looked up reflectively so the server still builds for Java 11
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) factory.invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                Log.warn("Virtual threads not available on this JVM, falling back to pool mode");
+            }
+        } else if (config.executionMode == ServerConfig.ExecutionMode.THREAD) {
+            return task -> new Thread(task).start();
+        }
+
+        AtomicInteger workerId = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                config.poolThreads, config.poolThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.poolQueue),
+                task -> {
+                    Thread t = new Thread(task, "rustore-worker-" + workerId.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
+
+    static ObjectStore createStore(ServerConfig config) throws IOException {
+        return createStore(config, null, null, null);
+    }
+
+    /**
+     * Creates the object store selected with --store, wrapped in a
+     * CompressedObjectStore when --compression is set, a DedupObjectStore
+     * when --dedup is set, a TieredObjectStore when --disk-threshold is
+     * set, a DurableObjectStore when --durability is set and always in an
+     * IndexedObjectStore. Given a replication log and an invalidation
+     * tracker, a ReplicatedObjectStore and an InvalidatingObjectStore come
+     * next, then always a VersionedObjectStore. With --max-memory a
+     * BoundedObjectStore goes around all of them, so its evictions are
+     * logged, unindexed, replicated, invalidated and unversioned like any
+     * other REMOVE. An ExpiringObjectStore goes around that for the same
+     * reason, and given a snapshotter a SnapshotObjectStore around that.
+     * A replica finally wraps everything in a ReplicaObjectStore.
+     */
+    static ObjectStore createStore(ServerConfig config, ReplicationLog replication, InvalidationTracker tracker,
+            Snapshotter snapshotter) throws IOException {
+        ObjectStore store;
+        switch (config.storeType) {
+            case OFFHEAP:
+                store = new OffHeapObjectStore(config.slabSize);
+                break;
+            case CONCURRENT:
+            default:
+                store = new ConcurrentObjectStore();
+                break;
+        }
+
+        // only the memory tier is compressed and deduplicated, large objects are streamed to disk as they come
+        if (config.compression) {
+            store = new CompressedObjectStore(store, config.compressionMinSize);
+        }
+        if (config.dedup) {
+            store = new DedupObjectStore(store);
+        }
+
+        if (config.diskThreshold > 0) {
+            store = new TieredObjectStore(store, config.dataDir.resolve("objects"), config.diskThreshold);
+        }
+
+        if (config.durability != null) {
+            MutationLog log = new MutationLog(config.dataDir.resolve("log"), config.segmentSize,
+                    config.durability, config.groupCommitMillis);
+            store = new DurableObjectStore(store, log, config.compactSeconds, config.spillDir(),
+                    config.diskThreshold);
+        }
+
+        // indexed after durable, so it sees the keys a durable store recovered
+        store = new IndexedObjectStore(store);
+
+        if (replication != null) {
+            store = new ReplicatedObjectStore(store, replication);
+        }
+        if (tracker != null) {
+            store = new InvalidatingObjectStore(store, tracker);
+        }
+        store = new VersionedObjectStore(store);
+
+        if (config.maxMemory > 0) {
+            store = new BoundedObjectStore(store, config.maxMemory, config.eviction);
+        }
+        store = new ExpiringObjectStore(store);
+        if (snapshotter != null) {
+            store = new SnapshotObjectStore(store, snapshotter);
+        }
+
+        // the replica applies the primary's records to the store it wraps
+        if (config.replicaOf != null) {
+            store = new ReplicaObjectStore(store, config.replicaOf, config.spillDir(), config.diskThreshold);
+        }
+        return store;
+    }
+
+    /**
+     * Turns away a client over --max-connections. The busy status 7 is
+     * sent right away: a version 1 client reads it as the response to its
+     * first request, a newer client reads version 0 in place of the
+     * handshake reply (Protocol.BUSY).
+     */
+    static void refuse(Socket clientSocket) {
+        try {
+            clientSocket.getOutputStream().write(ByteBuffer.allocate(4).putInt(7).array());
+            // closing only after our side is shut down keeps the status from being lost to a reset
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            Log.debug("Error refusing client %s: %s", clientSocket.getInetAddress(), e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
     public static void main(String[] args) {
-        // check if port number is provided
-        if (args.length != 1) {
-            System.out.println("Usage: java RUStoreServer <port>");
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(ServerConfig.usage());
             System.exit(1);
+            return;
         }
 
-        int port = Integer.parseInt(args[0]);
+        Log.setLevel(config.logLevel);
+        int port = config.port;
         ServerSocket serverSocket = null;
+        Executor executor = createExecutor(config);
+        ServerStats stats = new ServerStats();
+        ReplicationLog replication = config.replication == null ? null : new ReplicationLog(
+                config.replicationBacklog, config.replication == ServerConfig.Replication.SEMISYNC,
+                config.replicationTimeoutMillis);
+        InvalidationTracker tracker = config.trackingMaxKeys > 0 ? new InvalidationTracker(config.trackingMaxKeys) : null;
+        Snapshotter snapshotter = new Snapshotter(config.dataDir.resolve("snapshots"));
+        AdmissionControl admission = new AdmissionControl(config);
 
         try {
-            // create a server socket
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server started. Listening on port " + port);
+            objectStore = createStore(config, replication, tracker, snapshotter);
+            if (config.loadSnapshot != null) {
+                long start = System.nanoTime();
+                long loaded = SnapshotFile.load(config.loadSnapshot, objectStore, config.loadThreads,
+                        config.spillDir());
+                Log.info("Loaded %d objects from snapshot %s in %d ms on %d threads", loaded, config.loadSnapshot,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), config.loadThreads);
+            }
+            ObjectStore store = objectStore;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                if (store instanceof Closeable) {
+                    try {
+                        ((Closeable) store).close();
+                    } catch (IOException e) {
+                        Log.error("Error closing object store: %s", e.getMessage());
+                    }
+                }
+                // the log thread dies with the JVM, print whatever it has not gotten to
+                Log.flush();
+            }));
+
+            // create a server socket, backed by a channel so clients can be sent files with transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverChannel.socket();
+            Log.info("Server started. Listening on port %d", port);
 
             while (true) {
                 // accept client connection
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected from " + clientSocket.getInetAddress());
+                Log.debug("Client connected from %s", clientSocket.getInetAddress());
+                if (!admission.connectionOpened()) {
+                    Log.debug("Too many connections, refusing client %s", clientSocket.getInetAddress());
+                    refuse(clientSocket);
+                    continue;
+                }
 
-                // start a new thread to handle the client
-                Thread clientThread = new Thread(new ClientHandler(clientSocket, objectStore));
-                clientThread.start();
+                // hand the client off to a worker, the accept loop never blocks on it
+                ClientHandler handler = new ClientHandler(clientSocket, objectStore, config, stats, replication,
+                        tracker, snapshotter, admission);
+                try {
+                    executor.execute(() -> {
+                        try {
+                            handler.run();
+                        } finally {
+                            admission.connectionClosed();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    admission.connectionClosed();
+                    stats.connectionRejected();
+                    Log.warn("Server saturated, dropping client %s", clientSocket.getInetAddress());
+                    try {
+                        clientSocket.close();
+                    } catch (IOException closeError) {
+                        // already closed, keep accepting
+                    }
+                }
             }
         } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            Log.error("Error: %s", e.getMessage());
         } finally {
             try {
                 if (serverSocket != null) {
                     serverSocket.close();
                 }
             } catch (Exception e) {
-                System.out.println("Error closing server socket: " + e.getMessage());
+                Log.error("Error closing server socket: %s", e.getMessage());
             }
         }
     }
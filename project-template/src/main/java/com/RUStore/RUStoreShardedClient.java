@@ -0,0 +1,609 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Thread-safe client for a cluster of object store servers that each
+ * hold a share of the keys. Every key is routed to one node with a
+ * consistent HashRing, and every node is reached through its own
+ * RUStoreClientPool.
+ *
+ * Batch operations are split by node and listings are sent to every node
+ * at once, with the results gathered back into request order or merged
+ * into one sorted listing.
+ *
+ * Adding or removing a node moves only the keys the ring reassigns,
+ * about 1/n of them. Moving is a GET, PUT and REMOVE per key and is not
+ * atomic, so a reader may miss a key that is being moved. A moved key
+ * keeps the time it has left to live. Large objects are moved through a
+ * temporary file, so they never have to fit in the client's memory.
+ */
+public class RUStoreShardedClient implements AutoCloseable {
+
+	private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	// keys listed per request while looking for keys to move
+	private static final int REBALANCE_PAGE_SIZE = 1000;
+
+	// objects up to this size are moved in memory, larger ones through a temporary file
+	private static final long MOVE_IN_MEMORY_SIZE = 1 << 20;
+
+	private final int connectionsPerNode;
+	private final HashRing ring;
+	private final ConcurrentHashMap<String, RUStoreClientPool> pools = new ConcurrentHashMap<>();
+	private final ExecutorService scatter;
+	private volatile boolean compression;
+	private volatile boolean dedup;
+
+	/**
+	 * RUStoreShardedClient Constructor, connections are opened lazily
+	 *
+	 * @param endpoints				nodes as host:port
+	 * @param connectionsPerNode	maximum number of open connections per node
+	 */
+	public RUStoreShardedClient(List<String> endpoints, int connectionsPerNode) {
+		this(endpoints, connectionsPerNode, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * @param endpoints				nodes as host:port
+	 * @param connectionsPerNode	maximum number of open connections per node
+	 * @param virtualNodes			points per node on the hash ring, more
+	 *                    			spread keys more evenly
+	 */
+	public RUStoreShardedClient(List<String> endpoints, int connectionsPerNode, int virtualNodes) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("At least one endpoint is required");
+		}
+		this.connectionsPerNode = connectionsPerNode;
+		this.ring = new HashRing(virtualNodes);
+		this.scatter = Executors.newCachedThreadPool(task -> {
+			Thread t = new Thread(task, "rustore-shard-scatter");
+			t.setDaemon(true);
+			return t;
+		});
+		for (String endpoint : endpoints) {
+			pools.put(endpoint, newPool(endpoint));
+			ring.add(endpoint);
+		}
+	}
+
+	private RUStoreClientPool newPool(String endpoint) {
+		int colon = endpoint.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Endpoint must be host:port: " + endpoint);
+		}
+		RUStoreClientPool pool = new RUStoreClientPool(endpoint.substring(0, colon),
+				Integer.parseInt(endpoint.substring(colon + 1)), connectionsPerNode);
+		pool.setCompression(compression);
+		pool.setDeduplication(dedup);
+		return pool;
+	}
+
+	/**
+	 * @see RUStoreClient#setCompression(boolean)
+	 */
+	public void setCompression(boolean enabled) {
+		this.compression = enabled;
+		for (RUStoreClientPool pool : pools.values()) {
+			pool.setCompression(enabled);
+		}
+	}
+
+	/**
+	 * @see RUStoreClient#setDeduplication(boolean)
+	 */
+	public void setDeduplication(boolean enabled) {
+		this.dedup = enabled;
+		for (RUStoreClientPool pool : pools.values()) {
+			pool.setDeduplication(enabled);
+		}
+	}
+
+	/**
+	 * @return		endpoint of the node key is routed to
+	 */
+	public String nodeFor(String key) {
+		return ring.node(key);
+	}
+
+	/**
+	 * @return		endpoints of the nodes on the ring
+	 */
+	public List<String> nodes() {
+		return ring.nodes();
+	}
+
+	private RUStoreClientPool pool(String key) {
+		return pools.get(ring.node(key));
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, byte[])
+	 */
+	public int put(String key, byte[] data) {
+		return pool(key).put(key, data);
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, String)
+	 */
+	public int put(String key, String file_path) {
+		return pool(key).put(key, file_path);
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, byte[], long)
+	 */
+	public int put(String key, byte[] data, long ttlMillis) {
+		return pool(key).put(key, data, ttlMillis);
+	}
+
+	/**
+	 * @see RUStoreClient#put(String, String, long)
+	 */
+	public int put(String key, String file_path, long ttlMillis) {
+		return pool(key).put(key, file_path, ttlMillis);
+	}
+
+	/**
+	 * @see RUStoreClient#set(String, byte[])
+	 */
+	public long set(String key, byte[] data) {
+		return pool(key).set(key, data);
+	}
+
+	/**
+	 * @see RUStoreClient#set(String, byte[], long)
+	 */
+	public long set(String key, byte[] data, long ttlMillis) {
+		return pool(key).set(key, data, ttlMillis);
+	}
+
+	/**
+	 * @see RUStoreClient#compareAndSet(String, long, byte[])
+	 */
+	public long compareAndSet(String key, long version, byte[] data) {
+		return pool(key).compareAndSet(key, version, data);
+	}
+
+	/**
+	 * @see RUStoreClient#compareAndSet(String, long, byte[], long)
+	 */
+	public long compareAndSet(String key, long version, byte[] data, long ttlMillis) {
+		return pool(key).compareAndSet(key, version, data, ttlMillis);
+	}
+
+	/**
+	 * @see RUStoreClient#get(String)
+	 */
+	public byte[] get(String key) {
+		return pool(key).get(key);
+	}
+
+	/**
+	 * @see RUStoreClient#getVersioned(String)
+	 */
+	public VersionedValue getVersioned(String key) {
+		return pool(key).getVersioned(key);
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, String)
+	 */
+	public int get(String key, String file_path) {
+		return pool(key).get(key, file_path);
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, String, long, long)
+	 */
+	public int get(String key, String file_path, long offset, long length) {
+		return pool(key).get(key, file_path, offset, length);
+	}
+
+	/**
+	 * @see RUStoreClient#get(String, long, int)
+	 */
+	public byte[] get(String key, long offset, int length) {
+		return pool(key).get(key, offset, length);
+	}
+
+	/**
+	 * @see RUStoreClient#size(String)
+	 */
+	public long size(String key) {
+		return pool(key).size(key);
+	}
+
+	/**
+	 * @see RUStoreClient#ttl(String)
+	 */
+	public long ttl(String key) {
+		return pool(key).ttl(key);
+	}
+
+	/**
+	 * @see RUStoreClient#remove(String)
+	 */
+	public int remove(String key) {
+		return pool(key).remove(key);
+	}
+
+	/**
+	 * Stores many objects with one request per node, sent in parallel.
+	 *
+	 * @see RUStoreClient#put(String[], byte[][])
+	 */
+	public int[] put(String[] keys, byte[][] data) {
+		return put(keys, data, 0);
+	}
+
+	/**
+	 * Like put(keys, data), except that every object expires after the
+	 * given time to live, 0 for never.
+	 *
+	 * @see RUStoreClient#put(String[], byte[][], long)
+	 */
+	public int[] put(String[] keys, byte[][] data, long ttlMillis) {
+		if (keys.length != data.length) {
+			throw new IllegalArgumentException("Got " + keys.length + " keys but " + data.length + " objects");
+		}
+		int[] statuses = new int[keys.length];
+		scatterKeys(keys, (pool, indexes) -> {
+			String[] nodeKeys = new String[indexes.length];
+			byte[][] nodeData = new byte[indexes.length][];
+			for (int i = 0; i < indexes.length; i++) {
+				nodeKeys[i] = keys[indexes[i]];
+				nodeData[i] = data[indexes[i]];
+			}
+			int[] nodeStatuses = ttlMillis == 0 ? pool.put(nodeKeys, nodeData) : pool.put(nodeKeys, nodeData, ttlMillis);
+			for (int i = 0; i < indexes.length; i++) {
+				statuses[indexes[i]] = nodeStatuses[i];
+			}
+		});
+		return statuses;
+	}
+
+	/**
+	 * Downloads many objects with one request per node, sent in parallel.
+	 *
+	 * @see RUStoreClient#get(String[])
+	 */
+	public byte[][] get(String[] keys) {
+		byte[][] values = new byte[keys.length][];
+		scatterKeys(keys, (pool, indexes) -> {
+			byte[][] nodeValues = pool.get(select(keys, indexes));
+			for (int i = 0; i < indexes.length; i++) {
+				values[indexes[i]] = nodeValues[i];
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Removes many objects with one request per node, sent in parallel.
+	 *
+	 * @see RUStoreClient#remove(String[])
+	 */
+	public int[] remove(String[] keys) {
+		int[] statuses = new int[keys.length];
+		scatterKeys(keys, (pool, indexes) -> {
+			int[] nodeStatuses = pool.remove(select(keys, indexes));
+			for (int i = 0; i < indexes.length; i++) {
+				statuses[indexes[i]] = nodeStatuses[i];
+			}
+		});
+		return statuses;
+	}
+
+	/* runs a batch for the keys of each node, which writes its results into disjoint slots */
+	private interface NodeBatch {
+		void run(RUStoreClientPool pool, int[] indexes);
+	}
+
+	private void scatterKeys(String[] keys, NodeBatch batch) {
+		Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+		for (int i = 0; i < keys.length; i++) {
+			byNode.computeIfAbsent(ring.node(keys[i]), node -> new ArrayList<>()).add(i);
+		}
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (Map.Entry<String, List<Integer>> entry : byNode.entrySet()) {
+			RUStoreClientPool pool = pools.get(entry.getKey());
+			int[] indexes = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+			futures.add(CompletableFuture.runAsync(() -> batch.run(pool, indexes), scatter));
+		}
+		join(futures);
+	}
+
+	private static String[] select(String[] keys, int[] indexes) {
+		String[] selected = new String[indexes.length];
+		for (int i = 0; i < indexes.length; i++) {
+			selected[i] = keys[indexes[i]];
+		}
+		return selected;
+	}
+
+	/* runs an operation on every node in parallel, results in the order of nodes() */
+	private <T> List<T> scatterAll(List<String> nodes, Function<RUStoreClientPool, T> operation) {
+		List<CompletableFuture<T>> futures = new ArrayList<>();
+		for (String node : nodes) {
+			RUStoreClientPool pool = pools.get(node);
+			futures.add(CompletableFuture.supplyAsync(() -> operation.apply(pool), scatter));
+		}
+		return join(futures);
+	}
+
+	private static <T> List<T> join(List<CompletableFuture<T>> futures) {
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.join());
+			}
+		} catch (CompletionException e) {
+			// rethrow what the node operation threw, like the single key methods do
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Lists the keys of every node, asked in parallel.
+	 *
+	 * @return		keys in ascending order, null if there are no keys.
+	 *        		Throw an exception if any other issues occur.
+	 */
+	public String[] list() {
+		TreeSet<String> merged = new TreeSet<>();
+		for (String[] keys : scatterAll(ring.nodes(), RUStoreClientPool::list)) {
+			if (keys != null) {
+				merged.addAll(Arrays.asList(keys));
+			}
+		}
+		return merged.isEmpty() ? null : merged.toArray(new String[0]);
+	}
+
+	/**
+	 * Retrieves one page of keys in ascending order across all nodes.
+	 * Every node is asked for a full page and the smallest keys of all of
+	 * them make up the result.
+	 *
+	 * @see RUStoreClient#list(String, String, int)
+	 */
+	public String[] list(String prefix, String startAfter, int pageSize) {
+		TreeSet<String> merged = new TreeSet<>();
+		for (String[] keys : scatterAll(ring.nodes(), pool -> pool.list(prefix, startAfter, pageSize))) {
+			merged.addAll(Arrays.asList(keys));
+		}
+		return merged.stream().limit(pageSize).toArray(String[]::new);
+	}
+
+	/**
+	 * Lists keys in ascending order across all nodes. Each node is paged
+	 * through on its own and the pages are merged as the iterator
+	 * advances, so no key is fetched twice and only one page per node is
+	 * held in memory. The first pages are fetched in parallel.
+	 *
+	 * @see RUStoreClient#list(String, int)
+	 */
+	public Iterator<String> list(String prefix, int pageSize) {
+		List<Iterator<String>> iterators = scatterAll(ring.nodes(), pool -> {
+			Iterator<String> it = pool.list(prefix, pageSize);
+			it.hasNext();  // fetch the first page here, in parallel with the other nodes
+			return it;
+		});
+		return new MergingIterator(iterators);
+	}
+
+	/* k-way merge of sorted iterators */
+	private static final class MergingIterator implements Iterator<String> {
+
+		/* the next key of one iterator */
+		private static final class Head implements Comparable<Head> {
+			final String key;
+			final Iterator<String> rest;
+
+			Head(String key, Iterator<String> rest) {
+				this.key = key;
+				this.rest = rest;
+			}
+
+			@Override
+			public int compareTo(Head other) {
+				return key.compareTo(other.key);
+			}
+		}
+
+		private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+		MergingIterator(List<Iterator<String>> iterators) {
+			for (Iterator<String> it : iterators) {
+				advance(it);
+			}
+		}
+
+		private void advance(Iterator<String> it) {
+			if (it.hasNext()) {
+				heads.add(new Head(it.next(), it));
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		@Override
+		public String next() {
+			Head head = heads.poll();
+			if (head == null) {
+				throw new NoSuchElementException();
+			}
+			advance(head.rest);
+			return head.key;
+		}
+	}
+
+	/**
+	 * @return		STATS of every node by endpoint, asked in parallel
+	 */
+	public Map<String, Map<String, Long>> stats() {
+		List<String> nodes = ring.nodes();
+		List<Map<String, Long>> results = scatterAll(nodes, RUStoreClientPool::stats);
+		Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			stats.put(nodes.get(i), results.get(i));
+		}
+		return stats;
+	}
+
+	/**
+	 * Adds a node to the ring and moves the keys it now owns over from
+	 * the other nodes.
+	 *
+	 * @param endpoint	node as host:port
+	 *
+	 * @return		number of keys moved
+	 */
+	public synchronized int addNode(String endpoint) {
+		if (pools.containsKey(endpoint)) {
+			throw new IllegalArgumentException(endpoint + " is already a node");
+		}
+		List<String> others = ring.nodes();
+		pools.put(endpoint, newPool(endpoint));
+		ring.add(endpoint);
+
+		int moved = 0;
+		for (String node : others) {
+			moved += moveMisplaced(node);
+		}
+		return moved;
+	}
+
+	/**
+	 * Takes a node off the ring and moves all of its keys to the nodes
+	 * that own them now. The node has to be reachable until it is done.
+	 *
+	 * @param endpoint	node as host:port
+	 *
+	 * @return		number of keys moved
+	 */
+	public synchronized int removeNode(String endpoint) {
+		if (!pools.containsKey(endpoint)) {
+			throw new IllegalArgumentException(endpoint + " is not a node");
+		}
+		if (pools.size() == 1) {
+			throw new IllegalStateException("Cannot remove the last node");
+		}
+		ring.remove(endpoint);
+		int moved = moveMisplaced(endpoint);
+		pools.remove(endpoint).close();
+		return moved;
+	}
+
+	/**
+	 * Moves every key that is stored on a node it is not routed to. Only
+	 * needed after a move was interrupted, addNode and removeNode already
+	 * do this.
+	 *
+	 * @return		number of keys moved
+	 */
+	public synchronized int rebalance() {
+		int moved = 0;
+		for (String node : ring.nodes()) {
+			moved += moveMisplaced(node);
+		}
+		return moved;
+	}
+
+	private int moveMisplaced(String node) {
+		RUStoreClientPool source = pools.get(node);
+		int moved = 0;
+		Iterator<String> keys = source.list("", REBALANCE_PAGE_SIZE);
+		while (keys.hasNext()) {
+			String key = keys.next();
+			String owner = ring.node(key);
+			if (owner.equals(node)) {
+				continue;
+			}
+			int status;
+			try {
+				status = copy(key, source, pools.get(owner));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not move " + key + " to " + owner, e);
+			}
+			if (status == -1) {
+				continue;  // removed meanwhile
+			}
+			if (status != 0 && status != 1) {
+				throw new RuntimeException("Could not move " + key + " to " + owner + ", PUT returned " + status);
+			}
+			source.remove(key);
+			moved++;
+		}
+		return moved;
+	}
+
+	/**
+	 * Puts the object under key on source to target, with the time it
+	 * has left to live. A value written to target in the meantime is
+	 * newer and is kept.
+	 *
+	 * @return		PUT status, -1 if the key was removed from source
+	 */
+	private static int copy(String key, RUStoreClientPool source, RUStoreClientPool target) throws IOException {
+		long ttl = source.ttl(key);
+		long size = source.size(key);
+		if (ttl < 0 || size < 0) {
+			return -1;
+		}
+		if (size <= MOVE_IN_MEMORY_SIZE) {
+			byte[] data = source.get(key);
+			if (data == null) {
+				return -1;
+			}
+			return ttl > 0 ? target.put(key, data, ttl) : target.put(key, data);
+		}
+
+		Path file = Files.createTempFile("rustore-move", null);
+		try {
+			if (source.get(key, file.toString()) != 0) {
+				return -1;
+			}
+			return ttl > 0 ? target.put(key, file.toString(), ttl) : target.put(key, file.toString());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Closes the connections to every node.
+	 */
+	@Override
+	public void close() {
+		for (RUStoreClientPool pool : pools.values()) {
+			pool.close();
+		}
+		scatter.shutdownNow();
+	}
+}
@@ -0,0 +1,16 @@
+package com.RUStore;
+
+/**
+ * Thrown by the store of a replica when a client tries to change it.
+ * Only the primary accepts writes; the server answers the PUT or REMOVE
+ * with status 5, and RUStoreClient throws it for a SET or CAS that got
+ * that status.
+ */
+public class ReadOnlyReplicaException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ReadOnlyReplicaException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,449 @@
+package com.RUStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorates the store of a replica. Clients may read it, but PUT and
+ * REMOVE fail with ReadOnlyReplicaException; the only writer is a
+ * background thread that follows the primary over a REPLICATE connection
+ * (see ReplicationSource) and applies its records.
+ *
+ * The thread reconnects whenever the connection drops, asking to
+ * continue from the offset it applied last. A full resync overwrites the
+ * objects in place and removes the ones the primary no longer has at the
+ * end, so the replica keeps serving reads while it catches up. The
+ * offset is only kept in memory, a restarted replica resyncs in full.
+ *
+ * Objects arrive with their expiry time, so the replica stops serving
+ * them on time and keeps the expiry time after a failover. Values over
+ * the disk threshold are received into a file in the disk tier's
+ * directory and handed over with putFileIfAbsent, so they never pass
+ * through the heap either.
+ */
+public class ReplicaObjectStore implements ObjectStore, Closeable {
+
+	private static final long MAX_RETRY_MILLIS = 5000;
+
+	// largest value received into memory when there is no disk tier
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final int COPY_SIZE = 64 << 10;
+
+	private final ObjectStore inner;
+	private final String primary;
+	private final Path spillDir;
+	private final long spillThreshold;
+	private final InetSocketAddress address;
+	private final Thread link;
+	private volatile boolean closed;
+	private volatile Socket socket;
+
+	// replication progress, only written by the link thread
+	private volatile long id;
+	private volatile long offset;
+	private volatile long primaryOffset;
+	private volatile boolean connected;
+	private final LongAdder fullResyncs = new LongAdder();
+	private final LongAdder partialResyncs = new LongAdder();
+
+	/**
+	 * @param inner				store the primary's objects are copied into
+	 * @param primary			host:port of the primary
+	 * @param spillDir			directory of the disk tier, null if there is none
+	 * @param spillThreshold	values larger than this many bytes are received
+	 *                      	into a file
+	 */
+	public ReplicaObjectStore(ObjectStore inner, String primary, Path spillDir, long spillThreshold) {
+		int colon = primary.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Primary must be given as host:port");
+		}
+		this.inner = inner;
+		this.primary = primary;
+		this.spillDir = spillDir;
+		this.spillThreshold = spillThreshold;
+		this.address = new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+
+		link = new Thread(this::follow, "rustore-replica");
+		link.setDaemon(true);
+		link.start();
+	}
+
+	private ReadOnlyReplicaException readOnly(String key) {
+		return new ReadOnlyReplicaException("Cannot change " + key + " on a replica of " + primary);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		throw readOnly(key);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		// the store owns the file, even when it refuses it
+		Files.deleteIfExists(file);
+		throw readOnly(key);
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		throw readOnly(key);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version) {
+		throw readOnly(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		throw readOnly(key);
+	}
+
+	@Override
+	public long version(String key) {
+		return inner.version(key);
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		stats.put("replica.connected", connected ? 1L : 0L);
+		stats.put("replica.offset", offset);
+		stats.put("replica.lag", Math.max(0, primaryOffset - offset));
+		stats.put("replica.full_resyncs", fullResyncs.sum());
+		stats.put("replica.partial_resyncs", partialResyncs.sum());
+	}
+
+	/* runs on the link thread until the store is closed */
+	private void follow() {
+		long retryMillis = 100;
+		while (!closed) {
+			try (Socket s = new Socket()) {
+				socket = s;
+				s.connect(address, ReplicationSource.TIMEOUT_MILLIS);
+				s.setSoTimeout(ReplicationSource.TIMEOUT_MILLIS);
+				s.setTcpNoDelay(true);
+				retryMillis = 100;
+				replicate(s);
+			} catch (IOException e) {
+				if (closed) {
+					return;
+				}
+				if (connected) {
+					Log.warn("Lost connection to primary %s: %s", primary, e.toString());
+				} else {
+					Log.debug("Cannot replicate from %s: %s", primary, e.toString());
+				}
+			} finally {
+				connected = false;
+			}
+
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+		}
+	}
+
+	private void replicate(Socket s) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+		Protocol.Handshake handshake = Protocol.negotiate(out, in, 0);
+		if (handshake.version < Protocol.VERSION_2) {
+			throw new IOException("Primary speaks protocol version " + handshake.version);
+		}
+		Protocol.writeHeader(out, handshake.version, Protocol.REPLICATE, 16);
+		out.writeLong(id);
+		out.writeLong(offset);
+		out.flush();
+		if (in.readInt() != 0) {
+			throw new IOException("Server does not accept replicas, start it with --replication");
+		}
+
+		boolean full = in.readUnsignedByte() == ReplicationSource.FULL;
+		long primaryId = in.readLong();
+		long start = in.readLong();
+		connected = true;
+		if (full) {
+			Log.info("Full resync from primary %s", primary);
+			receiveSnapshot(in);
+			fullResyncs.increment();
+		} else {
+			partialResyncs.increment();
+		}
+		id = primaryId;
+		offset = start;
+		primaryOffset = start;
+		Log.info("Replicating from primary %s at offset %d", primary, start);
+
+		while (!closed) {
+			int type = in.readUnsignedByte();
+			long at = in.readLong();
+			if (type == ReplicationSource.HEARTBEAT) {
+				primaryOffset = at;
+			} else {
+				apply(type, in, out);
+				offset = at;
+				primaryOffset = Math.max(primaryOffset, at);
+			}
+			// acknowledge once per batch, when the primary has nothing more queued up
+			if (in.available() == 0) {
+				out.writeLong(offset);
+				out.flush();
+			}
+		}
+	}
+
+	private void receiveSnapshot(DataInputStream in) throws IOException {
+		Set<String> stale = new HashSet<>(Arrays.asList(inner.keys()));
+		int objects = 0;
+		while (true) {
+			int type = in.readUnsignedByte();
+			in.readLong();
+			if (type == ReplicationSource.SNAPSHOT_END) {
+				break;
+			}
+			stale.remove(apply(type, in, null));
+			objects++;
+		}
+		for (String key : stale) {
+			inner.remove(key);
+		}
+		Log.info("Received %d objects from primary %s, removed %d", objects, primary, stale.size());
+	}
+
+	/**
+	 * Reads the rest of a record and brings its key in line with it.
+	 *
+	 * @param acks	where to repeat the offset applied so far while a
+	 *            	large value comes in, so the primary does not take the
+	 *            	silence for a dead replica; null during a full resync
+	 *
+	 * @return		key of the record
+	 */
+	private String apply(int type, DataInputStream in, DataOutputStream acks) throws IOException {
+		String key = in.readUTF();
+		if (type == ReplicationSource.REMOVE) {
+			inner.remove(key);
+			return key;
+		} else if (type == ReplicationSource.PUT) {
+			int length = in.readInt();
+			if (length < 0) {
+				throw new IOException("Invalid value size " + length);
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			store(key, data, 0);
+			return key;
+		} else if (type != ReplicationSource.OBJECT) {
+			throw new IOException("Unknown replication record " + type);
+		}
+
+		long expiresAt = in.readLong();
+		long length = in.readLong();
+		if (length < 0) {
+			throw new IOException("Invalid value size " + length);
+		}
+		if (spillDir != null && length > spillThreshold) {
+			storeFile(key, receive(in, length, acks), expiresAt);
+		} else if (length > MAX_ARRAY_SIZE) {
+			// without a disk tier the replica can't hold it, and must not keep serving an old value
+			skip(in, length);
+			inner.remove(key);
+			Log.warn("Dropped %s, its %d bytes need a disk tier on the replica", key, length);
+		} else {
+			byte[] data = new byte[(int) length];
+			in.readFully(data);
+			store(key, data, expiresAt);
+		}
+		return key;
+	}
+
+	private void store(String key, byte[] data, long expiresAt) {
+		try {
+			// a changed value replaces the old one in place, readers never find the key missing
+			if (inner.putIfAbsent(key, data, expiresAt)) {
+				return;
+			}
+			if (sameValue(key, data)) {
+				keepExpiry(key, expiresAt);
+			} else {
+				inner.put(key, data, expiresAt);
+			}
+		} catch (InsufficientSpaceException | IOException e) {
+			Log.debug("%s", e.getMessage());
+		}
+	}
+
+	private boolean sameValue(String key, byte[] data) throws IOException {
+		try (FileChannel file = inner.openFile(key)) {
+			if (file != null) {
+				return false;
+			}
+		}
+		return Arrays.equals(inner.get(key), data);
+	}
+
+	private void storeFile(String key, Path file, long expiresAt) throws IOException {
+		try {
+			if (inner.containsKey(key)) {
+				try (FileChannel existing = inner.openFile(key)) {
+					if (existing != null && sameContent(existing, file)) {
+						Files.delete(file);
+						keepExpiry(key, expiresAt);
+						return;
+					}
+				}
+				// there is no way to swap a file in place, readers miss the key until the new one is in
+				inner.remove(key);
+			}
+			inner.putFileIfAbsent(key, file, expiresAt);
+		} catch (InsufficientSpaceException e) {
+			Log.debug("%s", e.getMessage());
+		} finally {
+			// the store owns the file once it was handed over, this only catches failures before that
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private void keepExpiry(String key, long expiresAt) {
+		if (inner.expiresAt(key) != expiresAt) {
+			inner.expire(key, expiresAt);
+		}
+	}
+
+	/* copies a value of length bytes from the stream to a new file in the disk tier's directory */
+	private Path receive(DataInputStream in, long length, DataOutputStream acks) throws IOException {
+		Path file = Files.createTempFile(spillDir, "replica", ".tmp");
+		try (OutputStream out = Files.newOutputStream(file)) {
+			byte[] chunk = new byte[COPY_SIZE];
+			long lastAck = System.nanoTime();
+			long remaining = length;
+			while (remaining > 0) {
+				int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+				if (n < 0) {
+					throw new IOException("Primary closed the connection in the middle of " + length + " bytes");
+				}
+				out.write(chunk, 0, n);
+				remaining -= n;
+				if (acks != null && System.nanoTime() - lastAck > ReplicationSource.HEARTBEAT_MILLIS * 1_000_000) {
+					acks.writeLong(offset);
+					acks.flush();
+					lastAck = System.nanoTime();
+				}
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return file;
+	}
+
+	private static void skip(DataInputStream in, long length) throws IOException {
+		byte[] chunk = new byte[COPY_SIZE];
+		for (long remaining = length; remaining > 0; ) {
+			int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+			if (n < 0) {
+				throw new EOFException();
+			}
+			remaining -= n;
+		}
+	}
+
+	private static boolean sameContent(FileChannel existing, Path file) throws IOException {
+		if (existing.size() != Files.size(file)) {
+			return false;
+		}
+		try (InputStream a = Channels.newInputStream(existing); InputStream b = Files.newInputStream(file)) {
+			byte[] chunkA = new byte[COPY_SIZE];
+			byte[] chunkB = new byte[COPY_SIZE];
+			int n;
+			while ((n = a.readNBytes(chunkA, 0, chunkA.length)) > 0) {
+				if (b.readNBytes(chunkB, 0, n) != n || !Arrays.equals(chunkA, 0, n, chunkB, 0, n)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		link.interrupt();
+		Socket s = socket;
+		if (s != null) {
+			s.close();
+		}
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
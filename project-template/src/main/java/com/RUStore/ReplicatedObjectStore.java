@@ -0,0 +1,171 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decorates the store of a primary so every successful PUT and REMOVE is
+ * appended to a ReplicationLog for the replicas. The server puts it just
+ * inside any BoundedObjectStore, so evictions reach the replicas like
+ * any other REMOVE.
+ *
+ * Expiry times are shipped with the objects, and a change of one is
+ * appended like a PUT. The store keeps the expiry times of the keys it
+ * saw written with one, since without a DurableObjectStore the stores
+ * inside keep none; the stores outside serialize changes of a key, so
+ * they are recorded in the order they were made.
+ *
+ * With semi-sync acknowledgement a write returns once a replica applied
+ * it or the timeout passed; the write itself is never undone.
+ */
+public class ReplicatedObjectStore implements ObjectStore, Closeable {
+
+	private final ObjectStore inner;
+	private final ReplicationLog log;
+	private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+
+	/**
+	 * @param inner		store that holds the objects
+	 * @param log		backlog the changes are appended to
+	 */
+	ReplicatedObjectStore(ObjectStore inner, ReplicationLog log) {
+		this.inner = inner;
+		this.log = log;
+		log.attach(this);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		if (!inner.putIfAbsent(key, data, expiresAt)) {
+			return false;
+		}
+		expires(key, expiresAt);
+		log.awaitAck(log.append(key));
+		return true;
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		if (!inner.putFileIfAbsent(key, file, expiresAt)) {
+			return false;
+		}
+		expires(key, expiresAt);
+		log.awaitAck(log.append(key));
+		return true;
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		long version = inner.put(key, data, expiresAt);
+		expires(key, expiresAt);
+		log.awaitAck(log.append(key));
+		return version;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	/* records the expiry time of key's new object, the old one's no longer applies */
+	private void expires(String key, long expiresAt) {
+		if (expiresAt > 0) {
+			expiries.put(key, expiresAt);
+		} else {
+			expiries.remove(key);
+		}
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		if (!inner.expire(key, expiresAt)) {
+			return false;
+		}
+		expires(key, expiresAt);
+		log.awaitAck(log.append(key));
+		return true;
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		Long expiresAt = expiries.get(key);
+		return expiresAt != null ? expiresAt : inner.expiresAt(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		if (!inner.remove(key)) {
+			return false;
+		}
+		expiries.remove(key);
+		log.awaitAck(log.append(key));
+		return true;
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		log.addStats(stats);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
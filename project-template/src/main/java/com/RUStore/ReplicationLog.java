@@ -0,0 +1,253 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replication backlog of a primary. Every successful PUT, REMOVE and
+ * change of an expiry time appends the key it changed and gets the next
+ * offset; replicas follow the backlog with ReplicationSource and
+ * acknowledge the offsets they applied.
+ *
+ * Only keys are kept. When a record is shipped its value and expiry time
+ * are read from the store, so a replica always gets the current state of
+ * the key and writes to the same key need not be ordered with their
+ * records. This also keeps the backlog small enough to cover a long
+ * outage. The oldest keys are dropped once the backlog exceeds its byte
+ * budget; a replica that asks for an offset before them needs a full
+ * resync.
+ *
+ * The id is chosen at random when the server starts, so a replica never
+ * continues from an offset of an earlier run.
+ */
+final class ReplicationLog {
+
+	// rough heap cost of a backlog entry on top of the characters of its key
+	private static final int ENTRY_OVERHEAD = 48;
+
+	final long id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+	private final long maxBytes;
+	private final boolean semisync;
+	private final long timeoutNanos;
+	private ObjectStore values;
+
+	// keys of the offsets last - count + 1 to last, oldest at head
+	private String[] ring = new String[1024];
+	private int head;
+	private int count;
+	private long last;
+	private long bytes;
+
+	private final Object ackLock = new Object();
+	private final Map<Object, Long> acked = new HashMap<>();   // guarded by ackLock
+	private long degradedUntil = -1;   // guarded by ackLock
+	private final LongAdder semisyncTimeouts = new LongAdder();
+	private final LongAdder fullResyncs = new LongAdder();
+	private final LongAdder partialResyncs = new LongAdder();
+
+	/**
+	 * @param maxBytes		budget for the keys kept in the backlog
+	 * @param semisync		writes wait for a replica to acknowledge them
+	 * @param timeoutMillis	longest a write waits for an acknowledgement
+	 */
+	ReplicationLog(long maxBytes, boolean semisync, long timeoutMillis) {
+		this.maxBytes = maxBytes;
+		this.semisync = semisync;
+		this.timeoutNanos = timeoutMillis * 1_000_000;
+	}
+
+	/* the store shipped values are read from, set by ReplicatedObjectStore */
+	void attach(ObjectStore store) {
+		values = store;
+	}
+
+	/**
+	 * @return		current value of key, null if it doesn't exist
+	 */
+	byte[] value(String key) {
+		return values.get(key);
+	}
+
+	/**
+	 * @return		file holding the current value of key, null if the
+	 *        		store keeps it in memory or key doesn't exist
+	 */
+	FileChannel openFile(String key) throws IOException {
+		return values.openFile(key);
+	}
+
+	/**
+	 * @return		expiry time of key, 0 if it never expires
+	 */
+	long expiresAt(String key) {
+		return values.expiresAt(key);
+	}
+
+	/**
+	 * @return		snapshot of the keys for a full resync
+	 */
+	String[] keys() {
+		return values.keys();
+	}
+
+	/**
+	 * Records a change of key.
+	 *
+	 * @return		offset of the change
+	 */
+	synchronized long append(String key) {
+		if (count == ring.length) {
+			String[] grown = new String[ring.length * 2];
+			for (int i = 0; i < count; i++) {
+				grown[i] = ring[(head + i) % ring.length];
+			}
+			ring = grown;
+			head = 0;
+		}
+		ring[(head + count) % ring.length] = key;
+		count++;
+		bytes += cost(key);
+		last++;
+
+		while (bytes > maxBytes && count > 1) {
+			bytes -= cost(ring[head]);
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			count--;
+		}
+		notifyAll();
+		return last;
+	}
+
+	private static long cost(String key) {
+		return 2L * key.length() + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * @return		offset of the latest change
+	 */
+	synchronized long offset() {
+		return last;
+	}
+
+	/**
+	 * @return		true if a replica that applied everything up to
+	 *        		offset can continue from the backlog
+	 */
+	synchronized boolean covers(long offset) {
+		return offset >= last - count && offset <= last;
+	}
+
+	/**
+	 * Waits up to timeoutMillis for changes after offset.
+	 *
+	 * @return		keys of the offsets after offset, in order and at most
+	 *        		max of them; empty if nothing changed in time, null if
+	 *        		the backlog no longer covers offset
+	 */
+	synchronized List<String> read(long offset, int max, long timeoutMillis) throws InterruptedException {
+		if (offset == last) {
+			wait(timeoutMillis);
+		}
+		if (!covers(offset)) {
+			return null;
+		}
+		int n = (int) Math.min(max, last - offset);
+		int first = (int) (offset - (last - count));
+		List<String> keys = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			keys.add(ring[(head + first + i) % ring.length]);
+		}
+		return keys;
+	}
+
+	void register(Object replica, long offset) {
+		synchronized (ackLock) {
+			acked.put(replica, offset);
+		}
+	}
+
+	void unregister(Object replica) {
+		synchronized (ackLock) {
+			acked.remove(replica);
+		}
+	}
+
+	/* a replica applied everything up to offset */
+	void ack(Object replica, long offset) {
+		synchronized (ackLock) {
+			acked.replace(replica, offset);
+			if (offset >= degradedUntil) {
+				degradedUntil = -1;
+			}
+			ackLock.notifyAll();
+		}
+	}
+
+	/**
+	 * With semi-sync acknowledgement, waits until a replica applied the
+	 * change at offset. If none does in time, writes stop waiting until a
+	 * replica caught up with that offset again, so a slow replica costs
+	 * one timeout rather than one per write.
+	 */
+	void awaitAck(long offset) {
+		if (!semisync) {
+			return;
+		}
+		synchronized (ackLock) {
+			if (acked.isEmpty() || degradedUntil >= 0) {
+				return;
+			}
+			long deadline = System.nanoTime() + timeoutNanos;
+			while (maxAcked() < offset) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || acked.isEmpty()) {
+					semisyncTimeouts.increment();
+					degradedUntil = offset;
+					return;
+				}
+				try {
+					ackLock.wait(Math.max(1, remaining / 1_000_000));
+				} catch (InterruptedException e) {
+					// the write itself is done, only stop waiting for it
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private long maxAcked() {
+		long max = -1;
+		for (long offset : acked.values()) {
+			max = Math.max(max, offset);
+		}
+		return max;
+	}
+
+	void resynced(boolean full) {
+		(full ? fullResyncs : partialResyncs).increment();
+	}
+
+	void addStats(Map<String, Long> stats) {
+		long backlog;
+		synchronized (this) {
+			stats.put("replication.offset", last);
+			backlog = bytes;
+		}
+		stats.put("replication.backlog_bytes", backlog);
+		synchronized (ackLock) {
+			stats.put("replication.replicas", (long) acked.size());
+		}
+		stats.put("replication.full_resyncs", fullResyncs.sum());
+		stats.put("replication.partial_resyncs", partialResyncs.sum());
+		stats.put("replication.semisync_timeouts", semisyncTimeouts.sum());
+	}
+}
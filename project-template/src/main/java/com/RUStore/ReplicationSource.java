@@ -0,0 +1,204 @@
+package com.RUStore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Primary side of a REPLICATE connection. It takes over the connection
+ * from the ClientHandler that received the request and streams changes
+ * to the replica until either side goes away.
+ *
+ * The request carries the replication id and the offset the replica has
+ * applied. If the backlog still covers that offset the replica continues
+ * from it, otherwise it gets a full resync: every current object as a
+ * PUT record, then SNAPSHOT_END, then the records appended since the
+ * snapshot started. The reply to the request is status 0, the mode, the
+ * id and the offset the stream continues from.
+ *
+ * A record is its type, its offset and its key. An OBJECT record adds
+ * the expiry time of the object, 0 for never, and the long length and
+ * bytes of the value; values the primary keeps in files are sent from
+ * the file with transferTo, so they never pass through the heap. It
+ * replaces the PUT record of earlier versions, which carried an int
+ * length and no expiry time and is still accepted by replicas. The
+ * replica answers with the offset it
+ * applied whenever it runs out of records to apply, which is also what
+ * semi-sync writes wait for. A heartbeat goes out whenever the backlog
+ * was idle for a second, and a replica that stays silent for longer than
+ * TIMEOUT_MILLIS is dropped.
+ */
+final class ReplicationSource {
+
+	// reply modes
+	static final int CONTINUE = 0;
+	static final int FULL = 1;
+
+	// record types
+	static final int PUT = 1;
+	static final int REMOVE = 2;
+	static final int HEARTBEAT = 3;
+	static final int SNAPSHOT_END = 4;
+	static final int OBJECT = 5;
+
+	static final long HEARTBEAT_MILLIS = 1000;
+	static final int TIMEOUT_MILLIS = 5000;
+
+	// most records written between two flushes
+	private static final int BATCH_SIZE = 256;
+
+	private final ReplicationLog log;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	ReplicationSource(ReplicationLog log, Socket socket, DataInputStream in, DataOutputStream out) {
+		this.log = log;
+		this.socket = socket;
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * Serves the replica until the connection is closed.
+	 *
+	 * @param id		replication id the replica followed, 0 if none
+	 * @param offset	offset the replica has applied
+	 */
+	void run(long id, long offset) throws IOException {
+		// the snapshot offset is taken first, so records appended while it is sent are not lost
+		boolean full = id != log.id || !log.covers(offset);
+		long start = full ? log.offset() : offset;
+		out.writeInt(0);
+		out.writeByte(full ? FULL : CONTINUE);
+		out.writeLong(log.id);
+		out.writeLong(start);
+		if (full) {
+			sendSnapshot(start);
+		}
+		out.flush();
+		log.resynced(full);
+		Log.info("Replica %s connected, %s resync from offset %d",
+				socket.getRemoteSocketAddress(), full ? "full" : "partial", start);
+
+		socket.setSoTimeout(TIMEOUT_MILLIS);
+		log.register(this, start);
+		Thread acks = new Thread(this::readAcks, "rustore-replication-acks");
+		acks.setDaemon(true);
+		acks.start();
+		try {
+			stream(start);
+		} catch (IOException e) {
+			Log.info("Replica %s disconnected: %s", socket.getRemoteSocketAddress(), e.toString());
+		} finally {
+			log.unregister(this);
+			socket.close();
+		}
+	}
+
+	private void sendSnapshot(long offset) throws IOException {
+		int objects = 0;
+		for (String key : log.keys()) {
+			if (writeRecord(offset, key)) {
+				objects++;
+			}
+		}
+		out.writeByte(SNAPSHOT_END);
+		out.writeLong(offset);
+		Log.info("Sent %d objects to replica %s", objects, socket.getRemoteSocketAddress());
+	}
+
+	private void stream(long offset) throws IOException {
+		while (true) {
+			List<String> keys;
+			try {
+				keys = log.read(offset, BATCH_SIZE, HEARTBEAT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (keys == null) {
+				Log.warn("Replica %s fell behind the replication backlog and has to resync",
+						socket.getRemoteSocketAddress());
+				return;
+			}
+
+			if (keys.isEmpty()) {
+				out.writeByte(HEARTBEAT);
+				out.writeLong(log.offset());
+			}
+			// the value is read now, so it is the latest one even if the key changed again since
+			for (String key : keys) {
+				writeRecord(++offset, key);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Sends the current state of key.
+	 *
+	 * @return		true if an OBJECT record was sent, false for a REMOVE
+	 */
+	private boolean writeRecord(long offset, String key) throws IOException {
+		// read before the value, a change in between goes out again with its own record
+		long expiresAt = log.expiresAt(key);
+
+		try (FileChannel file = log.openFile(key)) {
+			if (file != null) {
+				long size = file.size();
+				writeObjectHeader(offset, key, expiresAt, size);
+				transfer(file, size);
+				return true;
+			}
+		}
+
+		byte[] data = log.value(key);
+		if (data == null) {
+			out.writeByte(REMOVE);
+			out.writeLong(offset);
+			out.writeUTF(key);
+			return false;
+		}
+		writeObjectHeader(offset, key, expiresAt, data.length);
+		out.write(data);
+		return true;
+	}
+
+	private void writeObjectHeader(long offset, String key, long expiresAt, long size) throws IOException {
+		out.writeByte(OBJECT);
+		out.writeLong(offset);
+		out.writeUTF(key);
+		out.writeLong(expiresAt);
+		out.writeLong(size);
+	}
+
+	/* lets the kernel copy the file to the socket, after everything buffered so far */
+	private void transfer(FileChannel file, long size) throws IOException {
+		out.flush();
+		SocketChannel channel = socket.getChannel();
+		long sent = 0;
+		while (sent < size) {
+			sent += file.transferTo(sent, size - sent, channel);
+		}
+	}
+
+	private void readAcks() {
+		try {
+			while (true) {
+				log.ack(this, in.readLong());
+			}
+		} catch (IOException e) {
+			// closing the socket makes the next write of the stream fail as well
+			try {
+				socket.close();
+			} catch (IOException closeError) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.RUStore;
+
+/**
+ * Thrown by RUStoreClient when the server refuses a connection or an
+ * upload because it is over --max-connections or --max-inflight-bytes,
+ * status 7 on the wire. Nothing was stored, and the same request can be
+ * retried after a backoff; a refused upload leaves the connection usable.
+ */
+public class ServerBusyException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ServerBusyException(String message) {
+		super(message);
+	}
+}
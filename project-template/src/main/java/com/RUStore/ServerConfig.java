@@ -0,0 +1,264 @@
+package com.RUStore;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runtime options for RUStoreServer. The first command line argument
+ * is always the port number, every following argument is an option of
+ * the form --name=value.
+ */
+public class ServerConfig {
+
+	/* how accepted connections are handed off to worker threads */
+	public enum ExecutionMode {
+		VIRTUAL,   // one virtual thread per connection (Java 21+)
+		POOL,      // bounded pool of platform threads with a queue
+		THREAD     // one platform thread per connection (legacy behaviour)
+	}
+
+	/* backing implementation of the object store */
+	public enum StoreType {
+		CONCURRENT, // heap values in a concurrent hash map
+		OFFHEAP     // values in off-heap slabs, handles in the map
+	}
+
+	/* when a write on a primary is answered */
+	public enum Replication {
+		ASYNC,      // right away, replicas catch up on their own
+		SEMISYNC    // once a replica applied it or the timeout passed
+	}
+
+	int port;
+	ExecutionMode executionMode = ExecutionMode.VIRTUAL;
+	int poolThreads = 256;
+	int poolQueue = 10000;
+	StoreType storeType = StoreType.CONCURRENT;
+	int slabSize = 4 << 20;
+	Path dataDir = Paths.get("data");
+	MutationLog.SyncPolicy durability;   // null keeps the store in memory only
+	long groupCommitMillis = 5;
+	int segmentSize = 64 << 20;
+	long compactSeconds = 30;
+	long diskThreshold;   // 0 keeps every object in memory
+	long maxMemory;   // 0 never evicts
+	EvictionPolicy.Mode eviction = EvictionPolicy.Mode.TINYLFU;
+	boolean compression;
+	int compressionMinSize = ValueCodec.DEFAULT_MIN_SIZE;
+	boolean dedup;
+	Replication replication;   // null if this server has no replicas
+	long replicationBacklog = 16 << 20;
+	long replicationTimeoutMillis = 1000;
+	String replicaOf;   // host:port of the primary, null unless this is a replica
+	int trackingMaxKeys = 1 << 20;   // 0 turns near cache invalidations off
+	Path loadSnapshot;   // snapshot to load on startup, null for none
+	int loadThreads = Runtime.getRuntime().availableProcessors();
+	int maxConnections;   // 0 for no limit
+	long maxInFlightBytes;   // 0 for no limit
+	long maxObjectSize;   // 0 for no limit beyond the protocol's
+	int idleTimeoutMillis;   // 0 keeps idle connections open
+	Log.Level logLevel = Log.Level.INFO;
+
+	/**
+	 * @return		directory large uploads are spilled to, null when
+	 *        		there is no disk tier and objects stay in memory
+	 */
+	Path spillDir() {
+		return diskThreshold > 0 ? dataDir.resolve("objects") : null;
+	}
+
+	/**
+	 * @return		Protocol features the server offers to clients
+	 */
+	int features() {
+		return (compression ? Protocol.FEATURE_COMPRESSION : 0) | (dedup ? Protocol.FEATURE_DEDUP : 0)
+				| (trackingMaxKeys > 0 ? Protocol.FEATURE_TRACKING : 0) | Protocol.FEATURE_TTL;
+	}
+
+	/**
+	 * Parses the server command line.
+	 *
+	 * @param args	command line arguments
+	 *
+	 * @return		parsed configuration
+	 * @throws IllegalArgumentException if an argument is malformed
+	 */
+	public static ServerConfig parse(String[] args) {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("Missing port number");
+		}
+
+		ServerConfig config = new ServerConfig();
+		config.port = Integer.parseInt(args[0]);
+
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				throw new IllegalArgumentException("Bad option: " + arg);
+			}
+			config.set(arg.substring(2, eq), arg.substring(eq + 1));
+		}
+		if (config.loadSnapshot != null && config.replicaOf != null) {
+			throw new IllegalArgumentException("A replica gets its objects from the primary, drop --load-snapshot");
+		}
+		return config;
+	}
+
+	private void set(String name, String value) {
+		switch (name) {
+			case "executor":
+				executionMode = ExecutionMode.valueOf(value.toUpperCase());
+				break;
+			case "threads":
+				poolThreads = positive(name, value);
+				break;
+			case "queue":
+				poolQueue = positive(name, value);
+				break;
+			case "store":
+				storeType = StoreType.valueOf(value.toUpperCase());
+				break;
+			case "slab-size":
+				slabSize = (int) Math.min(bytes(name, value), 1 << 30);
+				break;
+			case "data-dir":
+				dataDir = Paths.get(value);
+				break;
+			case "durability":
+				durability = "none".equalsIgnoreCase(value) ? null
+						: MutationLog.SyncPolicy.valueOf(value.toUpperCase());
+				break;
+			case "group-commit-ms":
+				groupCommitMillis = positive(name, value);
+				break;
+			case "segment-size":
+				segmentSize = (int) Math.min(bytes(name, value), 1 << 30);
+				break;
+			case "compact-interval":
+				compactSeconds = positive(name, value);
+				break;
+			case "disk-threshold":
+				diskThreshold = bytes(name, value);
+				break;
+			case "max-memory":
+				maxMemory = bytes(name, value);
+				break;
+			case "eviction":
+				eviction = EvictionPolicy.Mode.valueOf(value.toUpperCase());
+				break;
+			case "compression":
+				compression = "deflate".equalsIgnoreCase(value);
+				if (!compression && !"none".equalsIgnoreCase(value)) {
+					throw new IllegalArgumentException("--compression must be none or deflate");
+				}
+				break;
+			case "compression-min-size":
+				compressionMinSize = (int) Math.min(bytes(name, value), Integer.MAX_VALUE);
+				break;
+			case "dedup":
+				dedup = Boolean.parseBoolean(value);
+				break;
+			case "replication":
+				replication = "off".equalsIgnoreCase(value) ? null : Replication.valueOf(value.toUpperCase());
+				break;
+			case "replication-backlog":
+				replicationBacklog = bytes(name, value);
+				break;
+			case "replication-timeout-ms":
+				replicationTimeoutMillis = positive(name, value);
+				break;
+			case "replica-of":
+				if (value.lastIndexOf(':') < 0) {
+					throw new IllegalArgumentException("--replica-of must be host:port");
+				}
+				replicaOf = value;
+				break;
+			case "tracking-max-keys":
+				trackingMaxKeys = Integer.parseInt(value);
+				if (trackingMaxKeys < 0) {
+					throw new IllegalArgumentException("--tracking-max-keys must not be negative");
+				}
+				break;
+			case "load-snapshot":
+				loadSnapshot = Paths.get(value);
+				break;
+			case "load-threads":
+				loadThreads = positive(name, value);
+				break;
+			case "max-connections":
+				maxConnections = positive(name, value);
+				break;
+			case "max-inflight-bytes":
+				maxInFlightBytes = bytes(name, value);
+				break;
+			case "max-object-size":
+				maxObjectSize = bytes(name, value);
+				break;
+			case "idle-timeout-ms":
+				idleTimeoutMillis = positive(name, value);
+				break;
+			case "log-level":
+				logLevel = Log.Level.valueOf(value.toUpperCase());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: --" + name);
+		}
+	}
+
+	private static int positive(String name, String value) {
+		int n = Integer.parseInt(value);
+		if (n <= 0) {
+			throw new IllegalArgumentException("--" + name + " must be positive");
+		}
+		return n;
+	}
+
+	/* parses a byte count with an optional k, m or g suffix */
+	static long bytes(String name, String value) {
+		String digits = value.toLowerCase();
+		long unit = 1;
+		char suffix = digits.isEmpty() ? ' ' : digits.charAt(digits.length() - 1);
+		if (suffix == 'k' || suffix == 'm' || suffix == 'g') {
+			unit = suffix == 'k' ? 1L << 10 : suffix == 'm' ? 1L << 20 : 1L << 30;
+			digits = digits.substring(0, digits.length() - 1);
+		}
+		long n = Long.parseLong(digits) * unit;
+		if (n <= 0) {
+			throw new IllegalArgumentException("--" + name + " must be positive");
+		}
+		return n;
+	}
+
+	static String usage() {
+		return "Usage: java RUStoreServer <port> [options]\n"
+				+ "  --executor=virtual|pool|thread  connection execution mode (default virtual)\n"
+				+ "  --threads=N                     worker threads in pool mode (default 256)\n"
+				+ "  --queue=N                       queued connections in pool mode (default 10000)\n"
+				+ "  --store=concurrent|offheap      object store implementation (default concurrent)\n"
+				+ "  --slab-size=BYTES               off-heap slab size, k/m/g suffixes allowed (default 4m)\n"
+				+ "  --data-dir=PATH                 directory for on-disk state (default ./data)\n"
+				+ "  --durability=none|always|group|os  log mutations and fsync per write, per group or never (default none)\n"
+				+ "  --group-commit-ms=N             fsync interval with --durability=group (default 5)\n"
+				+ "  --segment-size=BYTES            mutation log segment size (default 64m)\n"
+				+ "  --compact-interval=SECONDS      interval between log compaction passes (default 30)\n"
+				+ "  --disk-threshold=BYTES          keep objects larger than this as files in the data dir (default off)\n"
+				+ "  --max-memory=BYTES              budget for stored values, evicting past it (default off)\n"
+				+ "  --eviction=tinylfu|slru|none    which objects make room with --max-memory (default tinylfu)\n"
+				+ "  --compression=none|deflate      keep values compressed and send them so when it pays off (default none)\n"
+				+ "  --compression-min-size=BYTES    smallest value worth compressing (default 256)\n"
+				+ "  --dedup=true|false              store identical values once (default false)\n"
+				+ "  --replication=off|async|semisync  stream writes to replicas, semisync waits for one to apply them (default off)\n"
+				+ "  --replication-backlog=BYTES     changes kept for replicas to catch up from (default 16m)\n"
+				+ "  --replication-timeout-ms=N      longest a semisync write waits for a replica (default 1000)\n"
+				+ "  --replica-of=HOST:PORT          serve reads as a read-only replica of that primary (default off)\n"
+				+ "  --tracking-max-keys=N           keys tracked for client near caches, 0 turns them off (default 1048576)\n"
+				+ "  --load-snapshot=PATH            load a snapshot written by SNAPSHOT on startup (default off)\n"
+				+ "  --load-threads=N                threads decoding the snapshot (default one per core)\n"
+				+ "  --max-connections=N             connections served at once, more are told the server is busy (default off)\n"
+				+ "  --max-inflight-bytes=BYTES      memory for uploads being received, more get a busy status (default off)\n"
+				+ "  --max-object-size=BYTES         largest object a client may upload (default off)\n"
+				+ "  --idle-timeout-ms=N             close connections that send nothing for this long (default off)\n"
+				+ "  --log-level=error|warn|info|debug  messages to print, debug logs every request (default info)";
+	}
+}
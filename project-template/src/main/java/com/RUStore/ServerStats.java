@@ -0,0 +1,144 @@
+package com.RUStore;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server wide metrics, shared by every ClientHandler. Counters are
+ * LongAdders and latencies go into one LatencyHistogram per command, so
+ * recording never takes a lock. snapshot() turns them into the name and
+ * value pairs returned by the STATS command.
+ */
+class ServerStats {
+
+	// commands whose latency is always reported, even before their first use
+	private static final int[] CORE_COMMANDS = { Protocol.PUT, Protocol.GET, Protocol.REMOVE, Protocol.LIST };
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Protocol.MAX_OPCODE + 1];
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder activeConnections = new LongAdder();
+	private final LongAdder totalConnections = new LongAdder();
+	private final LongAdder rejectedConnections = new LongAdder();
+	private final long startMillis = System.currentTimeMillis();
+
+	ServerStats() {
+		for (int op = 1; op < latencies.length; op++) {
+			latencies[op] = new LatencyHistogram();
+		}
+	}
+
+	void record(int opcode, long nanos) {
+		latencies[opcode].record(nanos);
+	}
+
+	void connectionOpened() {
+		activeConnections.increment();
+		totalConnections.increment();
+	}
+
+	void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	void connectionRejected() {
+		rejectedConnections.increment();
+	}
+
+	/* bytes sent without passing through the counted stream, e.g. with transferTo */
+	void sent(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	/**
+	 * @return		socket input stream that counts the bytes read from it
+	 */
+	InputStream countIn(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					bytesIn.increment();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					bytesIn.add(n);
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * @return		socket output stream that counts the bytes written to it
+	 */
+	OutputStream countOut(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytesOut.increment();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				// FilterOutputStream would write the array one byte at a time
+				out.write(b, off, len);
+				bytesOut.add(len);
+			}
+		};
+	}
+
+	/**
+	 * @return		current metrics in a stable order, latencies in nanoseconds
+	 */
+	Map<String, Long> snapshot(ObjectStore store) {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("uptime_ms", System.currentTimeMillis() - startMillis);
+		stats.put("connections.active", activeConnections.sum());
+		stats.put("connections.total", totalConnections.sum());
+		stats.put("connections.rejected", rejectedConnections.sum());
+		stats.put("bytes.in", bytesIn.sum());
+		stats.put("bytes.out", bytesOut.sum());
+		stats.put("store.objects", (long) store.size());
+		stats.put("log.dropped", Log.dropped());
+		store.addStats(stats);
+
+		for (int op = 1; op < latencies.length; op++) {
+			LatencyHistogram histogram = latencies[op];
+			long count = histogram.count();
+			if (count == 0 && !isCore(op)) {
+				continue;
+			}
+			String name = Protocol.name(op).toLowerCase();
+			stats.put(name + ".count", count);
+			stats.put(name + ".mean_ns", histogram.mean());
+			stats.put(name + ".p50_ns", histogram.percentile(0.5));
+			stats.put(name + ".p99_ns", histogram.percentile(0.99));
+			stats.put(name + ".p999_ns", histogram.percentile(0.999));
+			stats.put(name + ".max_ns", histogram.max());
+		}
+		return stats;
+	}
+
+	private static boolean isCore(int opcode) {
+		for (int core : CORE_COMMANDS) {
+			if (core == opcode) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
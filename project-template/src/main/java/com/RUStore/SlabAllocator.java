@@ -0,0 +1,245 @@
+package com.RUStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates object values in off-heap slabs so stored data never sits on
+ * the Java heap. Values are rounded up to a power-of-two size class
+ * (64 B up to half a slab); each class carves fixed size slots out of
+ * direct ByteBuffer slabs and recycles freed slots through a free list.
+ * Values too big for the largest class get a dedicated direct buffer.
+ *
+ * A value is identified by a long handle:
+ *   bits 56-63  size class (LARGE_CLASS for dedicated buffers)
+ *   bits 24-55  slab index
+ *   bits  0-23  slot index within the slab
+ * The first 4 bytes of every slot hold the value length.
+ *
+ * The allocator does not guard against a slot being freed while it is
+ * being read; callers must make sure free() never races a read of the
+ * same handle.
+ */
+public class SlabAllocator {
+
+	private static final int MIN_CLASS_SHIFT = 6;   // 64 byte slots
+	private static final int LARGE_CLASS = 0xFF;
+	private static final int HEADER = 4;
+
+	private final int slabSize;
+	private final SizeClass[] classes;
+
+	private final ArrayList<ByteBuffer> large = new ArrayList<>();
+	private final LongStack freeLarge = new LongStack();
+
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong reservedBytes = new AtomicLong();
+
+	/**
+	 * @param slabSize	size of each off-heap slab in bytes, rounded up
+	 *                	to a power of two between 128 B and 1 GB
+	 */
+	public SlabAllocator(int slabSize) {
+		int clamped = Math.min(Math.max(slabSize, 1 << (MIN_CLASS_SHIFT + 1)), 1 << 30);
+		int size = Integer.highestOneBit(clamped - 1) << 1;
+		this.slabSize = size;
+
+		// classes go from 64 bytes up to half a slab, so every slab holds at least 2 slots
+		int count = Integer.numberOfTrailingZeros(size) - MIN_CLASS_SHIFT;
+		this.classes = new SizeClass[count];
+		for (int i = 0; i < count; i++) {
+			classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+		}
+	}
+
+	/**
+	 * Copies data into off-heap memory.
+	 *
+	 * @return		handle identifying the stored value
+	 */
+	public long allocate(byte[] data) {
+		int needed = data.length + HEADER;
+		long handle;
+		ByteBuffer target;
+		int offset;
+
+		int index = classIndex(needed);
+		if (index < classes.length) {
+			SizeClass sizeClass = classes[index];
+			handle = sizeClass.allocate(index);
+			target = sizeClass.slab(handle);
+			offset = slotOffset(handle, sizeClass.slotSize);
+			usedBytes.addAndGet(sizeClass.slotSize);
+		} else {
+			handle = allocateLarge(needed);
+			target = largeBuffer(handle);
+			offset = 0;
+			usedBytes.addAndGet(needed);
+		}
+
+		ByteBuffer view = target.duplicate();
+		view.position(offset);
+		view.putInt(data.length);
+		view.put(data);
+		return handle;
+	}
+
+	/**
+	 * Copies a stored value back onto the heap.
+	 */
+	public byte[] read(long handle) {
+		ByteBuffer view = view(handle);
+		byte[] data = new byte[view.getInt()];
+		view.get(data);
+		return data;
+	}
+
+	/**
+	 * @return		length of the value stored under handle
+	 */
+	public int length(long handle) {
+		ByteBuffer view = view(handle);
+		return view.getInt();
+	}
+
+	/**
+	 * Returns the memory behind handle to the allocator.
+	 */
+	public void free(long handle) {
+		int index = (int) (handle >>> 56);
+		if (index == LARGE_CLASS) {
+			int slot = (int) ((handle >>> 24) & 0xFFFFFFFFL);
+			synchronized (large) {
+				ByteBuffer buffer = large.set(slot, null);
+				freeLarge.push(slot);
+				usedBytes.addAndGet(-buffer.capacity());
+				reservedBytes.addAndGet(-buffer.capacity());
+			}
+		} else {
+			SizeClass sizeClass = classes[index];
+			sizeClass.free(handle);
+			usedBytes.addAndGet(-sizeClass.slotSize);
+		}
+	}
+
+	/**
+	 * @return		bytes handed out to live values, including slot padding
+	 */
+	public long usedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return		off-heap bytes reserved from the operating system
+	 */
+	public long reservedBytes() {
+		return reservedBytes.get();
+	}
+
+	private ByteBuffer view(long handle) {
+		int index = (int) (handle >>> 56);
+		ByteBuffer view;
+		if (index == LARGE_CLASS) {
+			view = largeBuffer(handle).duplicate();
+		} else {
+			SizeClass sizeClass = classes[index];
+			view = sizeClass.slab(handle).duplicate();
+			view.position(slotOffset(handle, sizeClass.slotSize));
+		}
+		return view;
+	}
+
+	private static int classIndex(int needed) {
+		int shift = 32 - Integer.numberOfLeadingZeros(needed - 1);
+		return Math.max(shift - MIN_CLASS_SHIFT, 0);
+	}
+
+	private static int slotOffset(long handle, int slotSize) {
+		return (int) (handle & 0xFFFFFF) * slotSize;
+	}
+
+	private long allocateLarge(int needed) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(needed);
+		reservedBytes.addAndGet(needed);
+		int slot;
+		synchronized (large) {
+			if (freeLarge.isEmpty()) {
+				slot = large.size();
+				large.add(buffer);
+			} else {
+				slot = (int) freeLarge.pop();
+				large.set(slot, buffer);
+			}
+		}
+		return ((long) LARGE_CLASS << 56) | ((long) slot << 24);
+	}
+
+	private ByteBuffer largeBuffer(long handle) {
+		int slot = (int) ((handle >>> 24) & 0xFFFFFFFFL);
+		synchronized (large) {
+			return large.get(slot);
+		}
+	}
+
+	/* slots of one size, carved out of a growing list of slabs */
+	private final class SizeClass {
+		final int slotSize;
+		final int slotsPerSlab;
+		private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+		private final LongStack freeSlots = new LongStack();
+		private int nextSlot;   // next never-used slot in the newest slab
+
+		SizeClass(int slotSize) {
+			this.slotSize = slotSize;
+			this.slotsPerSlab = slabSize / slotSize;
+		}
+
+		synchronized long allocate(int index) {
+			if (!freeSlots.isEmpty()) {
+				return freeSlots.pop();
+			}
+			if (slabs.length == 0 || nextSlot == slotsPerSlab) {
+				ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+				System.arraycopy(slabs, 0, grown, 0, slabs.length);
+				grown[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+				reservedBytes.addAndGet(slabSize);
+				slabs = grown;
+				nextSlot = 0;
+			}
+			long slab = slabs.length - 1;
+			return ((long) index << 56) | (slab << 24) | nextSlot++;
+		}
+
+		synchronized void free(long handle) {
+			freeSlots.push(handle);
+		}
+
+		ByteBuffer slab(long handle) {
+			return slabs[(int) ((handle >>> 24) & 0xFFFFFFFFL)];
+		}
+	}
+
+	/* growable stack of longs, avoids boxing on the free lists */
+	private static final class LongStack {
+		private long[] items = new long[16];
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(long value) {
+			if (size == items.length) {
+				long[] grown = new long[size * 2];
+				System.arraycopy(items, 0, grown, 0, size);
+				items = grown;
+			}
+			items[size++] = value;
+		}
+
+		long pop() {
+			return items[--size];
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.RUStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format of a snapshot, see Snapshotter.
+ *
+ * File layout:
+ *   magic     4 bytes, MAGIC
+ *   version   4 bytes, VERSION
+ *   created   8 bytes, epoch milliseconds the snapshot was taken at
+ *   entries   any number of BLOCK and FILE entries
+ *   end       END, then the 8 byte number of objects in the file
+ *
+ * A BLOCK is its type byte, the ValueCodec it was stored with, its
+ * uncompressed length, its stored length, the CRC32 of the stored bytes
+ * and the stored bytes. Uncompressed, a block is a run of records: the
+ * key as writeUTF, the 8 byte expiry time (0 for never), the 4 byte value
+ * length and the value. Records never span blocks, so blocks can be
+ * decoded on as many threads as there are.
+ *
+ * A FILE holds one object that the store kept in a file: its type byte,
+ * the key as writeUTF, the 8 byte expiry time, the 8 byte value length,
+ * the value and the CRC32 of the value. It is streamed in both
+ * directions, so objects larger than the heap can be snapshotted and
+ * loaded. Version 1 files have no FILE entries.
+ */
+final class SnapshotFile {
+
+	static final int MAGIC = 0x52555353;   // "RUSS"
+	static final int VERSION = 2;
+
+	// entry types
+	static final int BLOCK = 1;
+	static final int END = 2;
+	static final int FILE = 3;
+
+	// blocks are cut once their records pass this size
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	// chunks FILE entries are copied in
+	private static final int COPY_SIZE = 64 << 10;
+
+	private SnapshotFile() {
+	}
+
+	/* writes a snapshot file, records in any order */
+	static final class Writer implements Closeable {
+		private final FileChannel channel;
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + (64 << 10));
+		private final DataOutputStream records = new DataOutputStream(block);
+		private long objects;
+
+		/**
+		 * @param file		file to create, replaced if it exists
+		 * @param created	epoch milliseconds the snapshot stands for
+		 */
+		Writer(Path file, long created) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(created);
+		}
+
+		void add(String key, long expiresAt, byte[] value) throws IOException {
+			records.writeUTF(key);
+			records.writeLong(expiresAt);
+			records.writeInt(value.length);
+			records.write(value);
+			objects++;
+			if (block.size() >= BLOCK_SIZE) {
+				writeBlock();
+			}
+		}
+
+		/**
+		 * Writes an object straight from its file, as an entry of its own
+		 * between the blocks, so it never has to fit in memory.
+		 */
+		void addFile(String key, long expiresAt, FileChannel file) throws IOException {
+			long length = file.size();
+			out.writeByte(FILE);
+			out.writeUTF(key);
+			out.writeLong(expiresAt);
+			out.writeLong(length);
+
+			CRC32 crc = new CRC32();
+			ByteBuffer chunk = ByteBuffer.allocate(COPY_SIZE);
+			for (long position = 0; position < length; ) {
+				chunk.clear().limit((int) Math.min(COPY_SIZE, length - position));
+				int n = file.read(chunk, position);
+				if (n < 0) {
+					throw new EOFException("File of " + key + " ended early");
+				}
+				crc.update(chunk.array(), 0, n);
+				out.write(chunk.array(), 0, n);
+				position += n;
+			}
+			out.writeInt((int) crc.getValue());
+			objects++;
+		}
+
+		private void writeBlock() throws IOException {
+			byte[] raw = block.toByteArray();
+			block.reset();
+			byte[] compressed = ValueCodec.compress(raw, 0);
+			byte[] stored = compressed != null ? compressed : raw;
+			CRC32 crc = new CRC32();
+			crc.update(stored, 0, stored.length);
+
+			out.writeByte(BLOCK);
+			out.writeByte(compressed != null ? ValueCodec.DEFLATE : ValueCodec.RAW);
+			out.writeInt(raw.length);
+			out.writeInt(stored.length);
+			out.writeInt((int) crc.getValue());
+			out.write(stored);
+		}
+
+		/**
+		 * Writes the last block and the end marker and forces the file to
+		 * disk.
+		 *
+		 * @return		number of objects written
+		 */
+		long finish() throws IOException {
+			if (block.size() > 0) {
+				writeBlock();
+			}
+			out.writeByte(END);
+			out.writeLong(objects);
+			out.flush();
+			channel.force(true);
+			return objects;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Loads a snapshot into store. The file is read on the calling thread
+	 * while its blocks are checked, inflated and stored on a pool of
+	 * threads. Objects that expired since the snapshot was taken and keys
+	 * the store already holds are skipped. FILE entries are copied to a
+	 * file in spillDir on the calling thread and handed to the store with
+	 * putFileIfAbsent.
+	 *
+	 * @param file		snapshot to load
+	 * @param store		store to put the objects into
+	 * @param threads	threads decoding blocks
+	 * @param spillDir	directory for objects loaded from FILE entries, the
+	 *               	store's disk tier so they can be moved into place,
+	 *               	null for the snapshot's directory
+	 *
+	 * @return		number of objects stored
+	 * @throws IOException if the file is not a complete snapshot
+	 */
+	static long load(Path file, ObjectStore store, int threads, Path spillDir) throws IOException {
+		ExecutorService decoders = Executors.newFixedThreadPool(threads, task -> {
+			Thread t = new Thread(task, "rustore-snapshot-load");
+			t.setDaemon(true);
+			return t;
+		});
+		// blocks read ahead of the decoders are bounded so memory stays flat
+		Semaphore inFlight = new Semaphore(threads * 2);
+		AtomicLong stored = new AtomicLong();
+		AtomicLong decoded = new AtomicLong();
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		long now = System.currentTimeMillis();
+
+		long objects = -1;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			int version = in.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+			in.readLong();
+
+			while (true) {
+				int type = in.readUnsignedByte();
+				if (type == END) {
+					objects = in.readLong();
+					break;
+				} else if (type == FILE) {
+					decoded.incrementAndGet();
+					if (loadFile(in, store, spillDir != null ? spillDir : file.toAbsolutePath().getParent(), now)) {
+						stored.incrementAndGet();
+					}
+					continue;
+				} else if (type != BLOCK) {
+					throw new IOException("Invalid snapshot entry " + type);
+				}
+				int codec = in.readUnsignedByte();
+				int rawLength = in.readInt();
+				int length = in.readInt();
+				int crc = in.readInt();
+				if (rawLength < 0 || length < 0) {
+					throw new IOException("Invalid snapshot block length " + length);
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+
+				inFlight.acquire();
+				if (failure.get() != null) {
+					break;
+				}
+				decoders.execute(() -> {
+					try {
+						decoded.addAndGet(decodeBlock(data, codec, rawLength, crc, store, now, stored));
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+			decoders.shutdown();
+			decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted loading snapshot");
+		} catch (EOFException e) {
+			throw new IOException("Snapshot " + file + " is truncated", e);
+		} finally {
+			decoders.shutdownNow();
+		}
+
+		if (failure.get() != null) {
+			throw new IOException("Error loading snapshot " + file + ": " + failure.get().getMessage(), failure.get());
+		}
+		if (decoded.get() != objects) {
+			throw new IOException("Snapshot " + file + " holds " + decoded.get() + " objects, expected " + objects);
+		}
+		return stored.get();
+	}
+
+	/**
+	 * Copies the value of a FILE entry to a file in dir and stores it.
+	 *
+	 * @return		true if the object was stored
+	 */
+	private static boolean loadFile(DataInputStream in, ObjectStore store, Path dir, long now) throws IOException {
+		String key = in.readUTF();
+		long expiresAt = in.readLong();
+		long length = in.readLong();
+		if (length < 0) {
+			throw new IOException("Invalid snapshot file length " + length);
+		}
+
+		Path temp = Files.createTempFile(dir, "snapshot-", ".tmp");
+		try {
+			CRC32 crc = new CRC32();
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				byte[] chunk = new byte[COPY_SIZE];
+				for (long remaining = length; remaining > 0; ) {
+					int n = (int) Math.min(chunk.length, remaining);
+					in.readFully(chunk, 0, n);
+					crc.update(chunk, 0, n);
+					out.write(chunk, 0, n);
+					remaining -= n;
+				}
+			}
+			if (in.readInt() != (int) crc.getValue()) {
+				throw new IOException("Snapshot object " + key + " fails its checksum");
+			}
+			// the store takes the file over, whatever is left of it afterwards is ours to delete
+			return (expiresAt == 0 || expiresAt > now) && store.putFileIfAbsent(key, temp, expiresAt);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return		number of records in the block
+	 */
+	private static long decodeBlock(byte[] data, int codec, int rawLength, int crc, ObjectStore store, long now,
+			AtomicLong stored) throws IOException {
+		CRC32 check = new CRC32();
+		check.update(data, 0, data.length);
+		if ((int) check.getValue() != crc) {
+			throw new IOException("Snapshot block fails its checksum");
+		}
+		byte[] raw;
+		if (codec == ValueCodec.DEFLATE) {
+			raw = ValueCodec.inflate(data, 0, data.length, rawLength);
+		} else if (codec == ValueCodec.RAW && rawLength == data.length) {
+			raw = data;
+		} else {
+			throw new IOException("Invalid snapshot block encoding " + codec);
+		}
+
+		DataInputStream records = new DataInputStream(new ByteArrayInputStream(raw));
+		long count = 0;
+		while (records.available() > 0) {
+			String key = records.readUTF();
+			long expiresAt = records.readLong();
+			int length = records.readInt();
+			if (length < 0 || length > records.available()) {
+				throw new IOException("Invalid snapshot record length " + length);
+			}
+			byte[] value = new byte[length];
+			records.readFully(value);
+			count++;
+			if ((expiresAt == 0 || expiresAt > now) && store.putIfAbsent(key, value, expiresAt)) {
+				stored.incrementAndGet();
+			}
+		}
+		return count;
+	}
+}
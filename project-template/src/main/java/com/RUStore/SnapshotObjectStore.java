@@ -0,0 +1,182 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates a store so a Snapshotter can write consistent snapshots of
+ * it: while a snapshot runs, the previous state of a key is handed to
+ * the Snapshotter before the key is first changed. The server puts it
+ * around the ExpiringObjectStore, so expiry times are part of snapshots,
+ * and inside any ReplicaObjectStore, so replicas can be snapshotted too.
+ *
+ * Outside of a snapshot a change costs one extra volatile read.
+ */
+public class SnapshotObjectStore implements ObjectStore, Closeable {
+
+	private final ObjectStore inner;
+	private final Snapshotter snapshotter;
+
+	/**
+	 * @param inner			store that holds the objects
+	 * @param snapshotter	writes the snapshots
+	 */
+	SnapshotObjectStore(ObjectStore inner, Snapshotter snapshotter) {
+		this.inner = inner;
+		this.snapshotter = snapshotter;
+		snapshotter.attach(inner);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.putIfAbsent(key, data, expiresAt);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.putFileIfAbsent(key, file, expiresAt);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.put(key, data, expiresAt);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version) {
+		return putIfVersion(key, data, version, 0);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version, long expiresAt) {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.putIfVersion(key, data, version, expiresAt);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public long version(String key) {
+		return inner.version(key);
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.expire(key, expiresAt);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	@Override
+	public boolean remove(String key) {
+		ReentrantLock lock = snapshotter.beforeChange(key);
+		try {
+			return inner.remove(key);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	private static void unlock(ReentrantLock lock) {
+		if (lock != null) {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		snapshotter.addStats(stats);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
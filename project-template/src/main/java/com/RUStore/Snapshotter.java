@@ -0,0 +1,227 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes point-in-time snapshots of the store to SnapshotFiles while
+ * writes go on. Values are immutable once stored, so a snapshot only has
+ * to care about keys that change while it is written: the first time a
+ * key is changed during a snapshot, SnapshotObjectStore has its previous
+ * state preserved here, and the snapshot writes that state instead of
+ * the current one. Keys changed after the snapshot started therefore
+ * show up as they were when it started, and nothing is copied for keys
+ * that stay put. Objects the store keeps in files are preserved as an
+ * open channel, which keeps the file readable after the store deleted
+ * it, and streamed into the snapshot, so they are never read onto the
+ * heap.
+ *
+ * A key is read, preserved and changed under the same lock stripe, so a
+ * change either happened before the snapshot read the key or its
+ * previous state is what the snapshot gets. Objects that a
+ * BoundedObjectStore evicts while a snapshot is written may be missing
+ * from it, since evictions bypass SnapshotObjectStore.
+ */
+final class Snapshotter {
+
+	/* state of a key when the running snapshot started */
+	private static final class Image {
+		final byte[] value;   // null if the key did not exist or is file backed
+		final FileChannel file;   // open file of a file backed object, null otherwise
+		final long expiresAt;
+		boolean written;   // only touched by the snapshot thread
+
+		Image(byte[] value, FileChannel file, long expiresAt) {
+			this.value = value;
+			this.file = file;
+			this.expiresAt = expiresAt;
+		}
+
+		void write(String key, SnapshotFile.Writer writer) throws IOException {
+			if (file != null) {
+				try (FileChannel channel = file) {
+					writer.addFile(key, expiresAt, channel);
+				}
+			} else if (value != null) {
+				writer.add(key, expiresAt, value);
+			}
+		}
+	}
+
+	/* outcome of a snapshot */
+	static final class Result {
+		final Path file;
+		final long objects;
+		final long bytes;
+
+		Result(Path file, long objects, long bytes) {
+			this.file = file;
+			this.objects = objects;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Path dir;
+	private final ReentrantLock[] stripes;
+	private final AtomicBoolean running = new AtomicBoolean();
+	// images of the keys changed since the running snapshot started, null while none runs
+	private volatile ConcurrentHashMap<String, Image> images;
+	private ObjectStore store;
+	private final AtomicLong snapshots = new AtomicLong();
+	private volatile long lastObjects;
+	private volatile long lastBytes;
+	private volatile long lastMillis;
+
+	/**
+	 * @param dir	directory snapshots are written to
+	 */
+	Snapshotter(Path dir) {
+		this.dir = dir;
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/* the store snapshots are taken of, called by SnapshotObjectStore */
+	void attach(ObjectStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Called before key is changed.
+	 *
+	 * @return		stripe of key, locked, which the caller unlocks once the
+	 *        		change is done, or null if no snapshot is running
+	 */
+	ReentrantLock beforeChange(String key) {
+		if (images == null) {
+			return null;
+		}
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		// checked again under the lock, the snapshot may have ended in between
+		Map<String, Image> current = images;
+		if (current != null && !current.containsKey(key)) {
+			current.put(key, read(key));
+		}
+		return lock;
+	}
+
+	/* current state of key, called under its stripe */
+	private Image read(String key) {
+		long expiresAt = store.expiresAt(key);
+		try {
+			FileChannel file = store.openFile(key);
+			if (file != null) {
+				return new Image(null, file, expiresAt);
+			}
+		} catch (IOException e) {
+			// read like any other object instead
+		}
+		return new Image(store.get(key), null, expiresAt);
+	}
+
+	/**
+	 * Writes a snapshot of the store to a new file in the snapshot
+	 * directory. Runs on the calling thread and does not block writers.
+	 *
+	 * @return		the snapshot, null if another one is being written
+	 */
+	Result snapshot() throws IOException {
+		if (!running.compareAndSet(false, true)) {
+			return null;
+		}
+		long start = System.nanoTime();
+		long created = System.currentTimeMillis();
+		Path file = dir.resolve("snapshot-" + created + ".rss");
+		Path temp = dir.resolve(file.getFileName() + ".tmp");
+		ConcurrentHashMap<String, Image> preserved = new ConcurrentHashMap<>();
+		try {
+			Files.createDirectories(dir);
+			images = preserved;
+			long objects;
+			try (SnapshotFile.Writer writer = new SnapshotFile.Writer(temp, created)) {
+				for (String key : store.keys()) {
+					Image image;
+					ReentrantLock lock = stripe(key);
+					lock.lock();
+					try {
+						image = preserved.get(key);
+						if (image != null) {
+							image.written = true;
+						} else {
+							image = read(key);
+						}
+					} finally {
+						lock.unlock();
+					}
+					// written outside the lock, so writers only ever wait for a single lookup
+					image.write(key, writer);
+				}
+
+				// keys that were removed before the listing was taken
+				for (Map.Entry<String, Image> entry : preserved.entrySet()) {
+					Image image = entry.getValue();
+					if (!image.written) {
+						image.write(entry.getKey(), writer);
+					}
+				}
+				objects = writer.finish();
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			long bytes = Files.size(file);
+			lastObjects = objects;
+			lastBytes = bytes;
+			lastMillis = (System.nanoTime() - start) / 1000000;
+			snapshots.incrementAndGet();
+			Log.info("Wrote snapshot %s with %d objects, %d bytes in %d ms, %d keys preserved",
+					file, objects, bytes, lastMillis, preserved.size());
+			return new Result(file, objects, bytes);
+		} finally {
+			images = null;
+			// a change that saw the snapshot running holds its stripe until it preserved the key
+			for (ReentrantLock stripe : stripes) {
+				stripe.lock();
+				stripe.unlock();
+			}
+			// files of images a failed snapshot never got to
+			for (Image image : preserved.values()) {
+				if (image.file != null) {
+					try {
+						image.file.close();
+					} catch (IOException e) {
+						// nothing left to clean up
+					}
+				}
+			}
+			Files.deleteIfExists(temp);
+			running.set(false);
+		}
+	}
+
+	void addStats(Map<String, Long> stats) {
+		ConcurrentHashMap<String, Image> current = images;
+		stats.put("snapshots.written", snapshots.get());
+		stats.put("snapshots.running", running.get() ? 1L : 0L);
+		stats.put("snapshots.preserved_keys", current == null ? 0L : current.size());
+		stats.put("snapshots.last_objects", lastObjects);
+		stats.put("snapshots.last_bytes", lastBytes);
+		stats.put("snapshots.last_millis", lastMillis);
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+}
@@ -0,0 +1,141 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Exercises RUStoreShardedClient against servers on loopback: stores
+ * small objects and one large file on all but the last node, adds the
+ * last node, removes the first, and checks after each step that every
+ * object is still there and intact. The large file is put on the first
+ * node, so removing it always moves the file. Run the client with a
+ * small heap, for example -Xmx32m, to check that the large file is moved
+ * without being loaded into memory.
+ *
+ *     java -jar RUStoreServer.jar 5001 & java -jar RUStoreServer.jar 5002 & java -jar RUStoreServer.jar 5003 &
+ *     java -Xmx32m -cp ... com.RUStore.TestSharding localhost:5001 localhost:5002 localhost:5003
+ */
+public class TestSharding {
+
+	private static final int SMALL_OBJECTS = 1000;
+	private static final int LARGE_SIZE = 64 << 20;
+
+	public static void main(String[] args) throws IOException {
+		// Check if at least two nodes are given
+		if (args.length < 2) {
+			System.out.println("Invalid number of arguments. You must provide at least two nodes");
+			System.out.println("Usage: TestSharding <host:port> <host:port> [<host:port> ...]");
+			return;
+		}
+		List<String> nodes = Arrays.asList(args);
+		String added = nodes.get(nodes.size() - 1);
+		String removed = nodes.get(0);
+
+		Path input = Files.createTempFile("rustore-sharding", ".in");
+		Path output = Files.createTempFile("rustore-sharding", ".out");
+		boolean passed = true;
+		try (RUStoreShardedClient client = new RUStoreShardedClient(nodes.subList(0, nodes.size() - 1), 4)) {
+			writeRandomFile(input, LARGE_SIZE);
+			String largeKey = largeKey(client, removed);
+
+			System.out.println("Putting " + SMALL_OBJECTS + " small objects and a " + (LARGE_SIZE >> 20)
+					+ " MB file on " + client.nodes());
+			for (int i = 0; i < SMALL_OBJECTS; i++) {
+				if (client.put(key(i), value(i)) != 0) {
+					System.out.println("Failed to put " + key(i) + ". Key already exists. (INCORRECT RETURN)");
+					passed = false;
+				}
+			}
+			if (client.put(largeKey, input.toString()) != 0) {
+				System.out.println("Failed to put " + largeKey + ". Key already exists. (INCORRECT RETURN)");
+				passed = false;
+			}
+
+			System.out.println("Adding node " + added + "...");
+			System.out.println("Moved " + client.addNode(added) + " objects");
+			passed &= verify(client, largeKey, input, output);
+
+			System.out.println("Removing node " + removed + "...");
+			System.out.println("Moved " + client.removeNode(removed) + " objects");
+			passed &= verify(client, largeKey, input, output);
+
+			// leave the servers empty for the next run
+			for (int i = 0; i < SMALL_OBJECTS; i++) {
+				client.remove(key(i));
+			}
+			client.remove(largeKey);
+		} finally {
+			Files.deleteIfExists(input);
+			Files.deleteIfExists(output);
+		}
+		System.out.println(passed ? "All objects survived rebalancing!" : "Objects were lost or damaged. (BAD REBALANCE)");
+	}
+
+	/* checks that every object is readable from the node it is routed to and unchanged */
+	private static boolean verify(RUStoreShardedClient client, String largeKey, Path input, Path output)
+			throws IOException {
+		int bad = 0;
+		for (int i = 0; i < SMALL_OBJECTS; i++) {
+			if (!Arrays.equals(client.get(key(i)), value(i))) {
+				bad++;
+			}
+		}
+		if (client.get(largeKey, output.toString()) != 0 || !sameContent(input, output)) {
+			System.out.println("Large file is missing or differs");
+			bad++;
+		}
+		System.out.println(bad == 0 ? "Every object is on " + client.nodes() : bad + " objects are missing or differ");
+		return bad == 0;
+	}
+
+	/* a key the client routes to node */
+	private static String largeKey(RUStoreShardedClient client, String node) {
+		for (int i = 0; ; i++) {
+			if (client.nodeFor("large_" + i).equals(node)) {
+				return "large_" + i;
+			}
+		}
+	}
+
+	private static String key(int i) {
+		return "key_" + i;
+	}
+
+	private static byte[] value(int i) {
+		return ("value of object " + i).getBytes();
+	}
+
+	private static void writeRandomFile(Path file, int size) throws IOException {
+		Random random = new Random(42);
+		byte[] chunk = new byte[64 << 10];
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (int written = 0; written < size; written += chunk.length) {
+				random.nextBytes(chunk);
+				out.write(chunk, 0, Math.min(chunk.length, size - written));
+			}
+		}
+	}
+
+	private static boolean sameContent(Path a, Path b) throws IOException {
+		if (Files.size(a) != Files.size(b)) {
+			return false;
+		}
+		try (InputStream inA = Files.newInputStream(a); InputStream inB = Files.newInputStream(b)) {
+			byte[] chunkA = new byte[64 << 10];
+			byte[] chunkB = new byte[chunkA.length];
+			int n;
+			while ((n = inA.readNBytes(chunkA, 0, chunkA.length)) > 0) {
+				if (inB.readNBytes(chunkB, 0, n) != n || !Arrays.equals(chunkA, 0, n, chunkB, 0, n)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,258 @@
+package com.RUStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore with a disk tier for large objects.
+ * Values bigger than the threshold are written to their own file in the
+ * objects directory and never kept in memory; openFile() lets the server
+ * send them with FileChannel.transferTo so the bytes go from the page
+ * cache to the socket without passing through the JVM heap.
+ *
+ * Files in the directory only live as long as the process: it is emptied
+ * on startup, and a durable store replays large objects into it again.
+ */
+public class TieredObjectStore implements ObjectStore {
+
+	private final ObjectStore inner;
+	private final Path dir;
+	private final long threshold;
+	private final ConcurrentHashMap<String, Path> files = new ConcurrentHashMap<>();
+	private final AtomicLong nextFile = new AtomicLong();
+	private final ReentrantLock[] stripes;
+
+	/**
+	 * @param inner		store for objects up to threshold bytes
+	 * @param dir		directory for the object files
+	 * @param threshold	objects larger than this many bytes go to disk
+	 */
+	public TieredObjectStore(ObjectStore inner, Path dir, long threshold) throws IOException {
+		this.inner = inner;
+		this.dir = dir;
+		this.threshold = threshold;
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir)) {
+			for (Path file : stale) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		if (data.length <= threshold) {
+			ReentrantLock lock = stripe(key);
+			lock.lock();
+			try {
+				return !files.containsKey(key) && inner.putIfAbsent(key, data);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		if (files.containsKey(key)) {
+			return false;
+		}
+
+		// write the file outside the lock, only the rename into place is serialized
+		long id = nextFile.incrementAndGet();
+		Path temp = dir.resolve("obj-" + id + ".tmp");
+		try {
+			Files.write(temp, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			throw new UncheckedIOException(e);
+		}
+		return commit(key, temp, dir.resolve("obj-" + id + ".bin"));
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		if (data.length <= threshold) {
+			ReentrantLock lock = stripe(key);
+			lock.lock();
+			try {
+				// readers look at the files first, so they see the old file until the new value is in place
+				long version = inner.put(key, data);
+				Path previous = files.remove(key);
+				if (previous != null) {
+					deleteQuietly(previous);
+				}
+				return version;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long id = nextFile.incrementAndGet();
+		Path temp = dir.resolve("obj-" + id + ".tmp");
+		Path file = dir.resolve("obj-" + id + ".bin");
+		ReentrantLock lock = stripe(key);
+		try {
+			Files.write(temp, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			lock.lock();
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+				Path previous = files.put(key, file);
+				if (previous != null) {
+					deleteQuietly(previous);
+				} else {
+					inner.remove(key);
+				}
+			} finally {
+				lock.unlock();
+			}
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			throw new UncheckedIOException(e);
+		}
+		return 0;
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		if (Files.size(file) <= threshold) {
+			return ObjectStore.super.putFileIfAbsent(key, file);
+		}
+		return commit(key, file, dir.resolve("obj-" + nextFile.incrementAndGet() + ".bin"));
+	}
+
+	/**
+	 * @return		directory that uploads should be spilled to, so a
+	 *        		finished upload can be moved into place atomically
+	 */
+	public Path directory() {
+		return dir;
+	}
+
+	private boolean commit(String key, Path temp, Path file) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (files.containsKey(key) || inner.containsKey(key)) {
+				deleteQuietly(temp);
+				return false;
+			}
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+			files.put(key, file);
+			return true;
+		} catch (IOException e) {
+			deleteQuietly(temp);
+			throw new UncheckedIOException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		Path file = files.get(key);
+		if (file == null) {
+			return inner.get(key);
+		}
+		try {
+			return Files.readAllBytes(file);
+		} catch (IOException e) {
+			// removed while we were reading it
+			return inner.get(key);
+		}
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		// files are never compressed, only the memory tier may be
+		return files.containsKey(key) ? ObjectStore.super.getStored(key) : inner.getStored(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		Path file = files.get(key);
+		if (file == null) {
+			return inner.openFile(key);
+		}
+		try {
+			return FileChannel.open(file, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean remove(String key) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			Path file = files.remove(key);
+			if (file == null) {
+				return inner.remove(key);
+			}
+			// readers that already opened the file keep their handle until they are done
+			deleteQuietly(file);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return files.containsKey(key) || inner.containsKey(key);
+	}
+
+	@Override
+	public String[] keys() {
+		List<String> keys = new ArrayList<>(files.keySet());
+		Collections.addAll(keys, inner.keys());
+		return keys.toArray(new String[0]);
+	}
+
+	@Override
+	public int size() {
+		return files.size() + inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			Log.warn("Error deleting %s: %s", file, e.getMessage());
+		}
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+}
@@ -0,0 +1,121 @@
+package com.RUStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel for ExpiringObjectStore. Level 0 has one slot
+ * per tick, every further level has slots 64 times as wide, so six levels
+ * of 64 slots cover decades of 10 ms ticks. A timer goes into the lowest
+ * level whose span reaches its deadline; whenever a level wraps around,
+ * the next slot of the level above is emptied into the levels below.
+ *
+ * Adding a timer and firing it both cost O(1), and a timer is moved down
+ * at most once per level, so the cost of expiring is spread over the
+ * ticks instead of being spent on scans of every key. Timers are never
+ * cancelled; the caller checks whether a fired timer is still current.
+ *
+ * Not thread safe, callers lock around it.
+ */
+final class TimingWheel {
+
+	/* a key due at deadline, in epoch milliseconds */
+	static final class Timer {
+		final String key;
+		final long deadline;
+
+		Timer(String key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = 6;
+
+	private final long tickMillis;
+	private final List<List<Timer>> slots = new ArrayList<>(LEVELS * SLOTS);
+	private long tick;   // last tick that was fired
+	private int size;
+
+	/**
+	 * @param tickMillis	width of a level 0 slot
+	 * @param now			current time in epoch milliseconds
+	 */
+	TimingWheel(long tickMillis, long now) {
+		this.tickMillis = tickMillis;
+		this.tick = now / tickMillis;
+		for (int i = 0; i < LEVELS * SLOTS; i++) {
+			slots.add(new ArrayList<>());
+		}
+	}
+
+	void add(String key, long deadline) {
+		place(new Timer(key, deadline));
+		size++;
+	}
+
+	private void place(Timer timer) {
+		// due timers go into the next tick, the wheel never looks back
+		long due = Math.max(timer.deadline / tickMillis, tick + 1);
+		long delta = due - tick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		if (level == LEVELS - 1 && delta >= 1L << (BITS * LEVELS)) {
+			// beyond the last level, parked in its farthest slot and placed again when that comes up
+			due = tick + (1L << (BITS * LEVELS)) - 1;
+		}
+		int slot = (int) ((due >>> (BITS * level)) & (SLOTS - 1));
+		slots.get(level * SLOTS + slot).add(timer);
+	}
+
+	/**
+	 * Advances the wheel up to now.
+	 *
+	 * @return		timers whose deadline passed
+	 */
+	List<Timer> advance(long now) {
+		List<Timer> due = new ArrayList<>();
+		long target = now / tickMillis;
+		while (tick < target && size > 0) {
+			tick++;
+			// when a level wraps around, the next slot of the level above is spread over the levels below
+			for (int level = 1; level < LEVELS && (tick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+				List<Timer> slot = take(level, (int) ((tick >>> (BITS * level)) & (SLOTS - 1)));
+				for (Timer timer : slot) {
+					place(timer);
+				}
+			}
+			for (Timer timer : take(0, (int) (tick & (SLOTS - 1)))) {
+				if (timer.deadline / tickMillis <= tick) {
+					due.add(timer);
+					size--;
+				} else {
+					// parked beyond the last level, not due yet
+					place(timer);
+				}
+			}
+		}
+		if (size == 0) {
+			// nothing to cascade, jump straight to now
+			tick = Math.max(tick, target);
+		}
+		return due;
+	}
+
+	private List<Timer> take(int level, int slot) {
+		List<Timer> timers = slots.get(level * SLOTS + slot);
+		if (timers.isEmpty()) {
+			return timers;
+		}
+		slots.set(level * SLOTS + slot, new ArrayList<>());
+		return timers;
+	}
+
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,100 @@
+package com.RUStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Collects an incoming upload. Data is kept in memory until it grows
+ * past the spill threshold, after which everything is moved to a
+ * temporary file and further writes go straight to disk, so a large
+ * upload costs no more heap than the chunk being written.
+ */
+class UploadBuffer extends OutputStream {
+
+	private final Path spillDir;
+	private final long spillThreshold;
+
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private Path file;
+	private OutputStream fileOut;
+	private long size;
+
+	/**
+	 * @param spillDir			directory for the temporary file, null to
+	 *                			always keep the upload in memory
+	 * @param spillThreshold	size after which the upload is spilled
+	 */
+	UploadBuffer(Path spillDir, long spillThreshold) {
+		this.spillDir = spillDir;
+		this.spillThreshold = spillThreshold;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (fileOut == null && spillDir != null && size + len > spillThreshold) {
+			file = Files.createTempFile(spillDir, "upload-", ".tmp");
+			fileOut = Files.newOutputStream(file);
+			memory.writeTo(fileOut);
+			memory = null;
+		}
+		if (fileOut != null) {
+			fileOut.write(b, off, len);
+		} else {
+			if (size + len > Integer.MAX_VALUE - 8) {
+				throw new IOException("Upload too large to buffer in memory");
+			}
+			memory.write(b, off, len);
+		}
+		size += len;
+	}
+
+	/**
+	 * @return		true if the upload was moved to a file
+	 */
+	boolean spilled() {
+		return fileOut != null;
+	}
+
+	/**
+	 * @return		the upload, only valid when not spilled
+	 */
+	byte[] toByteArray() {
+		return memory.toByteArray();
+	}
+
+	/**
+	 * Finishes writing the spill file and hands it to the caller, who
+	 * becomes responsible for deleting it.
+	 */
+	Path takeFile() throws IOException {
+		fileOut.close();
+		Path taken = file;
+		file = null;
+		return taken;
+	}
+
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Deletes the spill file unless it was taken.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (fileOut != null) {
+			fileOut.close();
+		}
+		if (file != null) {
+			Files.deleteIfExists(file);
+		}
+	}
+}
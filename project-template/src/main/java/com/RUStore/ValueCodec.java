@@ -0,0 +1,264 @@
+package com.RUStore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Value compression shared by CompressedObjectStore, the server and
+ * RUStoreClient. Values are compressed with raw deflate at BEST_SPEED.
+ *
+ * Whether a value is worth compressing is decided per object: values of
+ * more than a few samples first have three slices from their start,
+ * middle and end compressed, and only if those shrink by an eighth is
+ * the whole value compressed, which again has to shrink by an eighth to
+ * be kept. JPEGs, MP3s and other already compressed data therefore cost
+ * a few kilobytes of deflate instead of a full pass.
+ *
+ * In a store, a compressed value starts with MAGIC, the codec and the
+ * uncompressed length. A value that happens to start with MAGIC itself
+ * is kept behind a RAW header, so stored values are told apart by their
+ * first bytes alone.
+ *
+ * On a connection that negotiated Protocol.FEATURE_COMPRESSION, values
+ * in PUT, MPUT, GET and MGET are sent as the codec byte, the uncompressed
+ * length and the length of the bytes that follow, in place of just the
+ * length and the bytes.
+ */
+final class ValueCodec {
+
+	static final int RAW = 0;
+	static final int DEFLATE = 1;
+
+	// bytes in front of a value on a compressing connection: codec, uncompressed length and length
+	static final int FIELD_SIZE = 9;
+
+	// values smaller than this are never compressed
+	static final int DEFAULT_MIN_SIZE = 256;
+
+	private static final byte[] MAGIC = { (byte) 0xC5, 'R', 'U', 'Z' };
+	private static final int HEADER_SIZE = MAGIC.length + 5;
+
+	private static final int SAMPLE_SIZE = 4 << 10;
+	private static final int SAMPLES = 3;
+
+	// deflaters hold native memory, so they are reused instead of left to the collector
+	private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+	private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+	private ValueCodec() {
+	}
+
+	/**
+	 * @return		deflated data, null if data is smaller than minSize or
+	 *        		does not compress well enough to be worth it
+	 */
+	static byte[] compress(byte[] data, int minSize) {
+		if (data.length < minSize) {
+			return null;
+		}
+		if (data.length > 2 * SAMPLES * SAMPLE_SIZE) {
+			int sampled = 0;
+			for (int i = 0; i < SAMPLES; i++) {
+				int offset = (int) ((long) (data.length - SAMPLE_SIZE) * i / (SAMPLES - 1));
+				byte[] sample = deflate(data, offset, SAMPLE_SIZE, SAMPLE_SIZE);
+				sampled += sample == null ? SAMPLE_SIZE : sample.length;
+			}
+			if (sampled > limit(SAMPLES * SAMPLE_SIZE)) {
+				return null;
+			}
+		}
+		return deflate(data, 0, data.length, limit(data.length));
+	}
+
+	/* largest compressed size that is still worth keeping */
+	private static int limit(int length) {
+		return length - length / 8;
+	}
+
+	/**
+	 * @return		deflated bytes, null as soon as they exceed limit
+	 */
+	private static byte[] deflate(byte[] data, int offset, int length, int limit) {
+		Deflater deflater = DEFLATERS.poll();
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+		try {
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			byte[] buffer = new byte[limit + 1];
+			int size = 0;
+			while (!deflater.finished()) {
+				size += deflater.deflate(buffer, size, buffer.length - size);
+				if (size > limit) {
+					return null;
+				}
+			}
+			return Arrays.copyOf(buffer, size);
+		} finally {
+			deflater.reset();
+			DEFLATERS.offer(deflater);
+		}
+	}
+
+	/**
+	 * @return		rawLength bytes inflated from the given range
+	 */
+	static byte[] inflate(byte[] data, int offset, int length, int rawLength) throws IOException {
+		if (rawLength < 0) {
+			throw new IOException("Invalid uncompressed size " + rawLength);
+		}
+		Inflater inflater = INFLATERS.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		try {
+			inflater.setInput(data, offset, length);
+			byte[] raw = new byte[rawLength];
+			int size = 0;
+			while (size < rawLength && !inflater.finished()) {
+				int n = inflater.inflate(raw, size, rawLength - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				size += n;
+			}
+			if (size != rawLength) {
+				throw new IOException("Compressed value is " + size + " bytes, expected " + rawLength);
+			}
+			return raw;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed value", e);
+		} finally {
+			inflater.reset();
+			INFLATERS.offer(inflater);
+		}
+	}
+
+	/**
+	 * Turns a value into its stored form.
+	 *
+	 * @return		data itself, or data behind a header if it was
+	 *        		compressed or starts with MAGIC
+	 */
+	static byte[] encode(byte[] data, int minSize) {
+		byte[] compressed = compress(data, minSize);
+		if (compressed != null) {
+			return withHeader(DEFLATE, data.length, compressed);
+		}
+		return escape(data);
+	}
+
+	/**
+	 * @return		stored form of data without compressing it
+	 */
+	static byte[] escape(byte[] data) {
+		return startsWithMagic(data) ? withHeader(RAW, data.length, data) : data;
+	}
+
+	private static byte[] withHeader(int codec, int rawLength, byte[] body) {
+		byte[] stored = new byte[HEADER_SIZE + body.length];
+		System.arraycopy(MAGIC, 0, stored, 0, MAGIC.length);
+		stored[MAGIC.length] = (byte) codec;
+		int length = MAGIC.length + 1;
+		stored[length] = (byte) (rawLength >>> 24);
+		stored[length + 1] = (byte) (rawLength >>> 16);
+		stored[length + 2] = (byte) (rawLength >>> 8);
+		stored[length + 3] = (byte) rawLength;
+		System.arraycopy(body, 0, stored, HEADER_SIZE, body.length);
+		return stored;
+	}
+
+	private static boolean startsWithMagic(byte[] data) {
+		if (data.length < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return		codec of a stored value, -1 if it has no header
+	 */
+	static int codec(byte[] stored) {
+		return stored.length >= HEADER_SIZE && startsWithMagic(stored) ? stored[MAGIC.length] : -1;
+	}
+
+	private static int rawLength(byte[] stored) {
+		int i = MAGIC.length + 1;
+		return (stored[i] & 0xFF) << 24 | (stored[i + 1] & 0xFF) << 16 | (stored[i + 2] & 0xFF) << 8 | (stored[i + 3] & 0xFF);
+	}
+
+	/**
+	 * @return		value of a stored form made by encode
+	 */
+	static byte[] decode(byte[] stored) throws IOException {
+		switch (codec(stored)) {
+			case -1:
+				return stored;
+			case RAW:
+				return Arrays.copyOfRange(stored, HEADER_SIZE, stored.length);
+			case DEFLATE:
+				return inflate(stored, HEADER_SIZE, stored.length - HEADER_SIZE, rawLength(stored));
+			default:
+				throw new IOException("Unknown codec " + codec(stored));
+		}
+	}
+
+	/**
+	 * Writes the prefix of a value on a compressing connection, the
+	 * caller then writes length bytes.
+	 */
+	static void writeField(DataOutputStream out, int codec, int rawLength, int length) throws IOException {
+		out.writeByte(codec);
+		out.writeInt(rawLength);
+		out.writeInt(length);
+	}
+
+	/**
+	 * Sends a stored value on a compressing connection as it is, so the
+	 * server never inflates what the client can inflate itself.
+	 */
+	static void writeStored(DataOutputStream out, byte[] stored) throws IOException {
+		int codec = codec(stored);
+		if (codec == -1) {
+			writeField(out, RAW, stored.length, stored.length);
+			out.write(stored);
+		} else {
+			writeField(out, codec, rawLength(stored), stored.length - HEADER_SIZE);
+			out.write(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+		}
+	}
+
+	/**
+	 * Reads a value sent on a compressing connection.
+	 *
+	 * @return		uncompressed value
+	 */
+	static byte[] readValue(DataInputStream in) throws IOException {
+		int codec = in.readUnsignedByte();
+		int rawLength = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || (codec == RAW && length != rawLength)) {
+			throw new IOException("Invalid value size " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		if (codec == RAW) {
+			return data;
+		} else if (codec == DEFLATE) {
+			return inflate(data, 0, length, rawLength);
+		}
+		throw new IOException("Unknown codec " + codec);
+	}
+}
@@ -0,0 +1,246 @@
+package com.RUStore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorates another ObjectStore with a version for every object, so a
+ * client can replace an object only if nobody changed it since it read
+ * it (see putIfVersion). Every change of a key takes the next value of a
+ * single counter as its version, so a version never comes back for the
+ * same key, not even after the key was removed and put again.
+ *
+ * Only keys changed since startup have an entry in the version map; all
+ * others share the value the counter started at. The counter starts from
+ * the clock shifted left by 20 bits, so after a restart it starts above
+ * every version handed out before, and versions that clients still hold
+ * from before the restart never match again. Versions are not persisted
+ * or replicated; a replica numbers the changes it applies on its own.
+ *
+ * Changes of a key are serialized on a lock stripe, and a new version is
+ * published only once its object is in place. A reader that reads the
+ * version before the object therefore never pairs an old object with a
+ * new version. The server puts this store just inside any
+ * BoundedObjectStore, so evicted and expired objects drop their version
+ * like any other REMOVE.
+ */
+public class VersionedObjectStore implements ObjectStore, Closeable {
+
+	private final ObjectStore inner;
+	private final long base;   // version of the objects not changed since startup
+	private final AtomicLong lastVersion;
+	private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+	private final ReentrantLock[] stripes;
+	private final LongAdder conflicts = new LongAdder();
+
+	/**
+	 * @param inner		store that holds the objects
+	 */
+	public VersionedObjectStore(ObjectStore inner) {
+		this.inner = inner;
+		// a million versions per millisecond of uptime before a restart could hand one out again
+		this.base = System.currentTimeMillis() << 20;
+		this.lastVersion = new AtomicLong(base);
+
+		int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+		this.stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data) {
+		return putIfAbsent(key, data, 0);
+	}
+
+	@Override
+	public boolean putIfAbsent(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.putIfAbsent(key, data, expiresAt)) {
+				return false;
+			}
+			versions.put(key, lastVersion.incrementAndGet());
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file) throws IOException {
+		return putFileIfAbsent(key, file, 0);
+	}
+
+	@Override
+	public boolean putFileIfAbsent(String key, Path file, long expiresAt) throws IOException {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.putFileIfAbsent(key, file, expiresAt)) {
+				return false;
+			}
+			versions.put(key, lastVersion.incrementAndGet());
+			return true;
+		} catch (RuntimeException e) {
+			// the store owns the file, even when it fails
+			Files.deleteIfExists(file);
+			throw e;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long put(String key, byte[] data) {
+		return put(key, data, 0);
+	}
+
+	@Override
+	public long put(String key, byte[] data, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			inner.put(key, data, expiresAt);
+			long version = lastVersion.incrementAndGet();
+			versions.put(key, version);
+			return version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version) {
+		return putIfVersion(key, data, version, 0);
+	}
+
+	@Override
+	public long putIfVersion(String key, byte[] data, long version, long expiresAt) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			// every change of key takes this stripe, so the version can't change before ours is in place
+			if (version(key) != version) {
+				conflicts.increment();
+				return 0;
+			}
+			if (version == 0) {
+				if (!inner.putIfAbsent(key, data, expiresAt)) {
+					conflicts.increment();
+					return 0;
+				}
+			} else {
+				inner.put(key, data, expiresAt);
+			}
+			long stored = lastVersion.incrementAndGet();
+			versions.put(key, stored);
+			return stored;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long version(String key) {
+		Long version = versions.get(key);
+		if (version != null) {
+			return version;
+		}
+		return inner.containsKey(key) ? base : 0;
+	}
+
+	@Override
+	public boolean remove(String key) {
+		ReentrantLock lock = stripe(key);
+		lock.lock();
+		try {
+			if (!inner.remove(key)) {
+				return false;
+			}
+			versions.remove(key);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean expire(String key, long expiresAt) {
+		return inner.expire(key, expiresAt);
+	}
+
+	@Override
+	public long expiresAt(String key) {
+		return inner.expiresAt(key);
+	}
+
+	@Override
+	public byte[] get(String key) {
+		return inner.get(key);
+	}
+
+	@Override
+	public byte[] getStored(String key) {
+		return inner.getStored(key);
+	}
+
+	@Override
+	public byte[] getByHash(byte[] hash) {
+		return inner.getByHash(hash);
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return inner.containsKey(key);
+	}
+
+	@Override
+	public FileChannel openFile(String key) throws IOException {
+		return inner.openFile(key);
+	}
+
+	@Override
+	public String[] keys() {
+		return inner.keys();
+	}
+
+	@Override
+	public String[] keys(String prefix, String startAfter, int limit) {
+		return inner.keys(prefix, startAfter, limit);
+	}
+
+	@Override
+	public int size() {
+		return inner.size();
+	}
+
+	@Override
+	public void addStats(Map<String, Long> stats) {
+		inner.addStats(stats);
+		stats.put("versions.tracked_keys", (long) versions.size());
+		stats.put("versions.conflicts", conflicts.sum());
+	}
+
+	private ReentrantLock stripe(String key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inner instanceof Closeable) {
+			((Closeable) inner).close();
+		}
+	}
+}
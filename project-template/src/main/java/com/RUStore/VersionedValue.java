@@ -0,0 +1,31 @@
+package com.RUStore;
+
+/**
+ * An object together with its version, as returned by
+ * RUStoreClient.getVersioned. Pass the version to compareAndSet to
+ * replace the object only if nobody changed it in the meantime.
+ */
+public final class VersionedValue {
+
+	private final byte[] data;
+	private final long version;
+
+	VersionedValue(byte[] data, long version) {
+		this.data = data;
+		this.version = version;
+	}
+
+	/**
+	 * @return		object data
+	 */
+	public byte[] data() {
+		return data;
+	}
+
+	/**
+	 * @return		version of the object on the server it was read from
+	 */
+	public long version() {
+		return version;
+	}
+}